@@ -0,0 +1,221 @@
+/* Copyright (c) 2010-2015 Vanderbilt University
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package edu.vu.isis.ammo;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import android.content.Context;
+import android.content.Intent;
+import edu.vu.isis.ammo.core.provider.PreferenceSchema;
+
+/**
+ * Routes preference changes to the listeners subscribed to the changed keys.
+ * <p>
+ * A single AmmoPreferenceChangedReceiver is registered for the process while
+ * there are subscribers. The listeners of a key are found in a hash map; the
+ * listeners of a key prefix are found by looking up each distinct prefix
+ * length in a second hash map, so a change costs a lookup per key and per
+ * prefix length regardless of the number of subscribers. A change naming
+ * several keys, see AMMO_INTENT_KEY_PREF_CHANGED_KEYS, is delivered to each
+ * listener once; one naming no key is delivered to every listener. e.g.
+ * <code>
+ AmmoPreferenceChangedDispatcher.getInstance(context)
+         .subscribe(listener, INetPrefKeys.GATEWAY_HOST, INetPrefKeys.GATEWAY_PORT);
+ ...
+ AmmoPreferenceChangedDispatcher.getInstance(context).unsubscribe(listener);
+ </code>
+ */
+public class AmmoPreferenceChangedDispatcher implements IAmmoPreferenceChangedListener {
+
+	private static AmmoPreferenceChangedDispatcher instance = null;
+
+	public static synchronized AmmoPreferenceChangedDispatcher getInstance(Context context) {
+		if (instance == null) {
+			instance = new AmmoPreferenceChangedDispatcher(context.getApplicationContext());
+		}
+		return instance;
+	}
+
+	private final Context context;
+	/** guarded by this */
+	private final Map<String, Set<IAmmoPreferenceChangedListener>> byKey;
+	private final Map<String, Set<IAmmoPreferenceChangedListener>> byPrefix;
+	/** the distinct lengths of the subscribed prefixes */
+	private final TreeSet<Integer> prefixLengths;
+	private AmmoPreferenceChangedReceiver receiver;
+
+	private AmmoPreferenceChangedDispatcher(Context context) {
+		this.context = context;
+		this.byKey = new HashMap<String, Set<IAmmoPreferenceChangedListener>>();
+		this.byPrefix = new HashMap<String, Set<IAmmoPreferenceChangedListener>>();
+		this.prefixLengths = new TreeSet<Integer>();
+		this.receiver = null;
+	}
+
+	/**
+	 * Deliver changes of the keys to the listener.
+	 */
+	public synchronized void subscribe(IAmmoPreferenceChangedListener listener, String... keys) {
+		if (listener == null) {
+			throw new IllegalArgumentException("null listener");
+		}
+		for (final String key : keys) {
+			if (key == null) {
+				throw new IllegalArgumentException("null preference key");
+			}
+			add(this.byKey, key, listener);
+		}
+		this.initializeAmmoPreferenceChangedReceiver();
+	}
+
+	/**
+	 * Deliver changes of any key beginning with the prefix to the listener,
+	 * the empty prefix matches every key.
+	 */
+	public synchronized void subscribePrefix(IAmmoPreferenceChangedListener listener, String prefix) {
+		if (listener == null) {
+			throw new IllegalArgumentException("null listener");
+		}
+		if (prefix == null) {
+			throw new IllegalArgumentException("null preference prefix");
+		}
+		add(this.byPrefix, prefix, listener);
+		this.prefixLengths.add(Integer.valueOf(prefix.length()));
+		this.initializeAmmoPreferenceChangedReceiver();
+	}
+
+	/**
+	 * Remove the listener from all of its keys and prefixes.
+	 */
+	public synchronized void unsubscribe(IAmmoPreferenceChangedListener listener) {
+		remove(this.byKey, listener);
+		if (remove(this.byPrefix, listener)) {
+			this.prefixLengths.clear();
+			for (final String prefix : this.byPrefix.keySet()) {
+				this.prefixLengths.add(Integer.valueOf(prefix.length()));
+			}
+		}
+		if (this.byKey.isEmpty() && this.byPrefix.isEmpty()) {
+			this.uninitializeAmmoPreferenceChangedReceiver();
+		}
+	}
+
+	@Override
+	public void onAmmoPreferenceChanged(Context context, Intent intent) {
+		final List<IAmmoPreferenceChangedListener> targets = this.targets(intent);
+		for (final IAmmoPreferenceChangedListener listener : targets) {
+			listener.onAmmoPreferenceChanged(context, intent);
+		}
+	}
+
+	/**
+	 * @return the listeners to which the change is delivered
+	 */
+	synchronized List<IAmmoPreferenceChangedListener> targets(Intent intent) {
+		final Set<IAmmoPreferenceChangedListener> targets =
+				new LinkedHashSet<IAmmoPreferenceChangedListener>();
+		String[] keys = intent.getStringArrayExtra(PreferenceSchema.AMMO_INTENT_KEY_PREF_CHANGED_KEYS);
+		if (keys == null) {
+			final String key = intent.getStringExtra(PreferenceSchema.AMMO_INTENT_KEY_PREF_CHANGED_KEY);
+			keys = (key == null) ? null : new String[] { key };
+		}
+		if (keys == null) {
+			for (final Set<IAmmoPreferenceChangedListener> listeners : this.byKey.values()) {
+				targets.addAll(listeners);
+			}
+			for (final Set<IAmmoPreferenceChangedListener> listeners : this.byPrefix.values()) {
+				targets.addAll(listeners);
+			}
+			return new ArrayList<IAmmoPreferenceChangedListener>(targets);
+		}
+		for (final String key : keys) {
+			if (key == null)
+				continue;
+			final Set<IAmmoPreferenceChangedListener> exact = this.byKey.get(key);
+			if (exact != null) {
+				targets.addAll(exact);
+			}
+			for (final Integer length : this.prefixLengths) {
+				if (length.intValue() > key.length())
+					break;
+				final Set<IAmmoPreferenceChangedListener> prefixed =
+						this.byPrefix.get(key.substring(0, length.intValue()));
+				if (prefixed != null) {
+					targets.addAll(prefixed);
+				}
+			}
+		}
+		return new ArrayList<IAmmoPreferenceChangedListener>(targets);
+	}
+
+	/**
+	 * Register the receiver, if it is not already.
+	 */
+	@Override
+	public synchronized void initializeAmmoPreferenceChangedReceiver() {
+		if (this.receiver != null)
+			return;
+		this.receiver = new AmmoPreferenceChangedReceiver(this);
+		this.context.registerReceiver(this.receiver, PreferenceSchema.AMMO_PREF_CHANGED_INTENT_FILTER);
+	}
+
+	@Override
+	public synchronized void uninitializeAmmoPreferenceChangedReceiver() {
+		if (this.receiver == null)
+			return;
+		this.context.unregisterReceiver(this.receiver);
+		this.receiver = null;
+	}
+
+	private static void add(Map<String, Set<IAmmoPreferenceChangedListener>> map, String key,
+			IAmmoPreferenceChangedListener listener) {
+		Set<IAmmoPreferenceChangedListener> listeners = map.get(key);
+		if (listeners == null) {
+			listeners = new LinkedHashSet<IAmmoPreferenceChangedListener>(2);
+			map.put(key, listeners);
+		}
+		listeners.add(listener);
+	}
+
+	/**
+	 * @return true if any key was dropped from the map
+	 */
+	private static boolean remove(Map<String, Set<IAmmoPreferenceChangedListener>> map,
+			IAmmoPreferenceChangedListener listener) {
+		boolean dropped = false;
+		final Iterator<Set<IAmmoPreferenceChangedListener>> it = map.values().iterator();
+		while (it.hasNext()) {
+			final Set<IAmmoPreferenceChangedListener> listeners = it.next();
+			if (listeners.remove(listener) && listeners.isEmpty()) {
+				it.remove();
+				dropped = true;
+			}
+		}
+		return dropped;
+	}
+}
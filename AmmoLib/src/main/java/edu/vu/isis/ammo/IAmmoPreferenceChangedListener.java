@@ -28,7 +28,8 @@ public interface IAmmoPreferenceChangedListener {
 	public void onAmmoPreferenceChanged(Context context, Intent intent);
 	
 	/**
-	 * You should set up your AmmoPreferenceChangedReceiver here.
+	 * You should set up your AmmoPreferenceChangedReceiver here, or subscribe
+	 * to the keys of interest with the AmmoPreferenceChangedDispatcher.
 	 */
 	public void initializeAmmoPreferenceChangedReceiver();
 	public void uninitializeAmmoPreferenceChangedReceiver();
@@ -0,0 +1,467 @@
+/* Copyright (c) 2010-2015 Vanderbilt University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package edu.vu.isis.ammo.api;
+
+import android.database.AbstractCursor;
+import android.database.CursorIndexOutOfBoundsException;
+
+/**
+ * A mutable cursor which stores each column in its own typed array. The
+ * column types are declared when the cursor is constructed. Integer columns
+ * are held in a long[], real columns in a double[], text in a String[] and
+ * blobs in a byte[][], so numeric values are never boxed. A bitmap per
+ * column records the null cells.
+ * <p>
+ * Use {@link #newRow()} or {@link #addRow(Object[])} to add rows. The arrays
+ * grow by doubling, the primitive arrays are copied as primitives.
+ */
+public class AmmoColumnarCursor extends AbstractCursor {
+
+    public enum ColumnType {
+        /** integral values, held as long */
+        LONG,
+        /** real values, held as double */
+        DOUBLE,
+        STRING,
+        BLOB;
+    }
+
+    private final String[] columnNames;
+    private final ColumnType[] columnTypes;
+    private final int columnCount;
+
+    /** the typed array for each column, indexed by column */
+    private final long[][] longs;
+    private final double[][] doubles;
+    private final String[][] strings;
+    private final byte[][][] blobs;
+    /** one bit per row per column, set when the cell is null */
+    private final long[][] nulls;
+
+    private int capacity;
+    private int rowCount = 0;
+
+    /**
+     * Constructs a new cursor with the given initial capacity.
+     *
+     * @param columnNames names of the columns, the ordering of which determines
+     *            column ordering elsewhere in this cursor
+     * @param columnTypes the storage type of each column, in the same order
+     * @param initialCapacity in rows
+     */
+    public AmmoColumnarCursor(String[] columnNames, ColumnType[] columnTypes,
+            int initialCapacity) {
+        if (columnNames.length != columnTypes.length) {
+            throw new IllegalArgumentException("columnNames.length = "
+                    + columnNames.length + ", columnTypes.length = "
+                    + columnTypes.length);
+        }
+        this.columnNames = columnNames;
+        this.columnTypes = columnTypes;
+        this.columnCount = columnNames.length;
+
+        if (initialCapacity < 1) {
+            initialCapacity = 1;
+        }
+        this.capacity = initialCapacity;
+
+        this.longs = new long[columnCount][];
+        this.doubles = new double[columnCount][];
+        this.strings = new String[columnCount][];
+        this.blobs = new byte[columnCount][][];
+        this.nulls = new long[columnCount][];
+        for (int column = 0; column < columnCount; column++) {
+            switch (columnTypes[column]) {
+                case LONG:
+                    this.longs[column] = new long[initialCapacity];
+                    break;
+                case DOUBLE:
+                    this.doubles[column] = new double[initialCapacity];
+                    break;
+                case STRING:
+                    this.strings[column] = new String[initialCapacity];
+                    break;
+                case BLOB:
+                    this.blobs[column] = new byte[initialCapacity][];
+                    break;
+            }
+            this.nulls[column] = new long[(initialCapacity + 63) >> 6];
+        }
+    }
+
+    /**
+     * Constructs a new cursor.
+     *
+     * @param columnNames names of the columns, the ordering of which determines
+     *            column ordering elsewhere in this cursor
+     * @param columnTypes the storage type of each column, in the same order
+     */
+    public AmmoColumnarCursor(String[] columnNames, ColumnType[] columnTypes) {
+        this(columnNames, columnTypes, 16);
+    }
+
+    public ColumnType getColumnType(int column) {
+        return columnTypes[column];
+    }
+
+    /**
+     * Checks the column and the current row, returns the current row.
+     */
+    private int row(int column) {
+        if (column < 0 || column >= columnCount) {
+            throw new CursorIndexOutOfBoundsException("Requested column: "
+                    + column + ", # of columns: " + columnCount);
+        }
+        if (mPos < 0) {
+            throw new CursorIndexOutOfBoundsException("Before first row.");
+        }
+        if (mPos >= rowCount) {
+            throw new CursorIndexOutOfBoundsException("After last row.");
+        }
+        return mPos;
+    }
+
+    private boolean isNullCell(int column, int row) {
+        return (nulls[column][row >> 6] & (1L << (row & 63))) != 0;
+    }
+
+    private void setNull(int column, int row, boolean isNull) {
+        if (isNull) {
+            nulls[column][row >> 6] |= (1L << (row & 63));
+        } else {
+            nulls[column][row >> 6] &= ~(1L << (row & 63));
+        }
+    }
+
+    /**
+     * Adds a new row to the end and returns a builder for that row. Not safe
+     * for concurrent use.
+     *
+     * @return builder which can be used to set the column values for the new
+     *         row
+     */
+    public RowBuilder newRow() {
+        ensureCapacity(rowCount + 1);
+        final int row = rowCount++;
+        for (int column = 0; column < columnCount; column++) {
+            setNull(column, row, true);
+        }
+        return new RowBuilder(row);
+    }
+
+    /**
+     * Adds a new row to the end with the given column values. Not safe for
+     * concurrent use. Values are converted to the column type.
+     *
+     * @throws IllegalArgumentException if {@code columnValues.length !=
+     *  columnNames.length}
+     * @param columnValues in the same order as the the column names specified
+     *            at cursor construction time
+     */
+    public void addRow(Object[] columnValues) {
+        if (columnValues.length != columnCount) {
+            throw new IllegalArgumentException("columnNames.length = "
+                    + columnCount + ", columnValues.length = "
+                    + columnValues.length);
+        }
+        final RowBuilder builder = newRow();
+        for (int column = 0; column < columnCount; column++) {
+            builder.add(columnValues[column]);
+        }
+    }
+
+    /** Ensures that this cursor has enough capacity. */
+    private void ensureCapacity(int size) {
+        if (size <= capacity) {
+            return;
+        }
+        int newSize = capacity * 2;
+        if (newSize < size) {
+            newSize = size;
+        }
+        for (int column = 0; column < columnCount; column++) {
+            switch (columnTypes[column]) {
+                case LONG: {
+                    final long[] grown = new long[newSize];
+                    System.arraycopy(longs[column], 0, grown, 0, rowCount);
+                    longs[column] = grown;
+                    break;
+                }
+                case DOUBLE: {
+                    final double[] grown = new double[newSize];
+                    System.arraycopy(doubles[column], 0, grown, 0, rowCount);
+                    doubles[column] = grown;
+                    break;
+                }
+                case STRING: {
+                    final String[] grown = new String[newSize];
+                    System.arraycopy(strings[column], 0, grown, 0, rowCount);
+                    strings[column] = grown;
+                    break;
+                }
+                case BLOB: {
+                    final byte[][] grown = new byte[newSize][];
+                    System.arraycopy(blobs[column], 0, grown, 0, rowCount);
+                    blobs[column] = grown;
+                    break;
+                }
+            }
+            final long[] grownNulls = new long[(newSize + 63) >> 6];
+            System.arraycopy(nulls[column], 0, grownNulls, 0, nulls[column].length);
+            nulls[column] = grownNulls;
+        }
+        capacity = newSize;
+    }
+
+    /**
+     * Builds a row, starting from the left-most column and adding one column
+     * value at a time. Follows the same ordering as the column names specified
+     * at cursor construction time. The typed add methods store the value
+     * without boxing.
+     */
+    public class RowBuilder {
+
+        private final int row;
+        private int column;
+
+        RowBuilder(int row) {
+            this.row = row;
+            this.column = 0;
+        }
+
+        private int next() {
+            if (column == columnCount) {
+                throw new CursorIndexOutOfBoundsException(
+                        "No more columns left.");
+            }
+            return column++;
+        }
+
+        public RowBuilder add(long value) {
+            final int column = next();
+            switch (columnTypes[column]) {
+                case LONG:
+                    longs[column][row] = value;
+                    break;
+                case DOUBLE:
+                    doubles[column][row] = value;
+                    break;
+                case STRING:
+                    strings[column][row] = Long.toString(value);
+                    break;
+                case BLOB:
+                    throw new IllegalArgumentException("column " + column + " is a blob");
+            }
+            setNull(column, row, false);
+            return this;
+        }
+
+        public RowBuilder add(double value) {
+            final int column = next();
+            switch (columnTypes[column]) {
+                case LONG:
+                    longs[column][row] = (long) value;
+                    break;
+                case DOUBLE:
+                    doubles[column][row] = value;
+                    break;
+                case STRING:
+                    strings[column][row] = Double.toString(value);
+                    break;
+                case BLOB:
+                    throw new IllegalArgumentException("column " + column + " is a blob");
+            }
+            setNull(column, row, false);
+            return this;
+        }
+
+        public RowBuilder add(String value) {
+            if (value == null) {
+                return addNull();
+            }
+            final int column = next();
+            switch (columnTypes[column]) {
+                case LONG:
+                    longs[column][row] = Long.parseLong(value);
+                    break;
+                case DOUBLE:
+                    doubles[column][row] = Double.parseDouble(value);
+                    break;
+                case STRING:
+                    strings[column][row] = value;
+                    break;
+                case BLOB:
+                    blobs[column][row] = value.getBytes();
+                    break;
+            }
+            setNull(column, row, false);
+            return this;
+        }
+
+        public RowBuilder add(byte[] value) {
+            if (value == null) {
+                return addNull();
+            }
+            final int column = next();
+            if (columnTypes[column] != ColumnType.BLOB) {
+                throw new IllegalArgumentException("column " + column + " is not a blob");
+            }
+            blobs[column][row] = value;
+            setNull(column, row, false);
+            return this;
+        }
+
+        public RowBuilder addNull() {
+            final int column = next();
+            setNull(column, row, true);
+            return this;
+        }
+
+        /**
+         * Sets the next column value in this row, converting it to the
+         * column type.
+         *
+         * @throws CursorIndexOutOfBoundsException if you try to add too many
+         *             values
+         * @return this builder to support chaining
+         */
+        public RowBuilder add(Object columnValue) {
+            if (columnValue == null) {
+                return addNull();
+            }
+            if (columnValue instanceof byte[]) {
+                return add((byte[]) columnValue);
+            }
+            if (columnValue instanceof Double || columnValue instanceof Float) {
+                return add(((Number) columnValue).doubleValue());
+            }
+            if (columnValue instanceof Number) {
+                return add(((Number) columnValue).longValue());
+            }
+            if (columnValue instanceof Boolean) {
+                return add(((Boolean) columnValue).booleanValue() ? 1L : 0L);
+            }
+            return add(columnValue.toString());
+        }
+    }
+
+    // AbstractCursor implementation.
+
+    @Override
+    public int getCount() {
+        return rowCount;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return columnNames;
+    }
+
+    @Override
+    public String getString(int column) {
+        final int row = row(column);
+        if (isNullCell(column, row))
+            return null;
+        switch (columnTypes[column]) {
+            case LONG:
+                return Long.toString(longs[column][row]);
+            case DOUBLE:
+                return Double.toString(doubles[column][row]);
+            case STRING:
+                return strings[column][row];
+            case BLOB:
+            default:
+                return new String(blobs[column][row]);
+        }
+    }
+
+    @Override
+    public short getShort(int column) {
+        return (short) getLong(column);
+    }
+
+    @Override
+    public int getInt(int column) {
+        return (int) getLong(column);
+    }
+
+    @Override
+    public long getLong(int column) {
+        final int row = row(column);
+        if (isNullCell(column, row))
+            return 0;
+        switch (columnTypes[column]) {
+            case LONG:
+                return longs[column][row];
+            case DOUBLE:
+                return (long) doubles[column][row];
+            case STRING:
+                return Long.parseLong(strings[column][row]);
+            case BLOB:
+            default:
+                throw new IllegalStateException("column " + column + " is a blob");
+        }
+    }
+
+    @Override
+    public float getFloat(int column) {
+        return (float) getDouble(column);
+    }
+
+    @Override
+    public double getDouble(int column) {
+        final int row = row(column);
+        if (isNullCell(column, row))
+            return 0.0d;
+        switch (columnTypes[column]) {
+            case LONG:
+                return longs[column][row];
+            case DOUBLE:
+                return doubles[column][row];
+            case STRING:
+                return Double.parseDouble(strings[column][row]);
+            case BLOB:
+            default:
+                throw new IllegalStateException("column " + column + " is a blob");
+        }
+    }
+
+    @Override
+    public byte[] getBlob(int column) {
+        final int row = row(column);
+        if (isNullCell(column, row))
+            return null;
+        switch (columnTypes[column]) {
+            case BLOB:
+                return blobs[column][row];
+            case STRING:
+                return strings[column][row].getBytes();
+            default:
+                throw new IllegalStateException("column " + column + " is not a blob");
+        }
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        return isNullCell(column, row(column));
+    }
+}
@@ -21,13 +21,18 @@
 package edu.vu.isis.ammo.api;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 
 import android.content.ContentProviderOperation;
 import android.content.ContentProviderResult;
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.CursorIndexOutOfBoundsException;
@@ -77,20 +82,92 @@ public class AmmoContacts {
 
     private static final String TAG = "AmmoContacts";
 
+    /** the most arguments in one selection, the SQLite limit is 999 */
+    static final int QUERY_ARGS_MAX = 900;
+
+    /**
+     * the most operations in one applyBatch(), the provider allows 500
+     * between yield points and none are used, so each batch is atomic
+     */
+    static final int BATCH_OPS_MAX = 400;
+
+    static final String[] CONTACT_DATA_PROJECTION = {
+        Data.CONTACT_ID, Data.LOOKUP_KEY, Data.DISPLAY_NAME, Data.MIMETYPE,
+        Data.DATA1, Data.DATA2, Data.DATA3, Data.DATA4,
+    };
+    private static final int CD_CONTACT_ID = 0;
+    private static final int CD_LOOKUP_KEY = 1;
+    private static final int CD_DISPLAY_NAME = 2;
+    private static final int CD_MIMETYPE = 3;
+    private static final int CD_DATA1 = 4;
+    private static final int CD_DATA2 = 5;
+    private static final int CD_DATA3 = 6;
+    private static final int CD_DATA4 = 7;
+
+    /** the data columns compared by updates, DATA1 to DATA7 */
+    static final String[] DATA_COLUMNS = {
+        Data.DATA1, Data.DATA2, Data.DATA3, Data.DATA4, Data.DATA5, Data.DATA6, Data.DATA7,
+    };
+    static final String[] DATA_ROW_PROJECTION = {
+        Data._ID, Data.RAW_CONTACT_ID, Data.MIMETYPE,
+        Data.DATA1, Data.DATA2, Data.DATA3, Data.DATA4, Data.DATA5, Data.DATA6, Data.DATA7,
+    };
+
+    /**
+     * A stored data row, its id and its DATA_COLUMNS values.
+     */
+    static final class DataRow {
+        final long id;
+        final String[] values;
+
+        DataRow(long id, String[] values) {
+            this.id = id;
+            this.values = values;
+        }
+    }
+
     private ContentResolver mResolver;
+    private ContactDirectory mDirectory;
 
     public AmmoContacts() {
         mResolver = null;
+        mDirectory = null;
     }
 
     private AmmoContacts(Context context) {
         this.mResolver = context.getContentResolver();
+        this.mDirectory = null;
     }
 
     public static AmmoContacts newInstance(Context context) {
         return new AmmoContacts(context);
     }
 
+    /**
+     * An instance whose getContactByUserId(), getContactByIdNumber() and
+     * getContactByLookupKey() are answered from the ContactDirectory once it
+     * has loaded. Until then, and for a contact the directory does not hold,
+     * e.g. one written since its last scan or a stale lookup key, the
+     * provider is queried as usual. Call release() when finished.
+     */
+    public static AmmoContacts newCachedInstance(Context context) {
+        final AmmoContacts contacts = new AmmoContacts(context);
+        contacts.mDirectory = ContactDirectory.getInstance(context);
+        contacts.mDirectory.start();
+        return contacts;
+    }
+
+    /**
+     * Stop using the contact directory, if this instance was using it.
+     */
+    public void release() {
+        if (mDirectory == null) {
+            return;
+        }
+        mDirectory.stop();
+        mDirectory = null;
+    }
+
 
 
     /**
@@ -126,6 +203,33 @@ public class AmmoContacts {
             setRawContactId(b.rawContactId );
         }
 
+        /**
+         * A copy, as handed out by the ContactDirectory, whose contacts are
+         * shared.
+         */
+        Contact(Contact that) {
+            this.lookup = that.lookup;
+            this.name = that.name;
+            this.middle_initial = that.middle_initial;
+            this.lastname = that.lastname;
+            this.rank = that.rank;
+            this.callsign = that.callsign;
+            this.branch = that.branch;
+            this.unit = that.unit;
+            this.unitDivision = that.unitDivision;
+            this.unitBrigade = that.unitBrigade;
+            this.unitBattalion = that.unitBattalion;
+            this.unitCompany = that.unitCompany;
+            this.unitPlatoon = that.unitPlatoon;
+            this.unitSquad = that.unitSquad;
+            this.email = that.email;
+            this.phone = that.phone;
+            this.tigruid = that.tigruid;
+            this.userIdNum = that.userIdNum;
+            this.designator = that.designator;
+            this.rawContactId = that.rawContactId;
+        }
+
         private String lookup;
         public String getLookup() {
 	    if (this.lookup == null) return null;
@@ -562,7 +666,7 @@ public class AmmoContacts {
         ContentResolver cr = mResolver;
 
         // First find existing record so we can modify it
-        Contact r = getContactByUserId(lw.getTigrUid());
+        Contact r = queryContactByUserId(lw.getTigrUid());
 
         // If the contact isn't found, add it ("upsert" functionality)
         if (r == null) {
@@ -578,417 +682,516 @@ public class AmmoContacts {
         contactId = r.getRawContactId();
         if (!(contactId > 0)) return null;
 
-        // Make a list of ContentProviderOperations to update this contact
-        ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>();
+        // Read the stored data rows, to which the contact is compared
+        HashMap<Integer, Map<String, DataRow>> stored =
+            getDataRows(Collections.singletonList(Integer.valueOf(contactId)));
+        if (stored == null) return null;
 
-        // Callsign
-        {
-            String callsign = lw.getCallSign();
-            String currentCallsign = r.getCallSign();
-            if (callsign == null) callsign = "";
-            if (currentCallsign == null) currentCallsign = "";
-
-            // Case 1: update
-            if ((callsign.length() > 0) && (currentCallsign.length() > 0)) {
-                ops.add(ContentProviderOperation.newUpdate(ContactsContract.Data.CONTENT_URI)
-                        .withSelection(ContactsContract.Data.RAW_CONTACT_ID + "=? AND "
-                                       + ContactsContract.Data.MIMETYPE + "=?",
-                                       new String[] {String.valueOf(contactId), Constants.MIME_CALLSIGN,})
-                        .withValue(ContactsContract.Data.DATA1, callsign)
-                        .build());
-            }
-            // Case 2: remove existing
-            else if ((callsign.length() <= 0) && (currentCallsign.length() > 0)) {
-                Uri dataUri = hasData(Constants.MIME_CALLSIGN, contactId);
-                if (dataUri != null) {
-                    ops.add(ContentProviderOperation.newDelete(dataUri).build());
-                }
-            }
-            // Case 3: add new
-            else if ((callsign.length() > 0) && (currentCallsign.length() <= 0)) {
-                ops.add(ContentProviderOperation.newInsert(ContactsContract.Data.CONTENT_URI)
-                        .withValue(ContactsContract.Data.RAW_CONTACT_ID, contactId)
-                        .withValue(ContactsContract.Data.MIMETYPE, Constants.MIME_CALLSIGN)
-                        .withValue(ContactsContract.Data.DATA1, callsign)
-                        .build());
+        // Make a list of ContentProviderOperations to update this contact
+        ArrayList<ContentProviderOperation.Builder> ops = new ArrayList<ContentProviderOperation.Builder>();
+        buildUpdateOperations(lw, r, contactId, stored.get(Integer.valueOf(contactId)), ops);
+        if (ops.isEmpty()) {
+            Log.d(TAG, "       no changes for user : " + lw.getTigrUid());
+            return Uri.withAppendedPath(ContactsContract.RawContacts.CONTENT_URI,
+                                        String.valueOf(contactId));
+        }
 
-            }
+        // Apply the content provider operations, the results of updates and
+        // deletes carry no uri, so answer with the raw contact's as above
+        try {
+            cr.applyBatch(ContactsContract.AUTHORITY, buildAll(ops));
+        } catch (Exception ex) {
+            Log.e(TAG, "Exception encoutered while updating contact: " + ex.toString());
+            return null;
         }
 
-        // userid is a special case -- don't allow updates (but keep this snippet for future use)
-        /*
-          String userId = lw.getTigrUid();
-          if (userId == null) userId = "";
-          if (userId.length() > 0) {
-          ops.add(ContentProviderOperation.newUpdate(ContactsContract.Data.CONTENT_URI)
-          .withSelection(ContactsContract.Data.RAW_CONTACT_ID + "=? AND " + ContactsContract.Data.MIMETYPE + "=?",
-          new String[] {String.valueOf(contactId), Constants.MIME_USERID,})
-          .withValue(ContactsContract.Data.DATA1, userId)
-          .build());
-          }
-        */
+        return Uri.withAppendedPath(ContactsContract.RawContacts.CONTENT_URI,
+                                    String.valueOf(contactId));
+    }
 
-        // User ID Number
-        {
-            String userIdNum = lw.getUserIdNumber();
-            String currentIdNum = r.getUserIdNumber();
-            if (userIdNum == null) userIdNum = "";
-            if (currentIdNum == null) currentIdNum = "";
-
-            // Case 1: update
-            if ((userIdNum.length() > 0) && (currentIdNum.length() > 0)) {
-                ops.add(ContentProviderOperation.newUpdate(ContactsContract.Data.CONTENT_URI)
-                        .withSelection(ContactsContract.Data.RAW_CONTACT_ID + "=? AND "
-                                       + ContactsContract.Data.MIMETYPE + "=?",
-                                       new String[] {String.valueOf(contactId), Constants.MIME_USERID_NUM,})
-                        .withValue(ContactsContract.Data.DATA1, userIdNum)
-                        .build());
-            }
-            // Case 2: remove existing
-            else if ((userIdNum.length() <= 0) && (currentIdNum.length() > 0)) {
-                Uri dataUri = hasData(Constants.MIME_USERID_NUM, contactId);
-                if (dataUri != null) {
-                    ops.add(ContentProviderOperation.newDelete(dataUri).build());
-                }
-            }
-            // Case 3: add new
-            else if ((userIdNum.length() > 0) && (currentIdNum.length() <= 0)) {
-                ops.add(ContentProviderOperation.newInsert(ContactsContract.Data.CONTENT_URI)
-                        .withValue(ContactsContract.Data.RAW_CONTACT_ID, contactId)
-                        .withValue(ContactsContract.Data.MIMETYPE, Constants.MIME_USERID_NUM)
-                        .withValue(ContactsContract.Data.DATA1, userIdNum)
-                        .build());
+    //========================================================
+    //
+    // insertContactEntry()
+    //
+    //========================================================
+    /**
+     * Add a new contact to the contacts storage provider.
+     * 
+     * Example usage:
+     * 
+     * <pre>
+     * {@code
+     * AmmoContacts.Contact contact = new AmmoContacts.Contact();
+     * contact.setName("Foo");
+     * contact.setLastName("Bar");
+     * contact.setUserId("foo.bar");
+     * Uri rval = ac.insertContactEntry(contact);
+     * }
+     * </pre>
+     * 
+     * @param lw A Contact object corresponding to the contact data to insert.
+     * @return The URI of the inserted contact if successful, null otherwise.
+     */
+    public Uri insertContactEntry(Contact lw) {
+        Log.d(TAG, "Adding person: " + lw.getName() + " " + lw.getLastName() + " ... " + lw.getTigrUid() );
+
+        ContentResolver cr = mResolver;
+
+        /**
+         *  Prepare contact creation request
+         *  Note: We use RawContacts because this data must be associated with a particular account.
+         *       The system will aggregate this with any other data for this contact and create a
+         *       corresponding entry in the ContactsContract.Contacts provider for us.
+         */
+        ArrayList<ContentProviderOperation.Builder> ops = new ArrayList<ContentProviderOperation.Builder>();
+        buildInsertOperations(lw, ops);
+
+        // Ask the Contact provider to create a new contact
+        Log.d(TAG,"Selected account: " + "ammo" + " (" + "ammo" + ")");
+        try {
+            if (cr != null) {
+                ContentProviderResult[] cpres = cr.applyBatch(ContactsContract.AUTHORITY, buildAll(ops));
+                return cpres[0].uri;
+            } else {
+                Log.w(TAG, "Content resolver is null -- will not add contact");
             }
+        } catch (Exception ex) {
+            Log.e(TAG,"Exception encoutered while inserting contact: " + ex);
         }
 
+        return null;
+    }
 
-        // Rank
-        {
-            String rank = lw.getRank();
-            String currentRank = r.getRank();
-            if (rank == null) rank = "";
-            if (currentRank == null) currentRank = "";
-
-            // Case 1: update existing value with new value (both 'new' and 'existing' have values)
-            if ((rank.length() > 0) && (currentRank.length() > 0)) {
-                ops.add(ContentProviderOperation.newUpdate(ContactsContract.Data.CONTENT_URI)
-                        .withSelection(ContactsContract.Data.RAW_CONTACT_ID + "=? AND "
-                                       + ContactsContract.Data.MIMETYPE + "=?",
-                                       new String[] {String.valueOf(contactId), Constants.MIME_RANK,})
-                        .withValue(ContactsContract.Data.DATA1, rank)
-                        .build());
-            }
-            // Case 2: remove existing value ('new' value is absent)
-            else if ((rank.length() <= 0) && (currentRank.length() > 0)) {
-                Uri dataUri = hasData(Constants.MIME_RANK, contactId);
-                if (dataUri != null) {
-                    ops.add(ContentProviderOperation.newDelete(dataUri).build());
-                }
-            }
-            // Case 3: add new value ('new' value present, 'existing' value absent)
-            else if ((rank.length() > 0) && (currentRank.length() <= 0)) {
-                ops.add(ContentProviderOperation.newInsert(ContactsContract.Data.CONTENT_URI)
-                        .withValue(ContactsContract.Data.RAW_CONTACT_ID, contactId)
-                        .withValue(ContactsContract.Data.MIMETYPE, Constants.MIME_RANK)
-                        .withValue(ContactsContract.Data.DATA1, rank)
-                        .build());
+    //========================================================
+    //
+    // insertContacts() / updateContacts()
+    //
+    //========================================================
+    /**
+     * Add many contacts to the contacts storage provider.
+     * <p>
+     * The operations for all of the contacts are collected into as few
+     * applyBatch() calls as will each hold BATCH_OPS_MAX operations, rather
+     * than one per contact. Each contact's data rows refer back to its raw
+     * contact insert. A batch has no yield points, so it is applied in one
+     * transaction; should it fail none of its contacts are written, each is
+     * reported as null, and the remaining batches are still applied.
+     *
+     * @param contacts the contacts to insert
+     * @return the URI of each inserted contact, in the order of the
+     *         contacts, null for each which could not be inserted.
+     */
+    public List<Uri> insertContacts(List<Contact> contacts) {
+        return applyContacts(contacts, null, null);
+    }
+
+    /**
+     * Update many contacts, inserting those which are not found, as
+     * updateContactEntry() does.
+     * <p>
+     * The existing contacts are found by two queries per QUERY_ARGS_MAX
+     * user ids, the changes are then applied as by insertContacts(). Should
+     * a user id appear more than once the last of its contacts is written,
+     * and each of them is given its result.
+     *
+     * @param contacts the contacts to update, found by user id
+     * @return the URI of each updated (or added) contact, in the order of
+     *         the contacts, null for each which could not be written.
+     */
+    public List<Uri> updateContacts(List<Contact> contacts) {
+        final ArrayList<String> userIds = new ArrayList<String>(contacts.size());
+        for (Contact lw : contacts) {
+            if (lw.getTigrUid() != null) {
+                userIds.add(lw.getTigrUid());
             }
         }
+        final HashMap<String, Contact> existing = getContactsByUserIds(userIds);
+        if (existing == null) {
+            return Arrays.asList(new Uri[contacts.size()]);
+        }
+        final ArrayList<Integer> contactIds = new ArrayList<Integer>(existing.size());
+        for (Contact r : existing.values()) {
+            contactIds.add(Integer.valueOf(r.getRawContactId()));
+        }
+        final HashMap<Integer, Map<String, DataRow>> stored = getDataRows(contactIds);
+        if (stored == null) {
+            return Arrays.asList(new Uri[contacts.size()]);
+        }
+        return applyContacts(contacts, existing, stored);
+    }
 
-        // PLI Designator
-        {
-            String designator = lw.getDesignator();
-            String currentDesig = r.getDesignator();
-            if (designator == null) designator = "";
-            if (currentDesig == null) currentDesig = "";
-
-            // Case 1: update
-            if ((designator.length() > 0) && (currentDesig.length() > 0)) {
-                ops.add(ContentProviderOperation.newUpdate(ContactsContract.Data.CONTENT_URI)
-                        .withSelection(ContactsContract.Data.RAW_CONTACT_ID + "=? AND "
-                                       + ContactsContract.Data.MIMETYPE + "=?",
-                                       new String[] {String.valueOf(contactId), Constants.MIME_DESIGNATOR,})
-                        .withValue(ContactsContract.Data.DATA1, designator)
-                        .build());
-            }
-            // Case 2: remove existing
-            else if ((designator.length() <= 0) && (currentDesig.length() > 0)) {
-                Uri dataUri = hasData(Constants.MIME_DESIGNATOR, contactId);
-                if (dataUri != null) {
-                    ops.add(ContentProviderOperation.newDelete(dataUri).build());
+    /**
+     * @param existing the stored contacts by user id, the contacts not among
+     *            them are inserted; null to insert all of the contacts.
+     * @param stored the data rows of the existing contacts, see getDataRows()
+     */
+    private List<Uri> applyContacts(List<Contact> contacts, Map<String, Contact> existing,
+                                    Map<Integer, Map<String, DataRow>> stored) {
+        final Uri[] results = new Uri[contacts.size()];
+        final ArrayList<ContentProviderOperation.Builder> chunk =
+            new ArrayList<ContentProviderOperation.Builder>();
+        // per contact in the chunk: { index in contacts, first operation, contact id or -1 }
+        final ArrayList<int[]> members = new ArrayList<int[]>();
+        // user id : the index of its last contact, which is the one written
+        final HashMap<String, Integer> last = new HashMap<String, Integer>();
+        if (existing != null) {
+            for (int ix = 0; ix < contacts.size(); ix++) {
+                final String userId = contacts.get(ix).getTigrUid();
+                if (userId != null) {
+                    last.put(userId, Integer.valueOf(ix));
                 }
             }
-            // Case 3: add new
-            else if ((designator.length() > 0) && (currentDesig.length() <= 0)) {
-                ops.add(ContentProviderOperation.newInsert(ContactsContract.Data.CONTENT_URI)
-                        .withValue(ContactsContract.Data.RAW_CONTACT_ID, contactId)
-                        .withValue(ContactsContract.Data.MIMETYPE, Constants.MIME_DESIGNATOR)
-                        .withValue(ContactsContract.Data.DATA1, designator)
-                        .build());
-            }
         }
 
-        // Branch
-        {
-            String branch = lw.getBranch();
-            String currentBranch = r.getBranch();
-            if (branch == null) branch = "";
-            if (currentBranch == null) currentBranch = "";
-
-            // Case 1: update
-            if ((branch.length() > 0) && (currentBranch.length() > 0)) {
-                ops.add(ContentProviderOperation.newUpdate(ContactsContract.Data.CONTENT_URI)
-                        .withSelection(ContactsContract.Data.RAW_CONTACT_ID + "=? AND "
-                                       + ContactsContract.Data.MIMETYPE + "=?",
-                                       new String[] {String.valueOf(contactId), Constants.MIME_BRANCH,})
-                        .withValue(ContactsContract.Data.DATA1, branch)
-                        .build());
-            }
-            // Case 2: remove existing
-            else if ((branch.length() <= 0) && (currentBranch.length() > 0)) {
-                Uri dataUri = hasData(Constants.MIME_BRANCH, contactId);
-                if (dataUri != null) {
-                    ops.add(ContentProviderOperation.newDelete(dataUri).build());
+        for (int ix = 0; ix < contacts.size(); ix++) {
+            final Contact lw = contacts.get(ix);
+            final Integer written = last.get(lw.getTigrUid());
+            if (written != null && written.intValue() != ix) {
+                continue;
+            }
+            final Contact r = (existing == null) ? null : existing.get(lw.getTigrUid());
+            if (r != null && !(r.getRawContactId() > 0)) {
+                continue;
+            }
+            final Map<String, DataRow> rows = (r == null) ? null
+                : stored.get(Integer.valueOf(r.getRawContactId()));
+            int start = chunk.size();
+            appendContact(lw, r, rows, chunk);
+            if (chunk.size() == start) {
+                // nothing has changed
+                results[ix] = Uri.withAppendedPath(ContactsContract.RawContacts.CONTENT_URI,
+                                                   String.valueOf(r.getRawContactId()));
+                continue;
+            }
+            if (chunk.size() > BATCH_OPS_MAX && start > 0) {
+                // this contact starts the next batch
+                while (chunk.size() > start) {
+                    chunk.remove(chunk.size() - 1);
                 }
+                applyChunk(chunk, members, results);
+                start = 0;
+                appendContact(lw, r, rows, chunk);
             }
-            // Case 3: add new
-            else if ((branch.length() > 0) && (currentBranch.length() <= 0)) {
-                ops.add(ContentProviderOperation.newInsert(ContactsContract.Data.CONTENT_URI)
-                        .withValue(ContactsContract.Data.RAW_CONTACT_ID, contactId)
-                        .withValue(ContactsContract.Data.MIMETYPE, Constants.MIME_BRANCH)
-                        .withValue(ContactsContract.Data.DATA1, branch)
-                        .build());
+            members.add(new int[] {ix, start, (r == null) ? -1 : r.getRawContactId()});
+        }
+        applyChunk(chunk, members, results);
+        for (int ix = 0; ix < contacts.size(); ix++) {
+            final Integer written = last.get(contacts.get(ix).getTigrUid());
+            if (written != null) {
+                results[ix] = results[written.intValue()];
             }
         }
+        return Arrays.asList(results);
+    }
 
-        // Structured name
-        {
-            ContentProviderOperation.Builder snb = ContentProviderOperation.newUpdate(ContactsContract.Data.CONTENT_URI)
-                .withSelection(ContactsContract.Data.RAW_CONTACT_ID + "=? AND "
-                               + ContactsContract.Data.MIMETYPE + "=?",
-                               new String[] {String.valueOf(contactId),
-                                             ContactsContract.CommonDataKinds.StructuredName.CONTENT_ITEM_TYPE,});
-            String firstname = lw.getName();
-            if (firstname == null) firstname = "";
-            if (firstname.length() > 0) {
-                snb.withValue(ContactsContract.CommonDataKinds.StructuredName.GIVEN_NAME, firstname);
-            }
-            String lastname = lw.getLastName();
-            if (lastname == null) lastname = "";
-            if (lastname.length() > 0) {
-                snb.withValue(ContactsContract.CommonDataKinds.StructuredName.FAMILY_NAME, lastname);
-            }
-            String middlename = lw.getMiddleName();
-            if (middlename == null) middlename = "";
-            if (middlename.length() > 0) {
-                snb.withValue(ContactsContract.CommonDataKinds.StructuredName.MIDDLE_NAME, middlename);
+    private void appendContact(Contact lw, Contact r, Map<String, DataRow> stored,
+                               ArrayList<ContentProviderOperation.Builder> ops) {
+        if (r == null) {
+            buildInsertOperations(lw, ops);
+        } else {
+            buildUpdateOperations(lw, r, r.getRawContactId(),
+                                  (stored == null) ? new HashMap<String, DataRow>() : stored, ops);
+        }
+    }
+
+    /**
+     * Apply the operations of the chunk, record the result of each of its
+     * contacts and empty it.
+     */
+    private void applyChunk(ArrayList<ContentProviderOperation.Builder> chunk,
+                            ArrayList<int[]> members, Uri[] results) {
+        if (chunk.isEmpty()) {
+            members.clear();
+            return;
+        }
+        try {
+            ContentProviderResult[] cpres = mResolver.applyBatch(ContactsContract.AUTHORITY,
+                                                                 buildAll(chunk));
+            for (int[] member : members) {
+                results[member[0]] = (member[2] < 0)
+                    ? cpres[member[1]].uri
+                    : Uri.withAppendedPath(ContactsContract.RawContacts.CONTENT_URI,
+                                           String.valueOf(member[2]));
             }
+        } catch (Exception ex) {
+            Log.e(TAG, "Exception encoutered while writing " + members.size() + " contacts: " + ex);
+        }
+        chunk.clear();
+        members.clear();
+    }
 
-            // The display name should be the user id
-            String displayName = "";
-            String userId = r.getUserId();  // Existing value, because it shouldn't be changing
-            if (userId != null && userId.length() > 0) {
-                displayName = userId;
+    /**
+     * Find the stored contacts with the user ids.
+     *
+     * @return the contacts found by user id, null if a query failed
+     */
+    HashMap<String, Contact> getContactsByUserIds(List<String> userIds) {
+        final HashMap<String, Contact> found = new HashMap<String, Contact>(userIds.size());
+        final ArrayList<String> contactIds = new ArrayList<String>(userIds.size());
+        for (int start = 0; start < userIds.size(); start += QUERY_ARGS_MAX - 1) {
+            final int end = Math.min(start + QUERY_ARGS_MAX - 1, userIds.size());
+            final StringBuilder selection = new StringBuilder()
+                .append(Data.MIMETYPE).append("=? AND ").append(Data.DATA1).append(" IN (");
+            final String[] selectionArgs = new String[end - start + 1];
+            selectionArgs[0] = Constants.MIME_USERID;
+            for (int ix = start; ix < end; ++ix) {
+                selection.append((ix == start) ? "?" : ",?");
+                selectionArgs[ix - start + 1] = userIds.get(ix);
+            }
+            selection.append(')');
+
+            Cursor c = null;
+            try {
+                c = mResolver.query(Data.CONTENT_URI, new String[] {Data.CONTACT_ID},
+                                    selection.toString(), selectionArgs, null);
+                if (c == null) {
+                    Log.e(TAG, "getContactsByUserIds() -- cursor is null");
+                    return null;
+                }
+                while (c.moveToNext()) {
+                    contactIds.add(c.getString(0));
+                }
+            } catch (Throwable e) {
+                Log.e(TAG, "Exception: " + e.getMessage());
+                e.printStackTrace();
+                return null;
+            } finally {
+                if (c != null) {
+                    c.close();
+                }
             }
-            if (displayName.length() > 0) {
-                snb.withValue(ContactsContract.CommonDataKinds.StructuredName.DISPLAY_NAME, displayName);
+        }
+        if (contactIds.isEmpty()) {
+            return found;
+        }
+        final HashMap<Integer, Contact> byId = getContactsByContactIds(contactIds);
+        if (byId == null) {
+            return null;
+        }
+        for (Contact lw : byId.values()) {
+            if (lw.getUserId() != null) {
+                found.put(lw.getUserId(), lw);
             }
-
-
-            ops.add(snb.build());
         }
+        return found;
+    }
 
-        // Unit info
+    //========================================================
+    //
+    // buildUpdateOperations()
+    //
+    // Append the operations which bring the stored data rows of the
+    // existing contact r, whose (raw) contact id is contactId, to the
+    // values in lw. Only the rows whose values differ are written,
+    // and only the columns which differ.
+    //========================================================
+    private void buildUpdateOperations(Contact lw, Contact r, int contactId,
+                                       Map<String, DataRow> stored,
+                                       ArrayList<ContentProviderOperation.Builder> ops) {
+        // The single valued kinds; an empty value removes the row.
+        // userid is a special case -- don't allow updates
+        diffDataRow(Constants.MIME_CALLSIGN, contactId, single(lw.getCallSign()), true, stored, ops);
+        diffDataRow(Constants.MIME_USERID_NUM, contactId, single(lw.getUserIdNumber()), true, stored, ops);
+        diffDataRow(Constants.MIME_RANK, contactId, single(lw.getRank()), true, stored, ops);
+        diffDataRow(Constants.MIME_DESIGNATOR, contactId, single(lw.getDesignator()), true, stored, ops);
+        diffDataRow(Constants.MIME_BRANCH, contactId, single(lw.getBranch()), true, stored, ops);
+
+        // Structured name, only updated; an empty name part is left as it is.
+        // The display name should be the user id, the existing value
+        // because it shouldn't be changing. It is written with any change
+        // to the row, else the provider rebuilds it from the name parts.
         {
-            String unit = lw.getUnit();
-            String currentUnit = r.getUnit();
-            if (unit == null) unit = "";
-            if (currentUnit == null) currentUnit = "";
-
-            // Case 1: update
-            if ((unit.length() > 0) && (currentUnit.length() > 0)) {
-                ContentProviderOperation.Builder opUnit = ContentProviderOperation.newUpdate(ContactsContract.Data.CONTENT_URI);
-
-                opUnit.withSelection(ContactsContract.Data.RAW_CONTACT_ID + "=? AND "
-                                     + ContactsContract.Data.MIMETYPE + "=?",
-                                     new String[] {String.valueOf(contactId), Constants.MIME_UNIT_NAME })
-                    .withValue(ContactsContract.Data.DATA1, unit);
-
-                String division = lw.getUnitDivision();
-                if (division == null) division = "";
-                if (division.length() > 0)
-                    {
-                        opUnit.withValue(ContactsContract.Data.DATA2, division);
-                    }
-
-                String brigade = lw.getUnitBrigade();
-                if (brigade == null) brigade = "";
-                if (brigade.length() > 0)
-                    {
-                        opUnit.withValue(ContactsContract.Data.DATA3, brigade);
-                    }
+            String[] name = new String[DATA_COLUMNS.length];
+            name[0] = nonEmpty(r.getUserId());    // DISPLAY_NAME
+            name[1] = nonEmpty(lw.getName());     // GIVEN_NAME
+            name[2] = nonEmpty(lw.getLastName()); // FAMILY_NAME
+            name[4] = nonEmpty(lw.getMiddleName()); // MIDDLE_NAME
+            diffDataRow(StructuredName.CONTENT_ITEM_TYPE, contactId, name, false, 0, stored, ops);
+        }
 
-                String battalion = lw.getUnitBattalion();
-                if (battalion == null) battalion = "";
-                if (battalion.length() > 0)
-                    {
-                        opUnit.withValue(ContactsContract.Data.DATA4, battalion);
-                    }
+        // Unit info; an empty unit removes the row, an empty part of the
+        // hierarchy is left as it is.
+        {
+            String[] unit = null;
+            if (nonEmpty(lw.getUnit()) != null) {
+                unit = new String[DATA_COLUMNS.length];
+                unit[0] = lw.getUnit();
+                unit[1] = nonEmpty(lw.getUnitDivision());
+                unit[2] = nonEmpty(lw.getUnitBrigade());
+                unit[3] = nonEmpty(lw.getUnitBattalion());
+                unit[4] = nonEmpty(lw.getUnitCompany());
+                unit[5] = nonEmpty(lw.getUnitPlatoon());
+                unit[6] = nonEmpty(lw.getUnitSquad());
+            }
+            diffDataRow(Constants.MIME_UNIT_NAME, contactId, unit, true, stored, ops);
+        }
+    }
 
-                String company = lw.getUnitCompany();
-                if (company == null) company = "";
-                if (company.length() > 0)
-                    {
-                        opUnit.withValue(ContactsContract.Data.DATA5, company);
-                    }
+    private static String nonEmpty(String value) {
+        return (value == null || value.length() < 1) ? null : value;
+    }
 
-                String platoon = lw.getUnitPlatoon();
-                if (platoon == null) platoon = "";
-                if (platoon.length() > 0)
-                    {
-                        opUnit.withValue(ContactsContract.Data.DATA6, platoon);
-                    }
+    /**
+     * @return the values of a single valued kind, null if it has none
+     */
+    private static String[] single(String value) {
+        if (nonEmpty(value) == null) {
+            return null;
+        }
+        String[] values = new String[DATA_COLUMNS.length];
+        values[0] = value;
+        return values;
+    }
 
-                String squad = lw.getUnitSquad();
-                if (squad == null) squad = "";
-                if (squad.length() > 0)
-                    {
-                        opUnit.withValue(ContactsContract.Data.DATA7, squad);
-                    }
+    //========================================================
+    //
+    // diffDataRow()
+    //
+    // Append the operation, if any, which brings the stored row of
+    // the mimetype to the wanted values:
+    //   - wanted is null: delete the stored row
+    //   - no stored row: insert one, if insertAllowed
+    //   - otherwise: update the columns which differ, if any
+    // A null entry in wanted leaves that column as it is. The kept
+    // column, if not negative, is written by any update of the row
+    // whether or not it differs.
+    //========================================================
+    private static void diffDataRow(String mimetype, int contactId, String[] wanted,
+                                    boolean insertAllowed, Map<String, DataRow> stored,
+                                    ArrayList<ContentProviderOperation.Builder> ops) {
+        diffDataRow(mimetype, contactId, wanted, insertAllowed, -1, stored, ops);
+    }
 
-                ops.add(opUnit.build());
-            }
-            // Case 2: remove existing
-            else if ((unit.length() <= 0) && (currentUnit.length() > 0)) {
-                Uri dataUri = hasData(Constants.MIME_UNIT_NAME, contactId);
-                if (dataUri != null) {
-                    ops.add(ContentProviderOperation.newDelete(dataUri).build());
+    private static void diffDataRow(String mimetype, int contactId, String[] wanted,
+                                    boolean insertAllowed, int kept, Map<String, DataRow> stored,
+                                    ArrayList<ContentProviderOperation.Builder> ops) {
+        final DataRow row = stored.get(mimetype);
+        if (wanted == null) {
+            if (row != null) {
+                ops.add(ContentProviderOperation.newDelete(
+                            ContentUris.withAppendedId(Data.CONTENT_URI, row.id)));
+            }
+            return;
+        }
+        if (row == null) {
+            if (!insertAllowed) {
+                return;
+            }
+            ContentProviderOperation.Builder insert = ContentProviderOperation.newInsert(Data.CONTENT_URI)
+                .withValue(Data.RAW_CONTACT_ID, contactId)
+                .withValue(Data.MIMETYPE, mimetype);
+            for (int ix = 0; ix < DATA_COLUMNS.length; ix++) {
+                if (wanted[ix] != null) {
+                    insert.withValue(DATA_COLUMNS[ix], wanted[ix]);
                 }
             }
-            // Case 3: add new
-            else if ((unit.length() > 0) && (currentUnit.length() <= 0)) {
-                /*
-                // Add unit "combined name" only to DATA1, without breakdown
-                ops.add(ContentProviderOperation.newInsert(ContactsContract.Data.CONTENT_URI)
-                .withValue(ContactsContract.Data.RAW_CONTACT_ID, contactId)
-                .withValue(ContactsContract.Data.MIMETYPE, Constants.MIME_UNIT_NAME)
-                .withValue(ContactsContract.Data.DATA1, unit)
-                .build());
-                */
-
-                ContentProviderOperation.Builder opUnitInsert = ContentProviderOperation.newInsert(ContactsContract.Data.CONTENT_URI);
-                opUnitInsert.withValue(ContactsContract.Data.RAW_CONTACT_ID, contactId);
-                opUnitInsert.withValue(ContactsContract.Data.MIMETYPE, Constants.MIME_UNIT_NAME);
-                opUnitInsert.withValue(ContactsContract.Data.DATA1, unit);
-
-                String division = lw.getUnitDivision();
-                if (division == null) division = "";
-                if (division.length() > 0)
-                    {
-                        opUnitInsert.withValue(ContactsContract.Data.DATA2, division);
-                    }
-
-                String brigade = lw.getUnitBrigade();
-                if (brigade == null) brigade = "";
-                if (brigade.length() > 0)
-                    {
-                        opUnitInsert.withValue(ContactsContract.Data.DATA3, brigade);
-                    }
-
-                String battalion = lw.getUnitBattalion();
-                if (battalion == null) battalion = "";
-                if (battalion.length() > 0)
-                    {
-                        opUnitInsert.withValue(ContactsContract.Data.DATA4, battalion);
-                    }
-
-                String company = lw.getUnitCompany();
-                if (company == null) company = "";
-                if (company.length() > 0)
-                    {
-                        opUnitInsert.withValue(ContactsContract.Data.DATA5, company);
-                    }
-
-                String platoon = lw.getUnitPlatoon();
-                if (platoon == null) platoon = "";
-                if (platoon.length() > 0)
-                    {
-                        opUnitInsert.withValue(ContactsContract.Data.DATA6, platoon);
-                    }
-
-                String squad = lw.getUnitSquad();
-                if (squad == null) squad = "";
-                if (squad.length() > 0)
-                    {
-                        opUnitInsert.withValue(ContactsContract.Data.DATA7, squad);
-                    }
-                ops.add(opUnitInsert.build());
+            ops.add(insert);
+            return;
+        }
+        ContentProviderOperation.Builder update = null;
+        for (int ix = 0; ix < DATA_COLUMNS.length; ix++) {
+            if (wanted[ix] == null || wanted[ix].equals(row.values[ix])) {
+                continue;
             }
-
+            if (update == null) {
+                update = ContentProviderOperation.newUpdate(
+                    ContentUris.withAppendedId(Data.CONTENT_URI, row.id));
+            }
+            update.withValue(DATA_COLUMNS[ix], wanted[ix]);
         }
-
-        // Apply the content provider operations
-        Uri uriToModify = null;
-        try {
-            ContentProviderResult[] cpres = cr.applyBatch(ContactsContract.AUTHORITY, ops);
-            uriToModify = cpres[0].uri;
-        } catch (Exception ex) {
-            Log.e(TAG, "Exception encoutered while updating contact: " + ex.toString());
-            return null;
+        if (update != null) {
+            if (kept >= 0 && wanted[kept] != null) {
+                update.withValue(DATA_COLUMNS[kept], wanted[kept]);
+            }
+            ops.add(update);
         }
-
-        return uriToModify;
     }
 
     //========================================================
     //
-    // insertContactEntry()
+    // getDataRows()
     //
     //========================================================
     /**
-     * Add a new contact to the contacts storage provider.
-     * 
-     * Example usage:
-     * 
-     * <pre>
-     * {@code
-     * AmmoContacts.Contact contact = new AmmoContacts.Contact();
-     * contact.setName("Foo");
-     * contact.setLastName("Bar");
-     * contact.setUserId("foo.bar");
-     * Uri rval = ac.insertContactEntry(contact);
-     * }
-     * </pre>
-     * 
-     * @param lw A Contact object corresponding to the contact data to insert.
-     * @return The URI of the inserted contact if successful, null otherwise.
+     * Read the stored data rows of the contacts, one query per
+     * QUERY_ARGS_MAX contacts. Should a contact have more than one row of a
+     * mimetype, the first is taken.
+     *
+     * @param contactIds the ids as used in the RAW_CONTACT_ID selection of
+     *            the update operations
+     * @return contact id : mimetype : row, null if a query failed
      */
-    public Uri insertContactEntry(Contact lw) {
-        Log.d(TAG, "Adding person: " + lw.getName() + " " + lw.getLastName() + " ... " + lw.getTigrUid() );
-
-        ContentResolver cr = mResolver;
-
-        /**
-         *  Prepare contact creation request
-         *  Note: We use RawContacts because this data must be associated with a particular account.
-         *       The system will aggregate this with any other data for this contact and create a
-         *       corresponding entry in the ContactsContract.Contacts provider for us.
-         */
-        ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>();
+    HashMap<Integer, Map<String, DataRow>> getDataRows(List<Integer> contactIds) {
+        final HashMap<Integer, Map<String, DataRow>> rows =
+            new HashMap<Integer, Map<String, DataRow>>(contactIds.size());
+        for (Integer contactId : contactIds) {
+            rows.put(contactId, new HashMap<String, DataRow>());
+        }
+        for (int start = 0; start < contactIds.size(); start += QUERY_ARGS_MAX) {
+            final int end = Math.min(start + QUERY_ARGS_MAX, contactIds.size());
+            final StringBuilder selection = new StringBuilder().append(Data.RAW_CONTACT_ID).append(" IN (");
+            final String[] selectionArgs = new String[end - start];
+            for (int ix = start; ix < end; ++ix) {
+                selection.append((ix == start) ? "?" : ",?");
+                selectionArgs[ix - start] = contactIds.get(ix).toString();
+            }
+            selection.append(')');
+
+            Cursor c = null;
+            try {
+                c = mResolver.query(Data.CONTENT_URI, DATA_ROW_PROJECTION, selection.toString(),
+                                    selectionArgs, null);
+                if (c == null) {
+                    Log.e(TAG, "getDataRows() -- cursor is null");
+                    return null;
+                }
+                while (c.moveToNext()) {
+                    final Map<String, DataRow> contact = rows.get(Integer.valueOf(c.getInt(1)));
+                    final String mimetype = c.getString(2);
+                    if (contact == null || mimetype == null || contact.containsKey(mimetype)) {
+                        continue;
+                    }
+                    final String[] values = new String[DATA_COLUMNS.length];
+                    for (int ix = 0; ix < values.length; ix++) {
+                        values[ix] = c.getString(3 + ix);
+                    }
+                    contact.put(mimetype, new DataRow(c.getLong(0), values));
+                }
+            } catch (Throwable e) {
+                Log.e(TAG, "Exception: " + e.getMessage());
+                e.printStackTrace();
+                return null;
+            } finally {
+                if (c != null) {
+                    c.close();
+                }
+            }
+        }
+        return rows;
+    }
 
+    //========================================================
+    //
+    // buildInsertOperations()
+    //
+    // Append the operations which insert the contact lw. The data
+    // rows refer back to the raw contact insert, the first of them.
+    //
+    // Returns the index of the raw contact insert.
+    //========================================================
+    private int buildInsertOperations(Contact lw, ArrayList<ContentProviderOperation.Builder> ops) {
+        final int rawIndex = ops.size();
         ops.add(ContentProviderOperation.newInsert(ContactsContract.RawContacts.CONTENT_URI)
                 .withValue(ContactsContract.RawContacts.ACCOUNT_TYPE, Constants.AMMO_ACCOUNT_TYPE)
-                .withValue(ContactsContract.RawContacts.ACCOUNT_NAME, Constants.AMMO_DEFAULT_ACCOUNT_NAME)
-                .build());
+                .withValue(ContactsContract.RawContacts.ACCOUNT_NAME, Constants.AMMO_DEFAULT_ACCOUNT_NAME));
 
         String callsign = lw.getCallSign();
         if (callsign == null) callsign = "";
         if (callsign.length() > 0)
             ops.add(ContentProviderOperation.newInsert(ContactsContract.Data.CONTENT_URI)
-                    .withValueBackReference(ContactsContract.Data.RAW_CONTACT_ID, 0)
+                    .withValueBackReference(ContactsContract.Data.RAW_CONTACT_ID, rawIndex)
                     .withValue(ContactsContract.Data.MIMETYPE, Constants.MIME_CALLSIGN)
-                    .withValue(ContactsContract.Data.DATA1, callsign)
-                    .build());
+                    .withValue(ContactsContract.Data.DATA1, callsign));
 
 
         String phone = lw.getPhone();
@@ -998,20 +1201,19 @@ public class AmmoContacts {
         if (email == null) email = "";
         if (email.length() > 0)
             ops.add(ContentProviderOperation.newInsert(ContactsContract.Data.CONTENT_URI)
-                    .withValueBackReference(ContactsContract.Data.RAW_CONTACT_ID, 0)
+                    .withValueBackReference(ContactsContract.Data.RAW_CONTACT_ID, rawIndex)
                     .withValue(ContactsContract.Data.MIMETYPE,
                                ContactsContract.CommonDataKinds.Email.CONTENT_ITEM_TYPE)
                     .withValue(ContactsContract.CommonDataKinds.Email.DATA, email)
                     .withValue(ContactsContract.CommonDataKinds.Email.TYPE,
-                               ContactsContract.CommonDataKinds.Email.TYPE_WORK)
-                    .build());
+                               ContactsContract.CommonDataKinds.Email.TYPE_WORK));
 
         String unit = lw.getUnit();
         if (unit == null) unit = "";
         if (unit.length() > 0)
             {
                 ContentProviderOperation.Builder opbld = ContentProviderOperation.newInsert(ContactsContract.Data.CONTENT_URI);
-                opbld.withValueBackReference(ContactsContract.Data.RAW_CONTACT_ID, 0);
+                opbld.withValueBackReference(ContactsContract.Data.RAW_CONTACT_ID, rawIndex);
                 opbld.withValue(ContactsContract.Data.MIMETYPE, Constants.MIME_UNIT_NAME);
                 opbld.withValue(ContactsContract.Data.DATA1, unit);
 
@@ -1056,7 +1258,7 @@ public class AmmoContacts {
                     {
                         opbld.withValue(ContactsContract.Data.DATA7, squad);
                     }
-                ops.add(opbld.build());
+                ops.add(opbld);
 
             }
 
@@ -1064,49 +1266,44 @@ public class AmmoContacts {
         if (userId == null) userId = "";
         if (userId.length() > 0)
             ops.add(ContentProviderOperation.newInsert(ContactsContract.Data.CONTENT_URI)
-                    .withValueBackReference(ContactsContract.Data.RAW_CONTACT_ID, 0)
+                    .withValueBackReference(ContactsContract.Data.RAW_CONTACT_ID, rawIndex)
                     .withValue(ContactsContract.Data.MIMETYPE, Constants.MIME_USERID)
-                    .withValue(ContactsContract.Data.DATA1, userId)
-                    .build());
+                    .withValue(ContactsContract.Data.DATA1, userId));
 
         String userIdNum = lw.getUserIdNumber();
         if (userIdNum == null) userIdNum = "";
         if (userIdNum.length() > 0)
             ops.add(ContentProviderOperation.newInsert(ContactsContract.Data.CONTENT_URI)
-                    .withValueBackReference(ContactsContract.Data.RAW_CONTACT_ID, 0)
+                    .withValueBackReference(ContactsContract.Data.RAW_CONTACT_ID, rawIndex)
                     .withValue(ContactsContract.Data.MIMETYPE, Constants.MIME_USERID_NUM)
-                    .withValue(ContactsContract.Data.DATA1, userIdNum)
-                    .build());
+                    .withValue(ContactsContract.Data.DATA1, userIdNum));
 
         String designator = lw.getDesignator();
         if (designator == null) designator = "";
         if (designator.length() > 0)
             ops.add(ContentProviderOperation.newInsert(ContactsContract.Data.CONTENT_URI)
-                    .withValueBackReference(ContactsContract.Data.RAW_CONTACT_ID, 0)
+                    .withValueBackReference(ContactsContract.Data.RAW_CONTACT_ID, rawIndex)
                     .withValue(ContactsContract.Data.MIMETYPE, Constants.MIME_DESIGNATOR)
-                    .withValue(ContactsContract.Data.DATA1, designator)
-                    .build());
+                    .withValue(ContactsContract.Data.DATA1, designator));
 
         String rank = lw.getRank();
         if (rank == null) rank = "";
         if (rank != null && rank.length() > 0)
             ops.add(ContentProviderOperation.newInsert(ContactsContract.Data.CONTENT_URI)
-                    .withValueBackReference(ContactsContract.Data.RAW_CONTACT_ID, 0)
+                    .withValueBackReference(ContactsContract.Data.RAW_CONTACT_ID, rawIndex)
                     .withValue(ContactsContract.Data.MIMETYPE, Constants.MIME_RANK)
-                    .withValue(ContactsContract.Data.DATA1, rank)
-                    .build());
+                    .withValue(ContactsContract.Data.DATA1, rank));
 
         String branch = lw.getBranch();
         if (branch == null) branch = "";
         if (branch.length() > 0)
             ops.add(ContentProviderOperation.newInsert(ContactsContract.Data.CONTENT_URI)
-                    .withValueBackReference(ContactsContract.Data.RAW_CONTACT_ID, 0)
+                    .withValueBackReference(ContactsContract.Data.RAW_CONTACT_ID, rawIndex)
                     .withValue(ContactsContract.Data.MIMETYPE, Constants.MIME_BRANCH)
-                    .withValue(ContactsContract.Data.DATA1, branch)
-                    .build());
+                    .withValue(ContactsContract.Data.DATA1, branch));
 
         ContentProviderOperation.Builder snb = ContentProviderOperation.newInsert(ContactsContract.Data.CONTENT_URI)
-            .withValueBackReference(ContactsContract.Data.RAW_CONTACT_ID, 0)
+            .withValueBackReference(ContactsContract.Data.RAW_CONTACT_ID, rawIndex)
             .withValue(ContactsContract.Data.MIMETYPE,
                        ContactsContract.CommonDataKinds.StructuredName.CONTENT_ITEM_TYPE);
 
@@ -1150,23 +1347,23 @@ public class AmmoContacts {
         if (displayName.length() > 0) {
             snb.withValue(ContactsContract.CommonDataKinds.StructuredName.DISPLAY_NAME, displayName);
         }
-        ops.add(snb.build());
-
-        // Ask the Contact provider to create a new contact
-        Log.d(TAG,"Selected account: " + "ammo" + " (" + "ammo" + ")");
+        ops.add(snb);
         Log.d(TAG,"Creating contact: " + displayName);
-        try {
-            if (cr != null) {
-                ContentProviderResult[] cpres = cr.applyBatch(ContactsContract.AUTHORITY, ops);
-                return cpres[0].uri;
-            } else {
-                Log.w(TAG, "Content resolver is null -- will not add contact");
-            }
-        } catch (Exception ex) {
-            Log.e(TAG,"Exception encoutered while inserting contact: " + ex);
-        }
+        return rawIndex;
+    }
 
-        return null;
+    //========================================================
+    //
+    // buildAll()
+    //
+    //========================================================
+    private static ArrayList<ContentProviderOperation> buildAll(
+            List<ContentProviderOperation.Builder> builders) {
+        ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>(builders.size());
+        for (ContentProviderOperation.Builder builder : builders) {
+            ops.add(builder.build());
+        }
+        return ops;
     }
 
     //========================================================
@@ -1190,7 +1387,7 @@ public class AmmoContacts {
         ContentResolver cr = mResolver;
 
         // First find existing record so we can delete it
-        Contact r = getContactByUserId(lw.getTigrUid());
+        Contact r = queryContactByUserId(lw.getTigrUid());
 
         if (r == null) {
             Log.d(TAG, "       no such user to delete, no further action taken");
@@ -1237,6 +1434,16 @@ public class AmmoContacts {
     // searchForContact()
     //
     //========================================================
+    /**
+     * Find the contacts whose names match the search term.
+     * <p>
+     * The contacts provider's filter selects the matching contacts; their
+     * data is then read by one data query per QUERY_ARGS_MAX contacts rather
+     * than one per contact, see getContactsFromData().
+     *
+     * @return the matching contacts in the order of the filter, null if
+     *         there are none or the query failed.
+     */
     public ArrayList<Contact> searchForContact(String searchTerm) {
         if (Log.isLoggable(TAG, Log.VERBOSE)) {
             Log.d(TAG,"searchForContact() ");
@@ -1244,16 +1451,9 @@ public class AmmoContacts {
 
         Uri filterUri = Uri.withAppendedPath(Contacts.CONTENT_FILTER_URI, searchTerm);
 
-        String contactId = "";
-        String displayName = "";
-        String lookupKey =  "";
-
-        // Container to store search results
-        ArrayList<Contact> results = new ArrayList<Contact>();
-
         // Perform a query
         Cursor c = null;
-        String[] projection = {Contacts._ID, Contacts.DISPLAY_NAME, Contacts.LOOKUP_KEY};
+        String[] projection = {Contacts._ID};
         try {
             c = mResolver.query(filterUri, projection, null,null,null);
             if (c == null) {
@@ -1265,59 +1465,12 @@ public class AmmoContacts {
             return null;
         }
 
-        // Get data from the returned cursor
+        // Collect the ids of the matching contacts
+        final ArrayList<String> contactIds = new ArrayList<String>();
         try {
-            int count = c.getCount();
-            if (count <= 0) {
-                return null;
-            }
-
-            for (int i = 0; i < count; i++) {
-                c.moveToNext();
-                contactId = c.getString(0);
-                displayName = c.getString(1);
-                lookupKey =  c.getString(2);
-                Log.d(TAG,"Found contact: [" + contactId + "] " + displayName + "  " + lookupKey);
-
-                // Populate results container
-                AmmoContacts.Contact lw = new AmmoContacts.Contact();
-                String[] names = displayName.split(" ");
-                if (names.length > 0) {
-                    if (names[0] != null) {
-                        lw.setName(names[0]);
-                    }
-                }
-                if (names.length > 1) {
-                    if (names[1] != null) {
-                        lw.setLastName(names[1]);
-                    }
-                }
-
-                lw.setLookup(lookupKey);
-                lw.setRawContactId(Integer.parseInt(contactId));
-
-                // Get "other" data for this contact, i.e. with data query
-                String[] dataProjection = {"mimetype","data1","data2","data3","data4"};
-                ArrayList<HashMap<String, String>> extraData = getDataForContact(contactId, dataProjection);
-                if (extraData != null) {
-                    // If the data query failed (null), just keep what we've
-                    // got so far (name and lookup) and go on to the next row.
-                    // Otherwise get data, put in container.
-                    populateContactData(extraData, lw);
-                }
-                results.add(lw);
+            while (c.moveToNext()) {
+                contactIds.add(c.getString(0));
             }
-        } catch (IllegalArgumentException e) {
-            Log.e(TAG, "IllegalArgumentException: " + e.getMessage());
-            e.printStackTrace();
-            return null;
-        } catch (CursorIndexOutOfBoundsException e) {
-            Log.e(TAG, "Cursor out of bounds: " + e.getMessage());
-            e.printStackTrace();
-            return null;
-        } catch (ArrayIndexOutOfBoundsException e) {
-            Log.e(TAG, "Array index out of bounds: " + e.getMessage());
-            e.printStackTrace();
         } catch (Throwable e) {
             Log.e(TAG, "Exception: " + e.getMessage());
             e.printStackTrace();
@@ -1325,6 +1478,25 @@ public class AmmoContacts {
         } finally {
             c.close();
         }
+        if (contactIds.size() < 1) {
+            return null;
+        }
+
+        // Get the data for the matching contacts
+        final HashMap<Integer, Contact> found = getContactsByContactIds(contactIds);
+        if (found == null) {
+            return null;
+        }
+
+        // Container to store search results, in the order of the filter
+        ArrayList<Contact> results = new ArrayList<Contact>(found.size());
+        for (final String contactId : contactIds) {
+            final Contact lw = found.remove(Integer.valueOf(contactId));
+            if (lw != null) {
+                Log.d(TAG,"Found contact: [" + contactId + "] " + lw.getName() + "  " + lw.getLookup());
+                results.add(lw);
+            }
+        }
 
         // Return the container of results
         return results;
@@ -1342,33 +1514,8 @@ public class AmmoContacts {
             try {
                 HashMap<String, String> f = it.next();
                 if (f != null) {
-                    if (Constants.MIME_CALLSIGN.equals(f.get("mimetype"))) {
-                        lw.setCallSign(f.get("data1") );
-                    }
-                    if (Constants.MIME_RANK.equals(f.get("mimetype"))) {
-                        lw.setRank(f.get("data1") );
-                    }
-                    if (Constants.MIME_UNIT_NAME.equals(f.get("mimetype"))) {
-                        lw.setUnit(f.get("data1") );
-                    }
-                    if (Constants.MIME_USERID.equals(f.get("mimetype"))) {
-                        lw.setTigrUid(f.get("data1") );
-                    }
-                    if (Constants.MIME_USERID_NUM.equals(f.get("mimetype"))) {
-                        lw.setUserIdNumber(f.get("data1") );
-                    }
-                    if (Constants.MIME_DESIGNATOR.equals(f.get("mimetype"))) {
-                        lw.setDesignator(f.get("data1") );
-                    }
-                    if (Constants.MIME_BRANCH.equals(f.get("mimetype"))) {
-                        lw.setBranch(f.get("data1") );
-                    }
-
-                    if (StructuredName.CONTENT_ITEM_TYPE.equals(f.get("mimetype"))) {
-                        lw.setName(f.get("data2"));
-                        lw.setLastName(f.get("data3"));
-                    }
-
+                    applyDataRow(lw, f.get("mimetype"), f.get("data1"), f.get("data2"),
+                                 f.get("data3"), f.get("data4"));
                 }
             } catch (NoSuchElementException e) {
                 Log.e(TAG, "NoSuchElementException: " + e.getMessage());
@@ -1378,6 +1525,154 @@ public class AmmoContacts {
         }
     }
 
+    //========================================================
+    //
+    // applyDataRow()
+    //
+    // Copy one data row, by its mimetype, into the contact.
+    //========================================================
+    private static void applyDataRow(AmmoContacts.Contact lw, String mimetype,
+                                     String data1, String data2, String data3, String data4) {
+        if (mimetype == null) {
+            return;
+        }
+        if (Constants.MIME_CALLSIGN.equals(mimetype)) {
+            lw.setCallSign(data1);
+        } else if (Constants.MIME_RANK.equals(mimetype)) {
+            lw.setRank(data1);
+        } else if (Constants.MIME_UNIT_NAME.equals(mimetype)) {
+            lw.setUnit(data1);
+        } else if (Constants.MIME_USERID.equals(mimetype)) {
+            lw.setTigrUid(data1);
+        } else if (Constants.MIME_USERID_NUM.equals(mimetype)) {
+            lw.setUserIdNumber(data1);
+        } else if (Constants.MIME_DESIGNATOR.equals(mimetype)) {
+            lw.setDesignator(data1);
+        } else if (Constants.MIME_BRANCH.equals(mimetype)) {
+            lw.setBranch(data1);
+        } else if (StructuredName.CONTENT_ITEM_TYPE.equals(mimetype)) {
+            lw.setName(data2);
+            lw.setLastName(data3);
+        }
+    }
+
+    //========================================================
+    //
+    // getContactsFromData()
+    //
+    //========================================================
+    /**
+     * Read the contacts with a single query of the data table.
+     * <p>
+     * The rows are ordered by contact id, so the rows of a contact are
+     * adjacent and each contact is complete when the id changes. The name of
+     * a contact comes from its structured name; failing that from its
+     * display name, split at the first space as before.
+     *
+     * @param selection over the data table, null for all contacts
+     * @return the contacts in order of contact id, null if the query failed
+     */
+    ArrayList<Contact> getContactsFromData(String selection, String[] selectionArgs) {
+        Cursor c = null;
+        try {
+            c = mResolver.query(Data.CONTENT_URI, CONTACT_DATA_PROJECTION, selection, selectionArgs,
+                                Data.CONTACT_ID);
+            if (c == null) {
+                Log.e(TAG, "getContactsFromData() -- cursor is null");
+                return null;
+            }
+        } catch (Throwable e) {
+            Log.e(TAG, "Exception: " + e.getMessage());
+            e.printStackTrace();
+            return null;
+        }
+
+        ArrayList<Contact> results = new ArrayList<Contact>();
+        try {
+            long currentId = -1;
+            String displayName = null;
+            AmmoContacts.Contact lw = null;
+            while (c.moveToNext()) {
+                final long contactId = c.getLong(CD_CONTACT_ID);
+                if (lw == null || contactId != currentId) {
+                    finishContact(lw, displayName, results);
+                    currentId = contactId;
+                    displayName = c.getString(CD_DISPLAY_NAME);
+                    lw = new AmmoContacts.Contact();
+                    lw.setRawContactId((int) contactId);
+                    lw.setLookup(c.getString(CD_LOOKUP_KEY));
+                }
+                applyDataRow(lw, c.getString(CD_MIMETYPE), c.getString(CD_DATA1),
+                             c.getString(CD_DATA2), c.getString(CD_DATA3), c.getString(CD_DATA4));
+            }
+            finishContact(lw, displayName, results);
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "IllegalArgumentException: " + e.getMessage());
+            e.printStackTrace();
+            return null;
+        } catch (CursorIndexOutOfBoundsException e) {
+            Log.e(TAG, "Cursor out of bounds: " + e.getMessage());
+            e.printStackTrace();
+            return null;
+        } catch (Throwable e) {
+            Log.e(TAG, "Exception: " + e.getMessage());
+            e.printStackTrace();
+            return null;
+        } finally {
+            c.close();
+        }
+        return results;
+    }
+
+    /**
+     * Read the contacts with the ids, one data query per QUERY_ARGS_MAX ids.
+     *
+     * @return the contacts found by contact id, null if a query failed
+     */
+    HashMap<Integer, Contact> getContactsByContactIds(List<String> contactIds) {
+        final HashMap<Integer, Contact> found = new HashMap<Integer, Contact>(contactIds.size());
+        for (int start = 0; start < contactIds.size(); start += QUERY_ARGS_MAX) {
+            final int end = Math.min(start + QUERY_ARGS_MAX, contactIds.size());
+            final StringBuilder selection = new StringBuilder().append(Data.CONTACT_ID).append(" IN (");
+            for (int ix = start; ix < end; ++ix) {
+                selection.append((ix == start) ? "?" : ",?");
+            }
+            selection.append(')');
+            final String[] selectionArgs = contactIds.subList(start, end)
+                    .toArray(new String[end - start]);
+
+            final ArrayList<Contact> chunk = getContactsFromData(selection.toString(), selectionArgs);
+            if (chunk == null) {
+                return null;
+            }
+            for (final Contact lw : chunk) {
+                found.put(Integer.valueOf(lw.getRawContactId()), lw);
+            }
+        }
+        return found;
+    }
+
+    private static void finishContact(AmmoContacts.Contact lw, String displayName,
+                                      ArrayList<Contact> results) {
+        if (lw == null) {
+            return;
+        }
+        if (displayName == null) {
+            Log.e(TAG, "Error retrieving name for contact " + lw.getRawContactId());
+            return;
+        }
+        if (lw.getName() == null || lw.getLastName() == null) {
+            final String[] names = displayName.split(" ");
+            if (lw.getName() == null && names.length > 0) {
+                lw.setName(names[0]);
+            }
+            if (lw.getLastName() == null && names.length > 1) {
+                lw.setLastName(names[1]);
+            }
+        }
+        results.add(lw);
+    }
+
     //========================================================
     //
     // getDataForContact()
@@ -1447,84 +1742,35 @@ public class AmmoContacts {
         if (Log.isLoggable(TAG, Log.VERBOSE)) {
             Log.d(TAG,"getAllContacts() ");
         }
-        Uri contactsUri = Contacts.CONTENT_URI;
-
-        // Container to store found contacts
-        ArrayList<Contact> results = new ArrayList<Contact>();
 
-        // Perform a query
-        String[] projection = {Contacts._ID, Contacts.DISPLAY_NAME, Contacts.LOOKUP_KEY};
-        Cursor c = mResolver.query(contactsUri, projection, null,null,null);
-        if (c == null) {
+        // One query of the data table for all contacts
+        ArrayList<Contact> results = getContactsFromData(null, null);
+        if (results == null || results.size() < 1) {
             return null;
         }
+        return results;
+    }
 
-        // Populate container with stuff from query
-        try {
-            int count = c.getCount();
-            if (count <= 0) {
-                return null;
-            }
-
-            String contactId = "";
-            String displayName = "";
-            String lookupKey =  "";
-
-            for (int i = 0; i < count; i++) {
-                c.moveToNext();
-                contactId = c.getString(0);
-                displayName = c.getString(1);
-                lookupKey =  c.getString(2);
-                //Log.d(TAG,"Found contact: [" + contactId + "] " + displayName + "  " + lookupKey);
-
-                // Populate results container
-                AmmoContacts.Contact lw = new AmmoContacts.Contact();
-                if (displayName != null) {
-                    String[] names = displayName.split(" ");
-                    if (names.length > 0) {
-                        if (names[0] != null) {
-                            lw.setName(names[0]);
-                        }
-                    }
-                    if (names.length > 1) {
-                        if (names[1] != null) {
-                            lw.setLastName(names[1]);
-                        }
-                    }
-                } else {
-                    Log.e(TAG, "Error retrieving name for contact " + contactId);
-                    continue;
-                }
-                lw.setLookup(lookupKey);
-                lw.setRawContactId(Integer.parseInt(contactId));
-
-                String[] dataProjection = {"mimetype","data1","data2","data3","data4"};
-                ArrayList<HashMap<String, String>> extraData = getDataForContact(contactId, dataProjection);
-                if (extraData != null) {
-                    // populate other portions of Contact object
-                    populateContactData(extraData, lw);
-                }
-
-                results.add(lw);
-            }
-
-        } catch (IllegalArgumentException e) {
-            Log.e(TAG, "IllegalArgumentException: " + e.getMessage());
-            e.printStackTrace();
-            return null;
-        } catch (CursorIndexOutOfBoundsException e) {
-            Log.e(TAG, "Cursor out of bounds: " + e.getMessage());
-            e.printStackTrace();
-            return null;
-        } catch (Throwable e) {
-            Log.e(TAG, "Exception: " + e.getMessage());
-            e.printStackTrace();
-            return null;
-        } finally {
-            c.close();
+    //========================================================
+    //
+    // getContactChanges()
+    //
+    //========================================================
+    /**
+     * Get the contacts inserted, changed or deleted since the token. Only
+     * the contacts whose raw contacts' VERSION differs from the token, or
+     * which were added or removed, are read.
+     *
+     * @param since ContactChanges.Token.EMPTY for all contacts, otherwise
+     *            the token of the previous changes.
+     * @return the changes, with the token for the next call; null if a
+     *         query failed.
+     */
+    public ContactChanges getContactChanges(ContactChanges.Token since) {
+        if (since == null) {
+            throw new IllegalArgumentException("null sync token");
         }
-
-        return results;
+        return ContactChanges.since(this, mResolver, since);
     }
 
     //========================================================
@@ -1537,6 +1783,15 @@ public class AmmoContacts {
      *
      */
     public Contact getContactByLookupKey(String lookupKey) {
+        final ContactDirectory directory = mDirectory;
+        if (directory != null && directory.isLoaded()) {
+            // a stale or compound key is resolved by the lookup uri below
+            final Contact hit = directory.getByLookupKey(lookupKey);
+            if (hit != null) {
+                return hit;
+            }
+        }
+
         // Retrieve contact with provided uri
         Log.d(TAG,"getContactByLookupKey() ");
 
@@ -1590,6 +1845,14 @@ public class AmmoContacts {
     //
     //========================================================
     public Contact getContactByIdNumber(long idNumber) {
+        final ContactDirectory directory = mDirectory;
+        if (directory != null && directory.isLoaded()) {
+            final Contact hit = directory.getByIdNumber(String.valueOf(idNumber));
+            if (hit != null) {
+                return hit;
+            }
+        }
+
         // Retrieve contact with provided unique ID number
         Log.d(TAG,"getContactByIdNumber() ");
 
@@ -1729,6 +1992,21 @@ public class AmmoContacts {
      * 		if successful, null otherwise.
      */
     public Contact getContactByUserId(String userId) {
+        final ContactDirectory directory = mDirectory;
+        if (directory != null && directory.isLoaded()) {
+            final Contact hit = directory.getByUserId(userId);
+            if (hit != null) {
+                return hit;
+            }
+        }
+        return queryContactByUserId(userId);
+    }
+
+    /**
+     * Look up the contact in the provider, bypassing the directory, as
+     * updates and deletes must see the stored contact.
+     */
+    private Contact queryContactByUserId(String userId) {
         Log.d(TAG,"getContactByUserId() ");
 
         Uri f = Uri.parse("content://" + ContactsContract.AUTHORITY
@@ -1788,76 +2066,5 @@ public class AmmoContacts {
         }
     }
 
-    //========================================================
-    //
-    // hasData()
-    //
-    // Internal utility function to find if a given user has
-    // existing data for a given mimetype.
-    // Returns the URI of the data if it exists, null otherwise.
-    //========================================================
-    private Uri hasData(String mimeType, int contactId) {
-        ContentResolver cr = mResolver;
-
-        // The data URI for this contact
-        Uri dataUri = Uri.withAppendedPath(Uri.withAppendedPath(Contacts.CONTENT_URI,
-                                                                String.valueOf(contactId)), "data");
-        if (Log.isLoggable(TAG, Log.VERBOSE)) {
-            Log.d(TAG, "hasData()  data uri = " + dataUri.toString());
-        }
-
-        //Uri dataUri = Data.CONTENT_URI;
-        String[] projection = {Data._ID, Data.DATA1};
-        String selection=Data.MIMETYPE+"=? AND " + Data.RAW_CONTACT_ID +"=?";
-        String[] selectionArgs={mimeType, String.valueOf(contactId)};
-
-        // Query the contacts content provider
-        Cursor c = null;
-        try {
-            c = cr.query(dataUri, projection, selection, selectionArgs,null);
-            if (c == null) {
-                Log.e(TAG, "hasData() -- cursor is null");
-                return null;
-            }
-        } catch (Throwable e) {
-            Log.e(TAG, "Exception: " + e.getMessage());
-            e.printStackTrace();
-            return null;
-        }
-
-        // Process the query's output
-        try {
-            int count = c.getCount();
-            Log.d(TAG, "hasData() -- returned " + String.valueOf(count) + " rows");
-            if (count < 1) {
-                return null;
-            }
-            c.moveToFirst();
-            int dataRowId = c.getInt(c.getColumnIndex(Data._ID));
-
-            // If data was found, return the URI for the data row
-            Uri foundDataUri = Uri.withAppendedPath(Data.CONTENT_URI, String.valueOf(dataRowId));
-
-	    if (Log.isLoggable(TAG, Log.VERBOSE)) {
-		Log.d(TAG, "hasData()    uri= " + foundDataUri.toString());
-	    }
-            return foundDataUri;
-        } catch (IllegalArgumentException e) {
-            Log.e(TAG, "IllegalArgumentException: " + e.getMessage());
-            e.printStackTrace();
-            return null;
-        } catch (CursorIndexOutOfBoundsException e) {
-            Log.e(TAG, "Cursor out of bounds: " + e.getMessage());
-            e.printStackTrace();
-            return null;
-        } catch (Throwable e) {
-            Log.e(TAG, "Exception: " + e.getMessage());
-            e.printStackTrace();
-            return null;
-        } finally {
-            c.close();
-        }
-    }
-
 }
 
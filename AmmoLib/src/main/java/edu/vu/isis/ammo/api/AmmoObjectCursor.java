@@ -0,0 +1,171 @@
+/* Copyright (c) 2010-2015 Vanderbilt University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package edu.vu.isis.ammo.api;
+
+import android.database.AbstractCursor;
+import android.database.CursorIndexOutOfBoundsException;
+
+/**
+ * The common part of the cursors whose cells are held as {@code Object}s.
+ * The typed getters convert the value of the cell, which the subclass
+ * supplies through {@link #get(int)}.
+ */
+public abstract class AmmoObjectCursor extends AbstractCursor {
+
+    protected final String[] columnNames;
+    protected final int columnCount;
+
+    /**
+     * @param columnNames names of the columns, the ordering of which determines
+     *            column ordering elsewhere in this cursor
+     */
+    protected AmmoObjectCursor(String[] columnNames) {
+        this.columnNames = columnNames;
+        this.columnCount = columnNames.length;
+    }
+
+    /**
+     * Gets value at the given column for the current row.
+     */
+    protected abstract Object get(int column);
+
+    /**
+     * Check that the column and the current position name a cell.
+     *
+     * @param rowCount the rows which may be read
+     */
+    protected void checkCell(int column, int rowCount) {
+        if (column < 0 || column >= columnCount) {
+            throw new CursorIndexOutOfBoundsException("Requested column: "
+                    + column + ", # of columns: " + columnCount);
+        }
+        if (mPos < 0) {
+            throw new CursorIndexOutOfBoundsException("Before first row.");
+        }
+        if (mPos >= rowCount) {
+            throw new CursorIndexOutOfBoundsException("After last row.");
+        }
+    }
+
+    /**
+     * Ensures that the array has enough capacity, growing it by doubling.
+     *
+     * @param size the number of cells required
+     * @param limit the most cells the array should ever hold
+     * @return the array, or a larger copy of it
+     */
+    protected static Object[] ensureCapacity(Object[] data, int size, int limit) {
+        if (size <= data.length) {
+            return data;
+        }
+        int newSize = data.length * 2;
+        if (newSize < size) {
+            newSize = size;
+        }
+        if (newSize > limit) {
+            newSize = limit;
+        }
+        final Object[] grown = new Object[newSize];
+        System.arraycopy(data, 0, grown, 0, data.length);
+        return grown;
+    }
+
+    // AbstractCursor implementation.
+
+    @Override
+    public String[] getColumnNames() {
+        return columnNames;
+    }
+
+    @Override
+    public String getString(int column) {
+        Object value = get(column);
+        if (value == null)
+            return null;
+        return value.toString();
+    }
+
+    @Override
+    public short getShort(int column) {
+        Object value = get(column);
+        if (value == null)
+            return 0;
+        if (value instanceof Number)
+            return ((Number) value).shortValue();
+        return Short.parseShort(value.toString());
+    }
+
+    @Override
+    public int getInt(int column) {
+        Object value = get(column);
+        if (value == null)
+            return 0;
+        if (value instanceof Number)
+            return ((Number) value).intValue();
+        return Integer.parseInt(value.toString());
+    }
+
+    @Override
+    public long getLong(int column) {
+        Object value = get(column);
+        if (value == null)
+            return 0;
+        if (value instanceof Number)
+            return ((Number) value).longValue();
+        return Long.parseLong(value.toString());
+    }
+
+    @Override
+    public float getFloat(int column) {
+        Object value = get(column);
+        if (value == null)
+            return 0.0f;
+        if (value instanceof Number)
+            return ((Number) value).floatValue();
+        return Float.parseFloat(value.toString());
+    }
+
+    @Override
+    public double getDouble(int column) {
+        Object value = get(column);
+        if (value == null)
+            return 0.0d;
+        if (value instanceof Number)
+            return ((Number) value).doubleValue();
+        return Double.parseDouble(value.toString());
+    }
+
+    @Override
+    public byte[] getBlob(int column) {
+        Object value = get(column);
+        if (value == null)
+            return null;
+        if (value instanceof byte[])
+            return (byte[]) value;
+        return value.toString().getBytes();
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        return get(column) == null;
+    }
+}
@@ -21,24 +21,82 @@
 
 package edu.vu.isis.ammo.api;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.Intent;
 import android.database.Cursor;
+import edu.vu.isis.ammo.AmmoPreferenceChangedDispatcher;
 import edu.vu.isis.ammo.AmmoPreferenceReadOnlyAccess;
+import edu.vu.isis.ammo.IAmmoPreferenceChangedListener;
 import edu.vu.isis.ammo.core.provider.PreferenceSchema;
 
 public class AmmoPreference {
+    private static final Logger logger = LoggerFactory.getLogger("api.preference");
 
-    private static AmmoPreference instance = null;
-    @SuppressWarnings("unused")
+    private static volatile AmmoPreference instance = null;
     final private Context mContext;
     final private ContentResolver mContentResolver;
     final private boolean hasPermissionReadWrite;
 
+    /**
+     * A value read from the provider, it is only good for the type and
+     * default with which it was read, as the provider returns the default
+     * for a preference with no value.
+     */
+    private static final class Cached {
+        final String type;
+        final String defaultValue;
+        final Object value;
+
+        Cached(String type, String defaultValue, Object value) {
+            this.type = type;
+            this.defaultValue = defaultValue;
+            this.value = value;
+        }
+
+        boolean matches(String type, String defaultValue) {
+            return this.type.equals(type)
+                    && ((this.defaultValue == null) ? defaultValue == null
+                            : this.defaultValue.equals(defaultValue));
+        }
+    }
+
+    final private ConcurrentHashMap<String, Cached> mCache;
+    /** counts the invalidations, a read begun before one is not cached */
+    final private AtomicInteger mInvalidations;
+    private volatile boolean mCaching;
+    /** guarded by this */
+    private int mCacheUsers;
+    private IAmmoPreferenceChangedListener mListener;
+    final private CopyOnWriteArrayList<PreferenceView> mViews;
+
     private AmmoPreference(Context context, ContentResolver contentResolver) {
         mContext = context;
         mContentResolver = contentResolver;
+        mCache = new ConcurrentHashMap<String, Cached>();
+        mInvalidations = new AtomicInteger(0);
+        mCaching = false;
+        mCacheUsers = 0;
+        mViews = new CopyOnWriteArrayList<PreferenceView>();
 
         if (context.getApplicationInfo().packageName.startsWith("edu.vu.isis.ammo.core")) {
             hasPermissionReadWrite = true;
@@ -52,10 +110,152 @@ public class AmmoPreference {
     }
 
     public static AmmoPreference newInstance(Context context) {
-        if (instance == null) {
-            instance = new AmmoPreference(context, context.getContentResolver());
+        AmmoPreference result = instance;
+        if (result != null) {
+            return result;
+        }
+        synchronized (AmmoPreference.class) {
+            if (instance == null) {
+                instance = new AmmoPreference(context, context.getContentResolver());
+            }
+            return instance;
+        }
+    }
+
+    // =================================
+    // Preference Cache
+    // =================================
+    /**
+     * Serve reads from memory. A value is read from the provider the first
+     * time it is asked for and held until a preference changed broadcast,
+     * see PreferenceSchema.AMMO_PREF_CHANGED_ACTION, names its key. The
+     * broadcasts arrive through the AmmoPreferenceChangedDispatcher. Each
+     * startCache() should be matched by a stopCache(), the cache is dropped
+     * by the last.
+     */
+    public synchronized void startCache() {
+        if (mCacheUsers++ > 0) {
+            return;
+        }
+        mListener = new IAmmoPreferenceChangedListener() {
+            @Override
+            public void onAmmoPreferenceChanged(Context context, Intent intent) {
+                final String[] keys =
+                        intent.getStringArrayExtra(PreferenceSchema.AMMO_INTENT_KEY_PREF_CHANGED_KEYS);
+                if (keys != null) {
+                    AmmoPreference.this.invalidateAll(Arrays.asList(keys));
+                    return;
+                }
+                AmmoPreference.this.invalidate(
+                        intent.getStringExtra(PreferenceSchema.AMMO_INTENT_KEY_PREF_CHANGED_KEY));
+            }
+
+            @Override
+            public void initializeAmmoPreferenceChangedReceiver() {
+            }
+
+            @Override
+            public void uninitializeAmmoPreferenceChangedReceiver() {
+            }
+        };
+        AmmoPreferenceChangedDispatcher.getInstance(mContext).subscribePrefix(mListener, "");
+        mCaching = true;
+    }
+
+    public synchronized void stopCache() {
+        if (mCacheUsers < 1) {
+            return;
+        }
+        if (--mCacheUsers > 0) {
+            return;
+        }
+        mCaching = false;
+        AmmoPreferenceChangedDispatcher.getInstance(mContext).unsubscribe(mListener);
+        mListener = null;
+        this.invalidate(null);
+    }
+
+    public boolean isCaching() {
+        return mCaching;
+    }
+
+    /**
+     * Drop the cached value of a preference and mark the views which depend
+     * on it stale, they are refreshed by their next get().
+     *
+     * @param key the preference, null drops all of them
+     */
+    public void invalidate(String key) {
+        mInvalidations.incrementAndGet();
+        if (key == null) {
+            mCache.clear();
+        } else {
+            mCache.remove(key);
+        }
+        for (final PreferenceView view : mViews) {
+            if (view.covers(key)) {
+                view.markStale();
+            }
+        }
+    }
+
+    /**
+     * Drop the cached values of the preferences and mark each view which
+     * depends on any of them stale.
+     */
+    public void invalidateAll(Collection<String> keys) {
+        mInvalidations.incrementAndGet();
+        for (final String key : keys) {
+            mCache.remove(key);
+        }
+        for (final PreferenceView view : mViews) {
+            for (final String key : keys) {
+                if (view.covers(key)) {
+                    view.markStale();
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Publish immutable snapshots of the preferences, a new one each time
+     * one of them changes. The cache is started for as long as the view is
+     * published.
+     *
+     * @see PreferenceView
+     */
+    public PreferenceView publish(Keys keys) {
+        this.startCache();
+        final PreferenceView view = new PreferenceView(this, keys.copy());
+        mViews.add(view);
+        view.refresh();
+        return view;
+    }
+
+    public void unpublish(PreferenceView view) {
+        if (mViews.remove(view)) {
+            this.stopCache();
+        }
+    }
+
+    private Cached lookup(String key, String type, String defaultValue) {
+        final Cached hit = mCache.get(key);
+        if (hit == null || !hit.matches(type, defaultValue)) {
+            return null;
         }
-        return instance;
+        return hit;
+    }
+
+    /**
+     * Cache the value unless there has been an invalidation since the read
+     * began, in which case the value may already be stale.
+     */
+    private void store(int stamp, String key, String type, String defaultValue, Object value) {
+        if (!mCaching || mInvalidations.get() != stamp) {
+            return;
+        }
+        mCache.put(key, new Cached(type, defaultValue, value));
     }
 
     // Returns a string array where values are concatenated from each string
@@ -80,8 +280,90 @@ public class AmmoPreference {
     /**
      * Preference key is stored in projection. Preference def value is stored in
      * selectionArgs Preference type is stored in selection.
+     * <p>
+     * While the cache is started the value is read from the provider only
+     * if it is not already cached.
      */
     public String getString(String key, String defaultValue) {
+        final String type = PreferenceSchema.AMMO_PREF_TYPE_STRING;
+        if (!mCaching) {
+            return this.queryString(key, defaultValue);
+        }
+        final Cached hit = this.lookup(key, type, defaultValue);
+        if (hit != null) {
+            return (String) hit.value;
+        }
+        final int stamp = mInvalidations.get();
+        final String value = this.queryString(key, defaultValue);
+        this.store(stamp, key, type, defaultValue, value);
+        return value;
+    }
+
+    public boolean getBoolean(String key, boolean defaultValue) {
+        final String type = PreferenceSchema.AMMO_PREF_TYPE_BOOLEAN;
+        if (!mCaching) {
+            return this.queryBoolean(key, defaultValue);
+        }
+        final String def = String.valueOf(defaultValue);
+        final Cached hit = this.lookup(key, type, def);
+        if (hit != null) {
+            return ((Boolean) hit.value).booleanValue();
+        }
+        final int stamp = mInvalidations.get();
+        final boolean value = this.queryBoolean(key, defaultValue);
+        this.store(stamp, key, type, def, Boolean.valueOf(value));
+        return value;
+    }
+
+    public long getLong(String key, long defaultValue) {
+        final String type = PreferenceSchema.AMMO_PREF_TYPE_LONG;
+        if (!mCaching) {
+            return this.queryLong(key, defaultValue);
+        }
+        final String def = String.valueOf(defaultValue);
+        final Cached hit = this.lookup(key, type, def);
+        if (hit != null) {
+            return ((Long) hit.value).longValue();
+        }
+        final int stamp = mInvalidations.get();
+        final long value = this.queryLong(key, defaultValue);
+        this.store(stamp, key, type, def, Long.valueOf(value));
+        return value;
+    }
+
+    public float getFloat(String key, float defaultValue) {
+        final String type = PreferenceSchema.AMMO_PREF_TYPE_FLOAT;
+        if (!mCaching) {
+            return this.queryFloat(key, defaultValue);
+        }
+        final String def = String.valueOf(defaultValue);
+        final Cached hit = this.lookup(key, type, def);
+        if (hit != null) {
+            return ((Float) hit.value).floatValue();
+        }
+        final int stamp = mInvalidations.get();
+        final float value = this.queryFloat(key, defaultValue);
+        this.store(stamp, key, type, def, Float.valueOf(value));
+        return value;
+    }
+
+    public int getInt(String key, int defaultValue) {
+        final String type = PreferenceSchema.AMMO_PREF_TYPE_INT;
+        if (!mCaching) {
+            return this.queryInt(key, defaultValue);
+        }
+        final String def = String.valueOf(defaultValue);
+        final Cached hit = this.lookup(key, type, def);
+        if (hit != null) {
+            return ((Integer) hit.value).intValue();
+        }
+        final int stamp = mInvalidations.get();
+        final int value = this.queryInt(key, defaultValue);
+        this.store(stamp, key, type, def, Integer.valueOf(value));
+        return value;
+    }
+
+    private String queryString(String key, String defaultValue) {
         final String[] projection = {
             key
         };
@@ -112,7 +394,7 @@ public class AmmoPreference {
 
     // Cursors don't support boolean type. Cast as string until value retrieved
     // and then cast back.
-    public boolean getBoolean(String key, boolean defaultValue) {
+    private boolean queryBoolean(String key, boolean defaultValue) {
         final String[] projection = {
             key
         };
@@ -140,7 +422,7 @@ public class AmmoPreference {
         return value;
     }
 
-    public long getLong(String key, long defaultValue) {
+    private long queryLong(String key, long defaultValue) {
         String[] projection = {
             key
         };
@@ -167,7 +449,7 @@ public class AmmoPreference {
         return value;
     }
 
-    public float getFloat(String key, float defaultValue) {
+    private float queryFloat(String key, float defaultValue) {
         String[] projection = {
             key
         };
@@ -194,7 +476,7 @@ public class AmmoPreference {
         return value;
     }
 
-    public int getInt(String key, int defaultValue) {
+    private int queryInt(String key, int defaultValue) {
         String[] projection = {
             key
         };
@@ -221,6 +503,334 @@ public class AmmoPreference {
         return value;
     }
 
+    // =================================
+    // Bulk Getters
+    // =================================
+    /**
+     * The keys to be fetched by getAll(), each with its type and default
+     * value. e.g. <code>
+     final PreferenceSnapshot prefs = AmmoPreference.getInstance(context)
+             .getAll(new AmmoPreference.Keys()
+                     .addString(INetPrefKeys.GATEWAY_HOST, INetPrefKeys.DEFAULT_GATEWAY_HOST)
+                     .addInt(INetPrefKeys.GATEWAY_PORT, INetPrefKeys.DEFAULT_GATEWAY_PORT)
+                     .addInt(INetPrefKeys.GATEWAY_TIMEOUT, INetPrefKeys.DEFAULT_GW_TIMEOUT));
+     final int port = prefs.getInt(INetPrefKeys.GATEWAY_PORT, INetPrefKeys.DEFAULT_GATEWAY_PORT);
+     </code>
+     */
+    public static class Keys {
+        /** type (the AMMO_PREF_TYPE_ selection) : key : default */
+        final Map<String, Map<String, String>> byType = new LinkedHashMap<String, Map<String, String>>();
+
+        private Keys add(String type, String key, String defaultValue) {
+            if (key == null) {
+                throw new IllegalArgumentException("null preference key");
+            }
+            for (final Map<String, String> keys : this.byType.values()) {
+                keys.remove(key);
+            }
+            Map<String, String> keys = this.byType.get(type);
+            if (keys == null) {
+                keys = new LinkedHashMap<String, String>();
+                this.byType.put(type, keys);
+            }
+            keys.put(key, defaultValue);
+            return this;
+        }
+
+        Keys copy() {
+            final Keys copy = new Keys();
+            for (final Map.Entry<String, Map<String, String>> group : this.byType.entrySet()) {
+                copy.byType.put(group.getKey(), new LinkedHashMap<String, String>(group.getValue()));
+            }
+            return copy;
+        }
+
+        Set<String> keySet() {
+            final Set<String> keys = new HashSet<String>();
+            for (final Map<String, String> group : this.byType.values()) {
+                keys.addAll(group.keySet());
+            }
+            return keys;
+        }
+
+        public Keys addString(String key, String defaultValue) {
+            return this.add(PreferenceSchema.AMMO_PREF_TYPE_STRING, key, defaultValue);
+        }
+
+        public Keys addBoolean(String key, boolean defaultValue) {
+            return this.add(PreferenceSchema.AMMO_PREF_TYPE_BOOLEAN, key, String.valueOf(defaultValue));
+        }
+
+        public Keys addInt(String key, int defaultValue) {
+            return this.add(PreferenceSchema.AMMO_PREF_TYPE_INT, key, String.valueOf(defaultValue));
+        }
+
+        public Keys addLong(String key, long defaultValue) {
+            return this.add(PreferenceSchema.AMMO_PREF_TYPE_LONG, key, String.valueOf(defaultValue));
+        }
+
+        public Keys addFloat(String key, float defaultValue) {
+            return this.add(PreferenceSchema.AMMO_PREF_TYPE_FLOAT, key, String.valueOf(defaultValue));
+        }
+    }
+
+    /**
+     * Fetch string preferences, a key with no value maps to null.
+     *
+     * @see #getAll(Keys)
+     */
+    public PreferenceSnapshot getAll(String... keys) {
+        final Keys request = new Keys();
+        for (final String key : keys) {
+            request.addString(key, null);
+        }
+        return this.getAll(request);
+    }
+
+    /**
+     * Fetch many preferences at once. The keys of each type are fetched by
+     * a single query, their keys in the projection and their defaults in the
+     * selection arguments, so there are at most as many queries as there are
+     * types rather than one per key. Should the provider omit a key from the
+     * result it is fetched on its own. While the cache is started only the
+     * keys not already cached are fetched.
+     *
+     * @return the values, each key is present, with its default if it has no
+     *         value.
+     */
+    public PreferenceSnapshot getAll(Keys keys) {
+        final Map<String, Object> values = new HashMap<String, Object>();
+        for (final Map.Entry<String, Map<String, String>> group : keys.byType.entrySet()) {
+            final String type = group.getKey();
+            final Map<String, String> defaults = new LinkedHashMap<String, String>(group.getValue());
+            if (mCaching) {
+                final Iterator<Map.Entry<String, String>> it = defaults.entrySet().iterator();
+                while (it.hasNext()) {
+                    final Map.Entry<String, String> entry = it.next();
+                    final Cached hit = this.lookup(entry.getKey(), type, entry.getValue());
+                    if (hit != null) {
+                        values.put(entry.getKey(), hit.value);
+                        it.remove();
+                    }
+                }
+            }
+            if (defaults.isEmpty()) {
+                continue;
+            }
+            final int stamp = mInvalidations.get();
+            final String[] projection = defaults.keySet().toArray(new String[defaults.size()]);
+            final String[] selectionArgs = defaults.values().toArray(new String[defaults.size()]);
+
+            final List<String> missing = new ArrayList<String>();
+            final Cursor cur = mContentResolver.query(PreferenceSchema.CONTENT_URI, projection,
+                    type, selectionArgs, null);
+            if (cur == null || !cur.moveToFirst()) {
+                if (cur != null) {
+                    cur.close();
+                }
+                for (final Map.Entry<String, String> entry : defaults.entrySet()) {
+                    values.put(entry.getKey(), toValue(type, entry.getValue()));
+                }
+                continue;
+            }
+            try {
+                for (final String key : projection) {
+                    final int column = cur.getColumnIndex(key);
+                    if (column < 0) {
+                        missing.add(key);
+                        continue;
+                    }
+                    final Object value = readValue(cur, column, type);
+                    values.put(key, value);
+                    this.store(stamp, key, type, defaults.get(key), value);
+                }
+            } finally {
+                cur.close();
+            }
+            for (final String key : missing) {
+                values.put(key, this.getValue(type, key, defaults.get(key)));
+            }
+        }
+        return new PreferenceSnapshot(values);
+    }
+
+    /**
+     * Fetch a single preference with the getter for its type.
+     */
+    private Object getValue(String type, String key, String defaultValue) {
+        if (PreferenceSchema.AMMO_PREF_TYPE_BOOLEAN.equals(type)) {
+            return Boolean.valueOf(this.getBoolean(key, Boolean.valueOf(defaultValue)));
+        }
+        if (PreferenceSchema.AMMO_PREF_TYPE_INT.equals(type)) {
+            return Integer.valueOf(this.getInt(key, Integer.parseInt(defaultValue)));
+        }
+        if (PreferenceSchema.AMMO_PREF_TYPE_LONG.equals(type)) {
+            return Long.valueOf(this.getLong(key, Long.parseLong(defaultValue)));
+        }
+        if (PreferenceSchema.AMMO_PREF_TYPE_FLOAT.equals(type)) {
+            return Float.valueOf(this.getFloat(key, Float.parseFloat(defaultValue)));
+        }
+        return this.getString(key, defaultValue);
+    }
+
+    private static Object readValue(Cursor cur, int column, String type) {
+        if (PreferenceSchema.AMMO_PREF_TYPE_BOOLEAN.equals(type)) {
+            return Boolean.valueOf(cur.getString(column));
+        }
+        if (PreferenceSchema.AMMO_PREF_TYPE_INT.equals(type)) {
+            return Integer.valueOf(cur.getInt(column));
+        }
+        if (PreferenceSchema.AMMO_PREF_TYPE_LONG.equals(type)) {
+            return Long.valueOf(cur.getLong(column));
+        }
+        if (PreferenceSchema.AMMO_PREF_TYPE_FLOAT.equals(type)) {
+            return Float.valueOf(cur.getFloat(column));
+        }
+        return cur.getString(column);
+    }
+
+    private static Object toValue(String type, String value) {
+        if (value == null) {
+            return null;
+        }
+        if (PreferenceSchema.AMMO_PREF_TYPE_BOOLEAN.equals(type)) {
+            return Boolean.valueOf(value);
+        }
+        if (PreferenceSchema.AMMO_PREF_TYPE_INT.equals(type)) {
+            return Integer.valueOf(value);
+        }
+        if (PreferenceSchema.AMMO_PREF_TYPE_LONG.equals(type)) {
+            return Long.valueOf(value);
+        }
+        if (PreferenceSchema.AMMO_PREF_TYPE_FLOAT.equals(type)) {
+            return Float.valueOf(value);
+        }
+        return value;
+    }
+
+    // =================================
+    // Batched Setters
+    // =================================
+    /**
+     * Collects preference changes to be written together by commit(), which
+     * sends one change broadcast naming all of the keys. e.g.
+     * <code>
+     AmmoPreference.getInstance(context).edit()
+             .putString(INetPrefKeys.GATEWAY_HOST, host)
+             .putInt(INetPrefKeys.GATEWAY_PORT, port)
+             .putBoolean(INetPrefKeys.GATEWAY_DISABLED, false)
+             .commit();
+     </code>
+     */
+    public class Editor {
+        /** key : the update, the last put of a key wins */
+        private final Map<String, ContentProviderOperation> updates =
+                new LinkedHashMap<String, ContentProviderOperation>();
+
+        private Editor() {
+        }
+
+        private Editor put(String type, String key, ContentValues vals) {
+            if (key == null) {
+                throw new IllegalArgumentException("null preference key");
+            }
+            final String[] selectionArgs = {
+                key
+            };
+            this.updates.remove(key);
+            this.updates.put(key, ContentProviderOperation.newUpdate(PreferenceSchema.CONTENT_URI)
+                    .withValues(vals)
+                    .withSelection(type, selectionArgs)
+                    .build());
+            return this;
+        }
+
+        public Editor putString(String key, String value) {
+            final ContentValues vals = new ContentValues();
+            vals.put(key, value);
+            return this.put(PreferenceSchema.AMMO_PREF_TYPE_STRING, key, vals);
+        }
+
+        public Editor putBoolean(String key, boolean value) {
+            final ContentValues vals = new ContentValues();
+            vals.put(key, value);
+            return this.put(PreferenceSchema.AMMO_PREF_TYPE_BOOLEAN, key, vals);
+        }
+
+        public Editor putInt(String key, int value) {
+            final ContentValues vals = new ContentValues();
+            vals.put(key, value);
+            return this.put(PreferenceSchema.AMMO_PREF_TYPE_INT, key, vals);
+        }
+
+        public Editor putLong(String key, long value) {
+            final ContentValues vals = new ContentValues();
+            vals.put(key, value);
+            return this.put(PreferenceSchema.AMMO_PREF_TYPE_LONG, key, vals);
+        }
+
+        public Editor putFloat(String key, float value) {
+            final ContentValues vals = new ContentValues();
+            vals.put(key, value);
+            return this.put(PreferenceSchema.AMMO_PREF_TYPE_FLOAT, key, vals);
+        }
+
+        public int size() {
+            return this.updates.size();
+        }
+
+        /**
+         * Write the changes with a single applyBatch() on the preference
+         * provider, then send one AMMO_PREF_CHANGED_ACTION broadcast naming
+         * all of the keys in AMMO_INTENT_KEY_PREF_CHANGED_KEYS. When only one
+         * key changed it is also named in AMMO_INTENT_KEY_PREF_CHANGED_KEY,
+         * for the receivers which read only that extra.
+         * <p>
+         * The batch is not atomic on the preference provider, so should it
+         * fail some of the keys may have been written; the broadcast is sent
+         * for all of the keys attempted, and the caches drop them, either
+         * way. The broadcast is in addition to any notification the provider
+         * raises for each update, it does not replace them.
+         *
+         * @return false if the changes could not all be written
+         */
+        public boolean commit() {
+            if (this.updates.isEmpty()) {
+                return true;
+            }
+            final String[] keys = this.updates.keySet().toArray(new String[this.updates.size()]);
+            boolean written = true;
+            try {
+                mContentResolver.applyBatch(PreferenceSchema.AUTHORITY,
+                        new ArrayList<ContentProviderOperation>(this.updates.values()));
+                this.updates.clear();
+            } catch (Exception ex) {
+                logger.error("could not write preferences {}", Arrays.toString(keys), ex);
+                written = false;
+            }
+            AmmoPreference.this.invalidateAll(Arrays.asList(keys));
+
+            final Intent intent = new Intent(PreferenceSchema.AMMO_PREF_CHANGED_ACTION);
+            intent.putExtra(PreferenceSchema.AMMO_INTENT_KEY_PREF_CHANGED_KEYS, keys);
+            if (keys.length == 1) {
+                intent.putExtra(PreferenceSchema.AMMO_INTENT_KEY_PREF_CHANGED_KEY, keys[0]);
+            }
+            mContext.sendBroadcast(intent);
+            return written;
+        }
+    }
+
+    /**
+     * @return an editor whose changes are written together
+     * @throws AmmoPreferenceReadOnlyAccess unless this is the core
+     */
+    public Editor edit() throws AmmoPreferenceReadOnlyAccess {
+        if (!hasPermissionReadWrite) {
+            throw new AmmoPreferenceReadOnlyAccess();
+        }
+        return new Editor();
+    }
+
     public void putString(String key, String value) throws AmmoPreferenceReadOnlyAccess {
         if (!hasPermissionReadWrite) {
             throw new AmmoPreferenceReadOnlyAccess();
@@ -232,6 +842,7 @@ public class AmmoPreference {
         };
         mContentResolver.update(PreferenceSchema.CONTENT_URI, vals,
                 PreferenceSchema.AMMO_PREF_TYPE_STRING, selectionArgs);
+        this.invalidate(key);
     }
 
     public void putBoolean(String key, boolean value) throws AmmoPreferenceReadOnlyAccess {
@@ -245,6 +856,7 @@ public class AmmoPreference {
         };
         mContentResolver.update(PreferenceSchema.CONTENT_URI, vals,
                 PreferenceSchema.AMMO_PREF_TYPE_BOOLEAN, selectionArgs);
+        this.invalidate(key);
     }
 
     public void putInt(String key, int value) throws AmmoPreferenceReadOnlyAccess {
@@ -258,6 +870,7 @@ public class AmmoPreference {
         };
         mContentResolver.update(PreferenceSchema.CONTENT_URI, vals,
                 PreferenceSchema.AMMO_PREF_TYPE_INT, selectionArgs);
+        this.invalidate(key);
     }
 
     public void putLong(String key, long value) throws AmmoPreferenceReadOnlyAccess {
@@ -271,6 +884,7 @@ public class AmmoPreference {
         };
         mContentResolver.update(PreferenceSchema.CONTENT_URI, vals,
                 PreferenceSchema.AMMO_PREF_TYPE_LONG, selectionArgs);
+        this.invalidate(key);
     }
 
     public void putFloat(String key, float value) throws AmmoPreferenceReadOnlyAccess {
@@ -284,5 +898,6 @@ public class AmmoPreference {
         };
         mContentResolver.update(PreferenceSchema.CONTENT_URI, vals,
                 PreferenceSchema.AMMO_PREF_TYPE_FLOAT, selectionArgs);
+        this.invalidate(key);
     }
 }
@@ -22,7 +22,13 @@
 package edu.vu.isis.ammo.api;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -30,6 +36,7 @@ import org.slf4j.LoggerFactory;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.CursorIndexOutOfBoundsException;
+import android.database.SQLException;
 import android.net.Uri;
 import edu.vu.isis.ammo.core.provider.DistributorSchema;
 import edu.vu.isis.ammo.core.provider.PresenceSchema;
@@ -57,18 +64,95 @@ public class AmmoPresence {
      */
     public static final int ERROR_STATUS_UNDEFINED = -1;
 
+    /**
+     * the number of operators in each IN clause of a bulk query, and the most
+     * operators in a single query (sqlite allows 999 arguments).
+     */
+    static final int IN_CLAUSE_SIZE = 100;
+    static final int QUERY_ARGS_MAX = 900;
+
     private Context mContext;
 
+    /**
+     * when present the lookups are made against the cache.
+     */
+    private PresenceCache mCache;
+
     public AmmoPresence() {
         mContext = null;
+        mCache = null;
     }
 
-    private AmmoPresence(Context context) {
+    private AmmoPresence(Context context, PresenceCache cache) {
         mContext = context;
+        mCache = cache;
     }
 
     public static AmmoPresence newInstance(Context context) {
-        return new AmmoPresence(context);
+        return new AmmoPresence(context, null);
+    }
+
+    /**
+     * An instance whose lookups are hash reads against the process presence
+     * cache rather than provider queries. Until the cache has loaded the
+     * provider is queried as usual. Call release() when finished.
+     */
+    public static AmmoPresence newCachedInstance(Context context) {
+        final PresenceCache cache = PresenceCache.getInstance(context);
+        cache.start();
+        return new AmmoPresence(context, cache);
+    }
+
+    /**
+     * Be told when users change state, rather than polling
+     * getAllAvailableUsers(). Only the changes are delivered, on a worker
+     * thread. Rapid flapping is coalesced. This instance is switched to the
+     * presence cache if it is not already using it, call release() when
+     * finished. e.g. <code>
+     final AmmoPresence p = AmmoPresence.newCachedInstance(mContext);
+     p.addPresenceListener(new AmmoPresence.OnPresenceChangeListener() {
+         public void onPresenceChanged(String userId, int oldState, int newState, long latest) {
+             ...
+         }
+     });
+     </code>
+     */
+    public void addPresenceListener(OnPresenceChangeListener listener) {
+        if (mCache == null) {
+            mCache = PresenceCache.getInstance(mContext);
+            mCache.start();
+        }
+        mCache.addListener(listener);
+    }
+
+    public void removePresenceListener(OnPresenceChangeListener listener) {
+        if (mCache == null)
+            return;
+        mCache.removeListener(listener);
+    }
+
+    /**
+     * Release the presence cache, if this instance is using it.
+     */
+    public void release() {
+        if (mCache == null)
+            return;
+        mCache.stop();
+        mCache = null;
+    }
+
+    /**
+     * Receives the changes in presence, see addPresenceListener().
+     */
+    public interface OnPresenceChangeListener {
+        /**
+         * @param userId the user whose state changed
+         * @param oldState the previous status, ERROR_STATUS_UNDEFINED if the
+         *            user was not known
+         * @param newState the current status
+         * @param latest when the user was last observed (millisec)
+         */
+        public void onPresenceChanged(String userId, int oldState, int newState, long latest);
     }
 
     /**
@@ -110,6 +194,9 @@ public class AmmoPresence {
      *         user available on the network.
      */
     public List<UserStatus> getAllAvailableUsers() {
+        if (mCache != null && mCache.isLoaded()) {
+            return mCache.getAll();
+        }
         List<UserStatus> userList = queryForAllUsers();
         if (userList == null) {
             logger.error("null users list");
@@ -136,10 +223,32 @@ public class AmmoPresence {
      * @return Integer value corresponding to PRESENT, RARE, LOST, ABSENT
      */
     public int getUserPresenceStatus(String userId) {
+        if (mCache != null && mCache.isLoaded()) {
+            return mCache.getStatus(userId);
+        }
         int status = queryUserPresence(userId);
         return status;
     }
 
+    /**
+     * Determine the status of a roster of users at once. e.g. <code>
+     AmmoPresence p = AmmoPresence.newInstance(mContext);
+
+     final Map<String, Integer> statusMap = p.getUserPresenceStatus(roster);
+     final Integer status = statusMap.get("bubba");
+     </code>
+     * 
+     * @param userIds the users of interest
+     * @return the status of each user whose presence is known, users with no
+     *         presence record are not in the map. null if an error occurs.
+     */
+    public Map<String, Integer> getUserPresenceStatus(Collection<String> userIds) {
+        if (mCache != null && mCache.isLoaded()) {
+            return mCache.getStatus(userIds);
+        }
+        return queryUsersPresence(userIds);
+    }
+
     /**
      * Report on all observed users available on the network. e.g. <code>
      import edu.vu.isis.ammo.api.AmmoPresence;
@@ -216,6 +325,119 @@ public class AmmoPresence {
         }
     }
 
+    /**
+     * One query for every QUERY_ARGS_MAX users, its selection is a
+     * disjunction of IN clauses of IN_CLAUSE_SIZE users. Only the OPERATOR
+     * and STATE are projected. Should the provider reject the selection, or
+     * answer it with no cursor, the relation is scanned and filtered instead.
+     * The rows are filtered in any case, as a provider with named selections
+     * may ignore the IN clause; should it return a row which was not asked
+     * for, the cursor held the whole relation and no further query is made.
+     */
+    private Map<String, Integer> queryUsersPresence(Collection<String> userIds) {
+        final Set<String> wanted = new HashSet<String>(userIds);
+        final Map<String, Integer> result = new HashMap<String, Integer>(userIds.size() * 2);
+        final Uri presenceUri = DistributorSchema.CONTENT_URI.get(Relations.PRESENCE);
+        final String[] projection = {
+                PresenceSchema.OPERATOR.field, PresenceSchema.STATE.field
+        };
+        final Iterator<String> users = userIds.iterator();
+        while (users.hasNext()) {
+            final List<String> args = new ArrayList<String>(QUERY_ARGS_MAX);
+            final StringBuilder selection = new StringBuilder();
+            while (users.hasNext() && args.size() < QUERY_ARGS_MAX) {
+                final String userId = users.next();
+                if (userId == null)
+                    continue;
+                if (args.size() % IN_CLAUSE_SIZE == 0) {
+                    if (args.size() > 0)
+                        selection.append(") OR ");
+                    selection.append(PresenceSchema.OPERATOR.field).append(" IN (?");
+                } else {
+                    selection.append(",?");
+                }
+                args.add(userId);
+            }
+            if (args.isEmpty())
+                break;
+            selection.append(')');
+
+            Cursor presenceCursor = null;
+            try {
+                presenceCursor = mContext.getContentResolver().query(presenceUri, projection,
+                        selection.toString(), args.toArray(new String[args.size()]), null);
+                if (presenceCursor == null) {
+                    logger.warn("queryUsersPresence: null cursor, scanning");
+                    return scanUsersPresence(userIds);
+                }
+                if (collectStatus(presenceCursor, wanted, result) > 0) {
+                    logger.debug("queryUsersPresence: selection ignored, relation read");
+                    break;
+                }
+            } catch (IllegalArgumentException ex) {
+                logger.warn("queryUsersPresence: selection rejected, scanning", ex);
+                return scanUsersPresence(userIds);
+            } catch (SQLException ex) {
+                logger.warn("queryUsersPresence: selection failed, scanning", ex);
+                return scanUsersPresence(userIds);
+            } finally {
+                if (presenceCursor != null) {
+                    presenceCursor.close();
+                }
+            }
+        }
+        logger.debug("queryUsersPresence: [{}] of [{}] users", result.size(), userIds.size());
+        return result;
+    }
+
+    private Map<String, Integer> scanUsersPresence(Collection<String> userIds) {
+        final Set<String> wanted = new HashSet<String>(userIds);
+        final Map<String, Integer> result = new HashMap<String, Integer>(wanted.size() * 2);
+        Cursor presenceCursor = null;
+        try {
+            final Uri presenceUri = DistributorSchema.CONTENT_URI.get(Relations.PRESENCE);
+            final String[] projection = {
+                    PresenceSchema.OPERATOR.field, PresenceSchema.STATE.field
+            };
+            presenceCursor = mContext.getContentResolver().query(presenceUri, projection,
+                    null, null, null);
+            if (presenceCursor == null) {
+                logger.error("scanUsersPresence: null cursor");
+                return null;
+            }
+            collectStatus(presenceCursor, wanted, result);
+            return result;
+        } catch (IllegalArgumentException ex) {
+            logger.error("Error while querying for presence", ex);
+            return null;
+        } finally {
+            if (presenceCursor != null) {
+                presenceCursor.close();
+            }
+        }
+    }
+
+    /**
+     * @param wanted the users whose state is collected, null for all
+     * @return the number of rows which were not wanted
+     */
+    private static int collectStatus(Cursor presenceCursor, Set<String> wanted,
+            Map<String, Integer> result) {
+        int unwanted = 0;
+        final int operatorIx = presenceCursor.getColumnIndex(PresenceSchema.OPERATOR.field);
+        final int stateIx = presenceCursor.getColumnIndex(PresenceSchema.STATE.field);
+        while (presenceCursor.moveToNext()) {
+            final String userId = presenceCursor.getString(operatorIx);
+            if (wanted != null && !wanted.contains(userId)) {
+                ++unwanted;
+                continue;
+            }
+            result.put(userId,
+                    Integer.valueOf(PresenceCache.decodeState(presenceCursor.getInt(stateIx))));
+        }
+        return unwanted;
+    }
+
     private int queryUserPresence(String userId) {
         Cursor presenceCursor = null;
         try {
@@ -271,16 +493,4 @@ public class AmmoPresence {
         // Shouldn't make it to here
     }
 
-    /**
-     * This method has not yet been fully specified. The general intent is that
-     * each time the state of the user changes the runnable will be invoked.
-     * 
-     * @param userId
-     * @param runnable
-     */
-    /*
-     * public void setOnChangeCallback(String userId, Runnable runnable) { if
-     * (userId == null) { // all users } }
-     */
-
 }
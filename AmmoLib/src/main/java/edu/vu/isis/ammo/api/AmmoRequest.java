@@ -24,8 +24,6 @@ package edu.vu.isis.ammo.api;
 import java.util.Arrays;
 import java.util.EnumSet;
 import java.util.UUID;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.atomic.AtomicReference;
 
 import org.slf4j.Logger;
@@ -45,6 +43,7 @@ import android.os.Parcel;
 import android.os.ParcelFormatException;
 import android.os.Parcelable;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.util.SparseArray;
 import edu.vu.isis.ammo.api.type.Action;
 import edu.vu.isis.ammo.api.type.BroadIntent;
@@ -66,6 +65,7 @@ import edu.vu.isis.ammo.api.type.TimeInterval;
 import edu.vu.isis.ammo.api.type.TimeStamp;
 import edu.vu.isis.ammo.api.type.TimeTrigger;
 import edu.vu.isis.ammo.api.type.Topic;
+import edu.vu.isis.ammo.util.WeightedFairQueue;
 
 /**
  * see docs/dev-guide/developer-guide.pdf The request has many options. Option
@@ -244,6 +244,49 @@ public class AmmoRequest implements IAmmoRequest, Parcelable {
 	 */
 	private final byte VERSION = (byte) 0x05;
     public final long buildTime;
+    /**
+     * the expire trigger resolved, once, against the build time.
+     * This is wall clock time in milliseconds.
+     */
+    public final long expiration;
+    /**
+     * the expiration on the monotonic SystemClock.elapsedRealtime() clock.
+     * This is used for local expiration as it is unaffected by changes to
+     * the wall clock.
+     */
+    public final long deadline;
+
+    /**
+     * Convert a wall clock expiration to the monotonic clock.
+     */
+    private static long toDeadline(long expiration, long buildTime) {
+        if (expiration == Long.MAX_VALUE)
+            return Long.MAX_VALUE;
+        final long elapsed = SystemClock.elapsedRealtime();
+        final long remaining = expiration - buildTime;
+        if (remaining > Long.MAX_VALUE - elapsed)
+            return Long.MAX_VALUE;
+        return elapsed + remaining;
+    }
+
+    /**
+     * The expire trigger as it is parcelled. A relative trigger is replaced
+     * by the absolute expiration resolved at build time, so that the time
+     * does not start again each time the request is unparcelled.
+     */
+    private TimeTrigger resolvedExpire() {
+        if (this.expire == null || this.expire.type() != TimeTrigger.Type.REL
+                || this.expiration == Long.MAX_VALUE)
+            return this.expire;
+        return new TimeTrigger(new TimeStamp(this.expiration));
+    }
+
+    /**
+     * @return has the request passed its expiration?
+     */
+    public boolean hasExpired() {
+        return this.deadline <= SystemClock.elapsedRealtime();
+    }
 
 	/**
      * The first few fields are required and are positional. 
@@ -342,7 +385,7 @@ public class AmmoRequest implements IAmmoRequest, Parcelable {
 		if (CLIENT_LOGGING)
 			plogger.debug("expire: {}", this.expire);
 		Nominal.EXPIRE.writeToParcel(dest, flags);
-		TimeTrigger.writeToParcel(this.expire, dest, flags);
+		TimeTrigger.writeToParcel(this.resolvedExpire(), dest, flags);
 
 		// LIMIT
 		if (CLIENT_LOGGING)
@@ -665,6 +708,9 @@ public class AmmoRequest implements IAmmoRequest, Parcelable {
 				throw new IncompleteRequest(ex);
 			}
 			this.intent = null;
+			this.expiration = (this.expire == null) ? Long.MAX_VALUE
+					: this.expire.cv(this.buildTime);
+			this.deadline = toDeadline(this.expiration, this.buildTime);
 			return;
 		}
 
@@ -911,6 +957,10 @@ public class AmmoRequest implements IAmmoRequest, Parcelable {
 
 		this.worth = builder.worth;
 		this.notice = builder.notice;
+
+		this.expiration = (this.expire == null) ? Long.MAX_VALUE
+				: this.expire.cv(this.buildTime);
+		this.deadline = toDeadline(this.expiration, this.buildTime);
 	}
 
 	@Override
@@ -956,6 +1006,10 @@ public class AmmoRequest implements IAmmoRequest, Parcelable {
 		this.worth = builder.worth;
 		this.notice = builder.notice;
 
+		this.expiration = (this.expire == null) ? Long.MAX_VALUE
+				: this.expire.cv(this.buildTime);
+		this.deadline = toDeadline(this.expiration, this.buildTime);
+
 		this.uuid = UUID.randomUUID().toString();
 	}
 
@@ -1063,7 +1117,11 @@ public class AmmoRequest implements IAmmoRequest, Parcelable {
 		private final AtomicReference<ConnectionMode> mode;
 		private final AtomicReference<IDistributorService> distributor;
 		private final Context context;
-		private final BlockingQueue<AmmoRequest> pendingRequestQueue;
+		/**
+		 * Requests waiting for the service connection. They are released in
+		 * weighted fair order by priority band, urgent requests first.
+		 */
+		private final WeightedFairQueue<AmmoRequest> pendingRequestQueue;
 
 		final private ServiceConnection conn = new ServiceConnection() {
 			@Override
@@ -1073,15 +1131,25 @@ public class AmmoRequest implements IAmmoRequest, Parcelable {
 				final IDistributorService distributor = IDistributorService.Stub
 						.asInterface(service);
 
-				try {
-					for (final AmmoRequest request : Builder.this.pendingRequestQueue) {
+				final WeightedFairQueue<AmmoRequest> pending = Builder.this.pendingRequestQueue;
+				final int expired = pending.expire();
+				if (expired > 0) {
+					logger.info("dropped [{}] expired requests", expired);
+				}
+				for (AmmoRequest request = pending.poll(); request != null; request = pending.poll()) {
+					if (request.hasExpired()) {
+						logger.info("request expired while pending {}", request);
+						continue;
+					}
+					try {
 						final String ident = distributor.makeRequest(request);
 						logger.info("service bound : {} {}", request, ident);
+					} catch (RemoteException ex) {
+						pending.restore(request);
+						logger.error("no connection on recently bound connection",
+								ex);
+						return;
 					}
-				} catch (RemoteException ex) {
-					logger.error("no connection on recently bound connection",
-							ex);
-					return;
 				}
 				Builder.this.distributor.set(distributor);
 				Builder.this.mode.set(ConnectionMode.BOUND);
@@ -1111,7 +1179,7 @@ public class AmmoRequest implements IAmmoRequest, Parcelable {
 					ConnectionMode.UNBOUND);
 			this.distributor = new AtomicReference<IDistributorService>(null);
 			this.context = context;
-			this.pendingRequestQueue = new LinkedBlockingQueue<AmmoRequest>();
+			this.pendingRequestQueue = new WeightedFairQueue<AmmoRequest>();
 			try {
 				final boolean isBound = this.context.bindService(
 						MAKE_DISTRIBUTOR_REQUEST, this.conn,
@@ -1188,6 +1256,10 @@ public class AmmoRequest implements IAmmoRequest, Parcelable {
 		protected IAmmoRequest makeRequest(final AmmoRequest request)
 				throws RemoteException {
 			logger.info("make service request {} {}", this.mode, request);
+			if (request.hasExpired()) {
+				logger.info("request expired before it was sent {}", request);
+				return request;
+			}
 			switch (this.mode.get()) {
 			case BOUND:
 				try {
@@ -1214,11 +1286,9 @@ public class AmmoRequest implements IAmmoRequest, Parcelable {
 				}
 				break;
 			case BINDING:
-				try {
-					this.pendingRequestQueue.put(request);
-				} catch (InterruptedException ex) {
-					logger.debug("make request interrupted ", ex);
-				}
+				this.pendingRequestQueue.expire();
+				this.pendingRequestQueue.offer(request, request.priority, request.deadline);
+				logger.debug("pending request queue {}", this.pendingRequestQueue);
 				break;
 			case NONE:
 			case UNAVAILABLE:
@@ -1248,6 +1318,24 @@ public class AmmoRequest implements IAmmoRequest, Parcelable {
 			return this.makeRequest(new AmmoRequest(Action.RETRIEVAL, this));
 		}
 
+		/**
+		 * Retrieve in windows of pageSize items rather than all at once. The
+		 * key column orders the items, it is typically a time stamp or a
+		 * monotonically increasing identifier. The direction and total come
+		 * from the limit.
+		 * 
+		 * @param keyColumn
+		 * @param pageSize
+		 * @return the pager, the first window has been requested.
+		 */
+		public RetrievalPager retrievePaged(String keyColumn, int pageSize)
+				throws RemoteException {
+			return new RetrievalPager(this, this.context.getContentResolver(),
+					(this.provider == null) ? null : this.provider.asUri(),
+					this.project, this.select, this.limit, keyColumn, pageSize)
+					.open();
+		}
+
 		@Override
 		public IAmmoRequest unretrieve() throws RemoteException {
 			return this.makeRequest(new AmmoRequest(Action.UNRETRIEVAL, this));
@@ -1383,6 +1471,16 @@ public class AmmoRequest implements IAmmoRequest, Parcelable {
 			return this.payload(val.asContentValues());
 		}
 
+		/**
+		 * e.g. a batch of rows, see Payload.batch()
+		 */
+		public Builder payload(Payload val) {
+			if (val == null)
+				return this;
+			this.payload = val;
+			return this;
+		}
+
 		@Override
 		public Builder moment(String val) {
 			if (val == null) {
@@ -1617,6 +1715,14 @@ public class AmmoRequest implements IAmmoRequest, Parcelable {
 			return this;
 		}
 
+		/**
+		 * Restore a selection as obtained from a request, e.g. by the pager.
+		 */
+		Builder select(Selection val) {
+			this.select = val;
+			return this;
+		}
+
 		@Override
 		public Builder filter(String val) {
 			// this.filter = new Filter(val);
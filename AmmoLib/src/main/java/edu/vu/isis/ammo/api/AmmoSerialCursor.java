@@ -23,21 +23,27 @@ package edu.vu.isis.ammo.api;
 
 import java.util.ArrayList;
 
-import android.database.AbstractCursor;
 import android.database.CursorIndexOutOfBoundsException;
+import android.database.CursorWindow;
+
+/**
+ * A mutable cursor implementation backed by an array of {@code Object}s.
+ * Use {@link #newRow()} to add rows. Automatically expands internal
+ * capacity as needed.
+ * <p>
+ * Blob values (byte[]) are supported. When the cursor is sent to another
+ * process the window is filled directly from the backing array, a row range
+ * at a time, with a typed put for each cell. The number of rows placed in
+ * each window may be limited with {@link #setWindowSize(int)}.
+ */
+public class AmmoSerialCursor extends AmmoObjectCursor {
 
-public class AmmoSerialCursor extends AbstractCursor {
+    /** fill each window with as many rows as it will hold */
+    public static final int WINDOW_SIZE_UNBOUNDED = Integer.MAX_VALUE;
 
-    /**
-     * A mutable cursor implementation backed by an array of {@code Object}s.
-     * Use {@link #newRow()} to add rows. Automatically expands internal
-     * capacity as needed.
-     */
-
-    private final String[] columnNames;
     private Object[] data;
     private int rowCount = 0;
-    private final int columnCount;
+    private int windowSize;
 
     /**
      * Constructs a new cursor with the given initial capacity.
@@ -47,14 +53,48 @@ public class AmmoSerialCursor extends AbstractCursor {
      * @param initialCapacity in rows
      */
     public AmmoSerialCursor(String[] columnNames, int initialCapacity) {
-        this.columnNames = columnNames;
-        this.columnCount = columnNames.length;
+        this(columnNames, initialCapacity, WINDOW_SIZE_UNBOUNDED);
+    }
+
+    /**
+     * Constructs a new cursor with the given initial capacity and window size.
+     * 
+     * @param columnNames names of the columns, the ordering of which determines
+     *            column ordering elsewhere in this cursor
+     * @param initialCapacity in rows
+     * @param windowSize the most rows placed in a window by fillWindow()
+     */
+    public AmmoSerialCursor(String[] columnNames, int initialCapacity, int windowSize) {
+        super(columnNames);
 
         if (initialCapacity < 1) {
             initialCapacity = 1;
         }
 
         this.data = new Object[columnCount * initialCapacity];
+        this.setWindowSize(windowSize);
+    }
+
+    /**
+     * Constructs a cursor over cells which have already been laid out, row
+     * by row. The array is taken as it is, not copied; further rows may be
+     * added.
+     * 
+     * @param columnNames names of the columns, the ordering of which determines
+     *            column ordering elsewhere in this cursor
+     * @param data the cells, row by row, at least rowCount * columnNames.length
+     * @param rowCount the rows held in data
+     * @throws IllegalArgumentException if data is too short for the rows
+     */
+    public AmmoSerialCursor(String[] columnNames, Object[] data, int rowCount) {
+        super(columnNames);
+        if (rowCount < 0 || (long) rowCount * columnCount > data.length) {
+            throw new IllegalArgumentException("data.length = " + data.length
+                    + ", rows = " + rowCount + ", columns = " + columnCount);
+        }
+        this.data = (data.length > 0) ? data : new Object[columnCount];
+        this.rowCount = rowCount;
+        this.setWindowSize(WINDOW_SIZE_UNBOUNDED);
     }
 
     /**
@@ -68,23 +108,27 @@ public class AmmoSerialCursor extends AbstractCursor {
     }
 
     /**
-     * Gets value at the given column for the current row.
+     * @param windowSize the most rows placed in a window by fillWindow(),
+     *            {@link #WINDOW_SIZE_UNBOUNDED} to fill until the window is
+     *            full.
      */
-    private Object get(int column) {
-        if (column < 0) {
-            throw new CursorIndexOutOfBoundsException("Requested column: "
-                    + column + ", # of columns: " + columnCount);
-        }
-        if (column >= columnCount) {
-            throw new CursorIndexOutOfBoundsException("Requested column: "
-                    + column + ", # of columns: " + columnCount);
-        }
-        if (mPos < 0) {
-            throw new CursorIndexOutOfBoundsException("Before first row.");
-        }
-        if (mPos >= rowCount) {
-            throw new CursorIndexOutOfBoundsException("After last row.");
+    public void setWindowSize(int windowSize) {
+        if (windowSize < 1) {
+            throw new IllegalArgumentException("window size must be positive");
         }
+        this.windowSize = windowSize;
+    }
+
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    /**
+     * Gets value at the given column for the current row.
+     */
+    @Override
+    protected Object get(int column) {
+        checkCell(column, rowCount);
         return data[mPos * columnCount + column];
     }
 
@@ -181,15 +225,7 @@ public class AmmoSerialCursor extends AbstractCursor {
 
     /** Ensures that this cursor has enough capacity. */
     private void ensureCapacity(int size) {
-        if (size > data.length) {
-            Object[] oldData = this.data;
-            int newSize = data.length * 2;
-            if (newSize < size) {
-                newSize = size;
-            }
-            this.data = new Object[newSize];
-            System.arraycopy(oldData, 0, this.data, 0, oldData.length);
-        }
+        this.data = ensureCapacity(this.data, size, Integer.MAX_VALUE);
     }
 
     /**
@@ -232,71 +268,64 @@ public class AmmoSerialCursor extends AbstractCursor {
         return rowCount;
     }
 
+    /**
+     * Fill the window with the rows starting at position, reading the backing
+     * array directly rather than moving the cursor over each cell. Filling
+     * stops at the window size or when the window has no more room; the
+     * window is then refilled from the first row that did not fit.
+     */
     @Override
-    public String[] getColumnNames() {
-        return columnNames;
-    }
-
-    @Override
-    public String getString(int column) {
-        Object value = get(column);
-        if (value == null)
-            return null;
-        return value.toString();
-    }
-
-    @Override
-    public short getShort(int column) {
-        Object value = get(column);
-        if (value == null)
-            return 0;
-        if (value instanceof Number)
-            return ((Number) value).shortValue();
-        return Short.parseShort(value.toString());
-    }
-
-    @Override
-    public int getInt(int column) {
-        Object value = get(column);
-        if (value == null)
-            return 0;
-        if (value instanceof Number)
-            return ((Number) value).intValue();
-        return Integer.parseInt(value.toString());
-    }
-
-    @Override
-    public long getLong(int column) {
-        Object value = get(column);
-        if (value == null)
-            return 0;
-        if (value instanceof Number)
-            return ((Number) value).longValue();
-        return Long.parseLong(value.toString());
-    }
-
-    @Override
-    public float getFloat(int column) {
-        Object value = get(column);
-        if (value == null)
-            return 0.0f;
-        if (value instanceof Number)
-            return ((Number) value).floatValue();
-        return Float.parseFloat(value.toString());
+    public void fillWindow(int position, CursorWindow window) {
+        if (position < 0 || position >= rowCount) {
+            return;
+        }
+        window.acquireReference();
+        try {
+            window.clear();
+            window.setStartPosition(position);
+            window.setNumColumns(columnCount);
+
+            final Object[] localData = data;
+            final long bound = (long) position + windowSize;
+            final int end = (bound < rowCount) ? (int) bound : rowCount;
+            for (int row = position; row < end; row++) {
+                if (!window.allocRow()) {
+                    break;
+                }
+                final int start = row * columnCount;
+                boolean fits = true;
+                for (int column = 0; column < columnCount; column++) {
+                    fits = putValue(window, localData[start + column], row, column);
+                    if (!fits) {
+                        break;
+                    }
+                }
+                if (!fits) {
+                    window.freeLastRow();
+                    break;
+                }
+            }
+        } finally {
+            window.releaseReference();
+        }
     }
 
-    @Override
-    public double getDouble(int column) {
-        Object value = get(column);
+    /**
+     * Put the value into the window according to its type.
+     * 
+     * @return false if the window is full
+     */
+    private static boolean putValue(CursorWindow window, Object value, int row, int column) {
         if (value == null)
-            return 0.0d;
+            return window.putNull(row, column);
+        if (value instanceof byte[])
+            return window.putBlob((byte[]) value, row, column);
+        if (value instanceof Double || value instanceof Float)
+            return window.putDouble(((Number) value).doubleValue(), row, column);
         if (value instanceof Number)
-            return ((Number) value).doubleValue();
-        return Double.parseDouble(value.toString());
-    }
-
-    @Override
-    public boolean isNull(int column) {
-        return get(column) == null;
+            return window.putLong(((Number) value).longValue(), row, column);
+        if (value instanceof Boolean)
+            return window.putLong(((Boolean) value).booleanValue() ? 1L : 0L, row, column);
+        return window.putString(value.toString(), row, column);
     }
 }
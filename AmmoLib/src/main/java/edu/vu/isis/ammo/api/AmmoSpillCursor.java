@@ -0,0 +1,377 @@
+/* Copyright (c) 2010-2015 Vanderbilt University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package edu.vu.isis.ammo.api;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * A mutable cursor which holds at most a fixed number of rows on the heap.
+ * Rows beyond that are encoded and appended to a temporary file, which is
+ * memory-mapped for reading. The offset of each spilled row is kept in an
+ * index so any row may be reached directly. The file is mapped a region at a
+ * time, a region being the rows written since the previous mapping, so
+ * reading a newly spilled row never maps the earlier rows again.
+ * <p>
+ * Each spilled cell is a type tag followed by its value: nothing for null,
+ * eight bytes for integral and real numbers, a length (int) and the bytes
+ * for strings (UTF-8) and blobs.
+ * <p>
+ * As with TempFileInputStream the file is (optionally) deleted when the
+ * cursor is closed.
+ */
+public class AmmoSpillCursor extends AmmoObjectCursor {
+    private static final Logger logger = LoggerFactory.getLogger("api.cursor.spill");
+
+    private static final String CHARSET = "UTF-8";
+
+    private static final byte TAG_NULL = 0;
+    private static final byte TAG_LONG = 1;
+    private static final byte TAG_DOUBLE = 2;
+    private static final byte TAG_STRING = 3;
+    private static final byte TAG_BLOB = 4;
+
+    /** the spilled rows are written out once this many bytes are pending */
+    private static final int FLUSH_SIZE = 64 * 1024;
+
+    private final int heapRows;
+
+    /** the rows held on the heap */
+    private Object[] data;
+    private int rowCount = 0;
+
+    /** the file offset of each spilled row */
+    private int[] offsets;
+    private int spillCount = 0;
+
+    private final File directory;
+    private File file;
+    private final boolean willDeleteOnClose;
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    /** bytes written to the channel */
+    private int written = 0;
+    private final ByteArrayOutputStream pending;
+    private final DataOutputStream out;
+
+    /**
+     * A mapping of part of the file. Each region holds whole rows, as only
+     * whole rows are written.
+     */
+    private static class Region {
+        final int start;
+        final MappedByteBuffer buffer;
+
+        Region(int start, MappedByteBuffer buffer) {
+            this.start = start;
+            this.buffer = buffer;
+        }
+    }
+
+    /** the mapped regions in file order */
+    private final List<Region> regions = new ArrayList<Region>();
+    /** the end of the last mapped region */
+    private int mappedEnd = 0;
+
+    /** the decoded values of the current row, when it is a spilled row */
+    private final Object[] current;
+    private int currentRow = -1;
+
+    /**
+     * Constructs a new cursor.
+     *
+     * @param columnNames names of the columns, the ordering of which determines
+     *            column ordering elsewhere in this cursor
+     * @param heapRows the most rows held on the heap
+     * @param directory where the spill file is placed, e.g.
+     *            Context.getCacheDir(), null for the default temporary
+     *            directory
+     * @param deleteOnClose should the spill file be deleted on close()?
+     */
+    public AmmoSpillCursor(String[] columnNames, int heapRows, File directory,
+            boolean deleteOnClose) {
+        super(columnNames);
+        this.heapRows = (heapRows < 1) ? 1 : heapRows;
+        this.data = new Object[columnCount * Math.min(this.heapRows, 16)];
+        this.offsets = new int[16];
+        this.current = new Object[columnCount];
+        this.pending = new ByteArrayOutputStream(FLUSH_SIZE);
+        this.out = new DataOutputStream(this.pending);
+        this.willDeleteOnClose = deleteOnClose;
+        this.directory = directory;
+    }
+
+    public AmmoSpillCursor(String[] columnNames, int heapRows, File directory) {
+        this(columnNames, heapRows, directory, true);
+    }
+
+    /**
+     * Adds a new row to the end with the given column values. Not safe for
+     * concurrent use. The values may be null, byte[], String or a Number; any
+     * other value is stored as its string.
+     *
+     * @throws IllegalArgumentException if {@code columnValues.length !=
+     *  columnNames.length}
+     * @throws IllegalStateException if the row could not be spilled
+     * @param columnValues in the same order as the the column names specified
+     *            at cursor construction time
+     */
+    public void addRow(Object[] columnValues) {
+        if (columnValues.length != columnCount) {
+            throw new IllegalArgumentException("columnNames.length = "
+                    + columnCount + ", columnValues.length = "
+                    + columnValues.length);
+        }
+        if (mClosed) {
+            throw new IllegalStateException("cursor is closed");
+        }
+        if (rowCount < heapRows) {
+            final int start = rowCount * columnCount;
+            ensureCapacity(start + columnCount);
+            System.arraycopy(columnValues, 0, data, start, columnCount);
+            rowCount++;
+            return;
+        }
+        try {
+            spill(columnValues);
+        } catch (IOException ex) {
+            logger.error("could not spill row {} to {}", new Object[] { rowCount, file, ex });
+            throw new IllegalStateException("could not spill row");
+        }
+        rowCount++;
+    }
+
+    /** Ensures that the heap rows have enough capacity. */
+    private void ensureCapacity(int size) {
+        this.data = ensureCapacity(this.data, size, heapRows * columnCount);
+    }
+
+    /**
+     * @return the number of rows which have been spilled to the file
+     */
+    public int getSpillCount() {
+        return spillCount;
+    }
+
+    // *********************************
+    // Spill file
+    // *********************************
+
+    private void spill(Object[] columnValues) throws IOException {
+        if (channel == null) {
+            file = File.createTempFile("ammo_cursor", ".spill", directory);
+            raf = new RandomAccessFile(file, "rw");
+            channel = raf.getChannel();
+            logger.debug("spilling to {}", file);
+        }
+        final long offset = (long) written + pending.size();
+        if (offset > Integer.MAX_VALUE) {
+            throw new IOException("spill file exceeds the mappable size");
+        }
+        if (spillCount == offsets.length) {
+            final int[] grown = new int[offsets.length * 2];
+            System.arraycopy(offsets, 0, grown, 0, spillCount);
+            offsets = grown;
+        }
+        offsets[spillCount++] = (int) offset;
+
+        for (int column = 0; column < columnCount; column++) {
+            writeValue(columnValues[column]);
+        }
+        if (pending.size() >= FLUSH_SIZE) {
+            flush();
+        }
+    }
+
+    private void writeValue(Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(TAG_NULL);
+        } else if (value instanceof byte[]) {
+            final byte[] bytes = (byte[]) value;
+            out.writeByte(TAG_BLOB);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        } else if (value instanceof Double || value instanceof Float) {
+            out.writeByte(TAG_DOUBLE);
+            out.writeDouble(((Number) value).doubleValue());
+        } else if (value instanceof Number) {
+            out.writeByte(TAG_LONG);
+            out.writeLong(((Number) value).longValue());
+        } else {
+            final byte[] bytes = value.toString().getBytes(CHARSET);
+            out.writeByte(TAG_STRING);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    /** Write the pending rows to the end of the file. */
+    private void flush() throws IOException {
+        if (pending.size() < 1) {
+            return;
+        }
+        final ByteBuffer buffer = ByteBuffer.wrap(pending.toByteArray());
+        channel.position(written);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        written += pending.size();
+        pending.reset();
+    }
+
+    /**
+     * Decode the spilled row into the current row values, mapping the rows
+     * written since the last mapping if the row lies beyond it.
+     */
+    private void load(int row) {
+        if (row == currentRow) {
+            return;
+        }
+        final int offset = offsets[row - heapRows];
+        try {
+            if (offset >= mappedEnd) {
+                flush();
+                regions.add(new Region(mappedEnd,
+                        channel.map(FileChannel.MapMode.READ_ONLY, mappedEnd, written - mappedEnd)));
+                logger.trace("mapped region [{}:{}]", mappedEnd, written);
+                mappedEnd = written;
+            }
+            final Region region = findRegion(offset);
+            final ByteBuffer buffer = region.buffer;
+            buffer.position(offset - region.start);
+            for (int column = 0; column < columnCount; column++) {
+                current[column] = readValue(buffer);
+            }
+        } catch (IOException ex) {
+            logger.error("could not read row {} from {}", new Object[] { row, file, ex });
+            throw new IllegalStateException("could not read spilled row");
+        }
+        currentRow = row;
+    }
+
+    /** The region holding the offset, by binary search on the region starts. */
+    private Region findRegion(int offset) {
+        int low = 0;
+        int high = regions.size() - 1;
+        while (low < high) {
+            final int mid = (low + high + 1) >>> 1;
+            if (regions.get(mid).start <= offset) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return regions.get(low);
+    }
+
+    private static Object readValue(ByteBuffer buffer) throws UnsupportedEncodingException {
+        switch (buffer.get()) {
+            case TAG_NULL:
+                return null;
+            case TAG_LONG:
+                return Long.valueOf(buffer.getLong());
+            case TAG_DOUBLE:
+                return Double.valueOf(buffer.getDouble());
+            case TAG_STRING: {
+                final byte[] bytes = new byte[buffer.getInt()];
+                buffer.get(bytes);
+                return new String(bytes, CHARSET);
+            }
+            case TAG_BLOB: {
+                final byte[] bytes = new byte[buffer.getInt()];
+                buffer.get(bytes);
+                return bytes;
+            }
+            default:
+                throw new IllegalStateException("corrupt spill file");
+        }
+    }
+
+    @Override
+    protected Object get(int column) {
+        checkCell(column, rowCount);
+        if (mPos < heapRows) {
+            return data[mPos * columnCount + column];
+        }
+        load(mPos);
+        return current[column];
+    }
+
+    /**
+     * Closes the cursor. Normally also deletes the spill file.
+     */
+    @Override
+    public void close() {
+        if (mClosed) {
+            logger.debug("already closed: {}", this);
+            return;
+        }
+        super.close();
+        regions.clear();
+        mappedEnd = 0;
+        data = null;
+        currentRow = -1;
+        if (channel == null) {
+            return;
+        }
+        try {
+            raf.close();
+            if (willDeleteOnClose && !file.delete()) {
+                logger.warn("could not delete {}", file);
+            }
+        } catch (IOException ex) {
+            logger.warn("Failed to close() spill file: {}", file, ex);
+        } catch (RuntimeException ex) {
+            logger.warn("Failed to delete(): {}", file, ex);
+        }
+        logger.debug("close {}", this);
+        channel = null;
+        raf = null;
+    }
+
+    // AbstractCursor implementation.
+
+    @Override
+    public int getCount() {
+        return rowCount;
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder().append("spill cursor rows[").append(rowCount)
+                .append("], spilled[").append(spillCount)
+                .append("], file[").append(file).append("]").toString();
+    }
+}
@@ -0,0 +1,239 @@
+/* Copyright (c) 2010-2015 Vanderbilt University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package edu.vu.isis.ammo.api;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.os.SystemClock;
+
+/**
+ * A cursor which is filled by a producer thread while consumers read it.
+ * <p>
+ * The producer adds rows with {@link #addRow(Object[])} and, when there are
+ * no more, calls {@link #endOfStream()}. The count of the cursor is the
+ * number of rows which have arrived so far, so the ordinary moves never
+ * wait; a move past the rows which have arrived simply fails. The
+ * moveToNextBlocking() and awaitRows() methods wait for rows to arrive or
+ * for the end of the stream. e.g. <code>
+ final AmmoStreamCursor cursor = new AmmoStreamCursor(columns);
+ // on the producer thread
+ cursor.addRow(values); ... cursor.endOfStream();
+ // on the consumer thread
+ ...
+ while (cursor.moveToNextBlocking(AmmoStreamCursor.WAIT_FOREVER)) {
+     ...
+ }
+ </code>
+ */
+public class AmmoStreamCursor extends AmmoObjectCursor {
+    private static final Logger logger = LoggerFactory.getLogger("api.cursor.stream");
+
+    public static final long WAIT_FOREVER = -1L;
+
+    private final Object lock = new Object();
+
+    /** guarded by lock */
+    private Object[] data;
+    private int rowCount = 0;
+    private boolean ended = false;
+
+    /**
+     * Constructs a new cursor with the given initial capacity.
+     *
+     * @param columnNames names of the columns, the ordering of which determines
+     *            column ordering elsewhere in this cursor
+     * @param initialCapacity in rows
+     */
+    public AmmoStreamCursor(String[] columnNames, int initialCapacity) {
+        super(columnNames);
+
+        if (initialCapacity < 1) {
+            initialCapacity = 1;
+        }
+
+        this.data = new Object[columnCount * initialCapacity];
+    }
+
+    public AmmoStreamCursor(String[] columnNames) {
+        this(columnNames, 16);
+    }
+
+    // *********************************
+    // Producer
+    // *********************************
+
+    /**
+     * Adds a new row to the end with the given column values and wakes any
+     * waiting consumers. Safe to call from a thread other than the consumer,
+     * but there should be a single producer.
+     *
+     * @throws IllegalArgumentException if {@code columnValues.length !=
+     *  columnNames.length}
+     * @throws IllegalStateException if the end of the stream has been
+     *             signaled
+     */
+    public void addRow(Object[] columnValues) {
+        if (columnValues.length != columnCount) {
+            throw new IllegalArgumentException("columnNames.length = "
+                    + columnCount + ", columnValues.length = "
+                    + columnValues.length);
+        }
+        synchronized (lock) {
+            if (ended) {
+                throw new IllegalStateException("row added after end of stream");
+            }
+            final int start = rowCount * columnCount;
+            ensureCapacity(start + columnCount);
+            System.arraycopy(columnValues, 0, data, start, columnCount);
+            rowCount++;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * There are no more rows, wake the waiting consumers.
+     */
+    public void endOfStream() {
+        synchronized (lock) {
+            if (ended) {
+                return;
+            }
+            ended = true;
+            lock.notifyAll();
+        }
+        logger.debug("end of stream after [{}] rows", rowCount);
+    }
+
+    /** Ensures that this cursor has enough capacity. */
+    private void ensureCapacity(int size) {
+        this.data = ensureCapacity(this.data, size, Integer.MAX_VALUE);
+    }
+
+    // *********************************
+    // Consumer
+    // *********************************
+
+    /**
+     * @return the number of rows which have arrived, the same as getCount()
+     */
+    public int getReadyCount() {
+        synchronized (lock) {
+            return rowCount;
+        }
+    }
+
+    /**
+     * @return has the producer signaled that there are no more rows?
+     */
+    public boolean isEndOfStream() {
+        synchronized (lock) {
+            return ended;
+        }
+    }
+
+    /**
+     * @return true once every row has arrived and the cursor is on or past
+     *         the last of them.
+     */
+    public boolean isExhausted() {
+        synchronized (lock) {
+            return ended && mPos >= rowCount - 1;
+        }
+    }
+
+    /**
+     * Wait until at least count rows have arrived, the end of the stream is
+     * signaled, or the timeout passes.
+     *
+     * @param count the rows wanted
+     * @param timeoutMillis the longest to wait, WAIT_FOREVER to wait until
+     *            the rows arrive or the stream ends
+     * @return true if the rows have arrived, false if the stream ended
+     *         short, the wait timed out or the thread was interrupted.
+     */
+    public boolean awaitRows(int count, long timeoutMillis) {
+        final long deadline = (timeoutMillis < 0) ? Long.MAX_VALUE
+                : SystemClock.elapsedRealtime() + timeoutMillis;
+        synchronized (lock) {
+            while (rowCount < count && !ended && !mClosed) {
+                final long remaining = (timeoutMillis < 0) ? 0
+                        : deadline - SystemClock.elapsedRealtime();
+                if (timeoutMillis >= 0 && remaining <= 0) {
+                    return false;
+                }
+                try {
+                    lock.wait(remaining);
+                } catch (InterruptedException ex) {
+                    logger.debug("interrupted waiting for row [{}]", count);
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return rowCount >= count;
+        }
+    }
+
+    /**
+     * Move to the next row, waiting for it to arrive if need be.
+     *
+     * @param timeoutMillis the longest to wait, WAIT_FOREVER to wait until
+     *            the row arrives or the stream ends
+     * @return false if there is no next row, either the stream has ended or
+     *         the wait timed out.
+     */
+    public boolean moveToNextBlocking(long timeoutMillis) {
+        if (!awaitRows(getPosition() + 2, timeoutMillis)) {
+            return false;
+        }
+        return moveToNext();
+    }
+
+    /**
+     * Gets value at the given column for the current row.
+     */
+    @Override
+    protected Object get(int column) {
+        synchronized (lock) {
+            checkCell(column, rowCount);
+            return data[mPos * columnCount + column];
+        }
+    }
+
+    /**
+     * Closing the cursor releases any waiting consumers.
+     */
+    @Override
+    public void close() {
+        super.close();
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+    }
+
+    // AbstractCursor implementation.
+
+    @Override
+    public int getCount() {
+        return getReadyCount();
+    }
+}
@@ -0,0 +1,509 @@
+/* Copyright (c) 2010-2015 Vanderbilt University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package edu.vu.isis.ammo.api;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.content.Context;
+import android.database.Cursor;
+import edu.vu.isis.ammo.core.provider.CapabilitySchema;
+import edu.vu.isis.ammo.core.provider.DistributorSchema;
+import edu.vu.isis.ammo.core.provider.Relations;
+import edu.vu.isis.ammo.util.SnapshotFile;
+
+/**
+ * An in-memory index of the capability relation, which records the interest
+ * each operator has in a topic.
+ * <p>
+ * The topics are held in a trie, one level per '/' separated segment of the
+ * topic. Each node holds the operators interested in exactly that topic and
+ * a count of the interests at or below it, so the questions
+ * <ul>
+ * <li>who receives X/Y, i.e. is interested in X/Y or X : getInterested()</li>
+ * <li>who is interested in X or anything below it : getInterestedUnder()</li>
+ * <li>is anyone interested in X/Y : hasInterest()</li>
+ * </ul>
+ * are answered by walking the segments of the topic.
+ * <p>
+ * As with the PresenceCache, the index is loaded and kept current as
+ * described for the RelationCache. An entry is also dropped when its
+ * EXPIRATION passes, a timer is set for the earliest expiration held. There
+ * is one index per process, see getInstance(). e.g. <code>
+ final CapabilityIndex index = CapabilityIndex.getInstance(context);
+ index.start();
+ ...
+ if (!index.hasInterest(topic)) {
+     return; // no one to tell
+ }
+ ...
+ index.stop();
+ </code>
+ */
+public class CapabilityIndex extends RelationCache<CapabilityIndex.Entry[]> {
+    private static final Logger logger = LoggerFactory.getLogger("api.capability.index");
+
+    static final String[] PROJECTION = {
+            CapabilitySchema.ORIGIN.field,
+            CapabilitySchema.OPERATOR.field,
+            CapabilitySchema.TOPIC.field,
+            CapabilitySchema.SUBTOPIC.field,
+            CapabilitySchema.LATEST.field,
+            CapabilitySchema.EXPIRATION.field
+    };
+
+    private static final char SEPARATOR = '/';
+
+    static final int SNAPSHOT_MAGIC = 0x414d4353; // "AMCS"
+    static final int SNAPSHOT_VERSION = 1;
+
+    /**
+     * A single row of the capability relation.
+     */
+    static class Entry {
+        final String key;
+        final String origin;
+        final String operator;
+        final String topic;
+        final String subtopic;
+        long latest;
+        long expiration;
+        int generation;
+
+        Entry(String key, String origin, String operator, String topic, String subtopic) {
+            this.key = key;
+            this.origin = origin;
+            this.operator = operator;
+            this.topic = topic;
+            this.subtopic = subtopic;
+        }
+    }
+
+    /**
+     * One segment of a topic.
+     */
+    static class Node {
+        final Map<String, Node> children = new HashMap<String, Node>(4);
+        /** the operators interested in this topic, with the number of rows */
+        final Map<String, int[]> operators = new HashMap<String, int[]>(4);
+        /** the interests at or below this node */
+        int total = 0;
+    }
+
+    private static CapabilityIndex instance = null;
+
+    /**
+     * @return the index for this process
+     */
+    public static synchronized CapabilityIndex getInstance(Context context) {
+        if (instance == null) {
+            instance = new CapabilityIndex(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /** guarded by this */
+    private final Map<String, Entry> entries;
+    private final Node root;
+
+    /** guarded by this, when the purger is next posted to run, Long.MAX_VALUE if it is not */
+    private long purgeAt;
+    private final Runnable purger = new Runnable() {
+        @Override
+        public void run() {
+            CapabilityIndex.this.purge();
+        }
+    };
+
+    private CapabilityIndex(Context context) {
+        super(logger, context, DistributorSchema.CONTENT_URI.get(Relations.CAPABILITY),
+                PROJECTION, CapabilitySchema.LATEST.field, "capability-index",
+                SNAPSHOT_MAGIC, SNAPSHOT_VERSION);
+        this.entries = new HashMap<String, Entry>();
+        this.root = new Node();
+        this.purgeAt = Long.MAX_VALUE;
+    }
+
+    @Override
+    protected void clear() {
+        this.purgeAt = Long.MAX_VALUE;
+        this.entries.clear();
+        this.root.children.clear();
+        this.root.operators.clear();
+        this.root.total = 0;
+    }
+
+    @Override
+    protected void writeSnapshot(DataOutputStream out) throws IOException {
+        out.writeInt(this.entries.size());
+        for (final Entry entry : this.entries.values()) {
+            SnapshotFile.writeString(out, entry.origin);
+            SnapshotFile.writeString(out, entry.operator);
+            SnapshotFile.writeString(out, entry.topic);
+            SnapshotFile.writeString(out, entry.subtopic);
+            out.writeLong(entry.latest);
+            out.writeLong(entry.expiration);
+        }
+    }
+
+    /**
+     * Entries which have since expired are skipped.
+     */
+    @Override
+    protected Entry[] readSnapshot(ByteBuffer in) throws IOException {
+        // origin, operator, topic, subtopic, latest and expiration
+        final int size = SnapshotFile.readCount(in, 4 * 4 + 8 + 8);
+        final Entry[] restored = new Entry[size];
+        for (int ix = 0; ix < size; ++ix) {
+            final String origin = SnapshotFile.readString(in);
+            final String operator = SnapshotFile.readString(in);
+            final String topic = SnapshotFile.readString(in);
+            final String subtopic = SnapshotFile.readString(in);
+            restored[ix] = new Entry(key(origin, operator, topic, subtopic),
+                    origin, operator, topic, subtopic);
+            restored[ix].latest = in.getLong();
+            restored[ix].expiration = in.getLong();
+        }
+        return restored;
+    }
+
+    @Override
+    protected int restore(Entry[] restored) {
+        final long now = System.currentTimeMillis();
+        this.generation++;
+        for (final Entry entry : restored) {
+            if (entry.expiration > 0 && entry.expiration < now)
+                continue;
+            if (this.entries.containsKey(entry.key))
+                continue;
+            entry.generation = this.generation;
+            this.entries.put(entry.key, entry);
+            this.link(entry);
+            this.schedulePurge(entry.expiration);
+        }
+        return restored.length;
+    }
+
+    // *********************************
+    // Queries
+    // *********************************
+
+    /**
+     * @return is anyone interested in anything?
+     */
+    public synchronized boolean hasAnyInterest() {
+        return this.root.total > 0;
+    }
+
+    /**
+     * @return is anyone interested in the topic or one of its ancestors?
+     */
+    public synchronized boolean hasInterest(String topic) {
+        if (topic == null)
+            return false;
+        Node node = this.root;
+        int start = 0;
+        while (node != null) {
+            if (!node.operators.isEmpty())
+                return true;
+            if (start > topic.length())
+                return false;
+            int end = topic.indexOf(SEPARATOR, start);
+            if (end < 0)
+                end = topic.length();
+            node = node.children.get(topic.substring(start, end));
+            start = end + 1;
+        }
+        return false;
+    }
+
+    /**
+     * @return the operators interested in the topic or one of its ancestors,
+     *         i.e. those who would receive something published to the topic.
+     */
+    public synchronized Set<String> getInterested(String topic) {
+        final Set<String> result = new HashSet<String>();
+        if (topic == null)
+            return result;
+        Node node = this.root;
+        int start = 0;
+        while (node != null) {
+            result.addAll(node.operators.keySet());
+            if (start > topic.length())
+                break;
+            int end = topic.indexOf(SEPARATOR, start);
+            if (end < 0)
+                end = topic.length();
+            node = node.children.get(topic.substring(start, end));
+            start = end + 1;
+        }
+        return result;
+    }
+
+    /**
+     * @return the operators interested in the prefix or any topic below it.
+     */
+    public synchronized Set<String> getInterestedUnder(String prefix) {
+        final Set<String> result = new HashSet<String>();
+        final Node node = this.find(prefix);
+        if (node != null) {
+            collect(node, result);
+        }
+        return result;
+    }
+
+    /**
+     * @return the number of capability rows at or below the prefix.
+     */
+    public synchronized int countUnder(String prefix) {
+        final Node node = this.find(prefix);
+        return (node == null) ? 0 : node.total;
+    }
+
+    public synchronized int size() {
+        return this.entries.size();
+    }
+
+    private Node find(String prefix) {
+        if (prefix == null || prefix.length() < 1)
+            return this.root;
+        Node node = this.root;
+        int start = 0;
+        while (node != null && start <= prefix.length()) {
+            int end = prefix.indexOf(SEPARATOR, start);
+            if (end < 0)
+                end = prefix.length();
+            node = node.children.get(prefix.substring(start, end));
+            start = end + 1;
+        }
+        return node;
+    }
+
+    private static void collect(Node node, Set<String> result) {
+        if (node.total < 1)
+            return;
+        result.addAll(node.operators.keySet());
+        for (final Node child : node.children.values()) {
+            collect(child, result);
+        }
+    }
+
+    // *********************************
+    // Maintenance
+    // *********************************
+
+    /**
+     * Merge the rows into the index, the caller holds the lock. Expired rows
+     * are removed. A row whose LATEST and EXPIRATION match the entry held is
+     * unchanged.
+     */
+    @Override
+    protected int merge(Cursor cursor, boolean notify) {
+        final int originIx = cursor.getColumnIndex(CapabilitySchema.ORIGIN.field);
+        final int operatorIx = cursor.getColumnIndex(CapabilitySchema.OPERATOR.field);
+        final int topicIx = cursor.getColumnIndex(CapabilitySchema.TOPIC.field);
+        final int subtopicIx = cursor.getColumnIndex(CapabilitySchema.SUBTOPIC.field);
+        final int latestIx = cursor.getColumnIndex(CapabilitySchema.LATEST.field);
+        final int expirationIx = cursor.getColumnIndex(CapabilitySchema.EXPIRATION.field);
+        final long now = System.currentTimeMillis();
+        int merged = 0;
+        while (cursor.moveToNext()) {
+            final String operator = cursor.getString(operatorIx);
+            final String topic = cursor.getString(topicIx);
+            if (operator == null || topic == null)
+                continue;
+            final String origin = (originIx < 0) ? null : cursor.getString(originIx);
+            final String subtopic = (subtopicIx < 0) ? null : cursor.getString(subtopicIx);
+            final long latest = (latestIx < 0) ? 0 : cursor.getLong(latestIx);
+            final long expiration = (expirationIx < 0) ? 0 : cursor.getLong(expirationIx);
+            if (latest > this.watermark) {
+                this.watermark = latest;
+            }
+            final String key = key(origin, operator, topic, subtopic);
+
+            Entry entry = this.entries.get(key);
+            if (expiration > 0 && expiration < now) {
+                if (entry != null) {
+                    this.entries.remove(key);
+                    this.unlink(entry);
+                    merged++;
+                }
+                continue;
+            }
+            if (entry == null) {
+                entry = new Entry(key, origin, operator, topic, subtopic);
+                this.entries.put(key, entry);
+                this.link(entry);
+            } else if (entry.latest == latest && entry.expiration == expiration) {
+                entry.generation = this.generation;
+                continue;
+            }
+            entry.latest = latest;
+            entry.expiration = expiration;
+            entry.generation = this.generation;
+            this.schedulePurge(expiration);
+            merged++;
+        }
+        return merged;
+    }
+
+    private static String key(String origin, String operator, String topic, String subtopic) {
+        return new StringBuilder().append(origin).append('\u0000')
+                .append(operator).append('\u0000').append(topic).append('\u0000')
+                .append(subtopic).toString();
+    }
+
+    /**
+     * Drop the entries not seen by the latest refresh.
+     */
+    @Override
+    protected void sweep() {
+        final Iterator<Entry> it = this.entries.values().iterator();
+        while (it.hasNext()) {
+            final Entry entry = it.next();
+            if (entry.generation == this.generation)
+                continue;
+            it.remove();
+            this.unlink(entry);
+        }
+    }
+
+    /**
+     * Drop the entries which have expired, on the worker thread, then post
+     * the purger for the earliest expiration still held.
+     */
+    private synchronized void purge() {
+        this.purgeAt = Long.MAX_VALUE;
+        if (this.handler == null)
+            return;
+        final long now = System.currentTimeMillis();
+        long next = Long.MAX_VALUE;
+        int purged = 0;
+        final Iterator<Entry> it = this.entries.values().iterator();
+        while (it.hasNext()) {
+            final Entry entry = it.next();
+            if (entry.expiration < 1)
+                continue;
+            if (entry.expiration < now) {
+                it.remove();
+                this.unlink(entry);
+                purged++;
+                continue;
+            }
+            next = Math.min(next, entry.expiration);
+        }
+        logger.trace("purge: [{}] expired capabilities", purged);
+        this.schedulePurge(next);
+    }
+
+    /**
+     * Post the purger for the expiration, unless it is already posted to
+     * run by then. The caller holds the lock.
+     *
+     * @param expiration a wall clock time, non-positive for none
+     */
+    private void schedulePurge(long expiration) {
+        if (expiration < 1 || expiration == Long.MAX_VALUE || this.handler == null)
+            return;
+        if (expiration >= this.purgeAt)
+            return;
+        this.handler.removeCallbacks(this.purger);
+        this.purgeAt = expiration;
+        this.handler.postDelayed(this.purger,
+                Math.max(0L, expiration - System.currentTimeMillis()));
+    }
+
+    /**
+     * Add the entry to the trie, counting it at each node on its path.
+     */
+    void link(Entry entry) {
+        Node node = this.root;
+        node.total++;
+        int start = 0;
+        final String topic = entry.topic;
+        while (start <= topic.length()) {
+            int end = topic.indexOf(SEPARATOR, start);
+            if (end < 0)
+                end = topic.length();
+            final String segment = topic.substring(start, end);
+            Node child = node.children.get(segment);
+            if (child == null) {
+                child = new Node();
+                node.children.put(segment, child);
+            }
+            node = child;
+            node.total++;
+            start = end + 1;
+        }
+        final int[] count = node.operators.get(entry.operator);
+        if (count == null) {
+            node.operators.put(entry.operator, new int[] {
+                    1
+            });
+        } else {
+            count[0]++;
+        }
+    }
+
+    /**
+     * Remove the entry from the trie, pruning the nodes left empty.
+     */
+    void unlink(Entry entry) {
+        this.unlink(this.root, entry.topic, 0, entry.operator);
+    }
+
+    private boolean unlink(Node node, String topic, int start, String operator) {
+        node.total--;
+        if (start > topic.length()) {
+            final int[] count = node.operators.get(operator);
+            if (count != null && --count[0] < 1) {
+                node.operators.remove(operator);
+            }
+            return node.total < 1;
+        }
+        int end = topic.indexOf(SEPARATOR, start);
+        if (end < 0)
+            end = topic.length();
+        final String segment = topic.substring(start, end);
+        final Node child = node.children.get(segment);
+        if (child != null && this.unlink(child, topic, end + 1, operator)) {
+            node.children.remove(segment);
+        }
+        return node.total < 1;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return new StringBuilder().append("capability index entries=")
+                .append(this.entries.size()).append(" watermark=")
+                .append(this.watermark).toString();
+    }
+}
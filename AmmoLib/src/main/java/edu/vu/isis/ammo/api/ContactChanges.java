@@ -0,0 +1,358 @@
+/* Copyright (c) 2010-2015 Vanderbilt University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package edu.vu.isis.ammo.api;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.util.Log;
+import edu.vu.isis.ammo.api.AmmoContacts.Contact;
+import edu.vu.isis.ammo.contacts.provider.ContactsContract.RawContacts;
+
+/**
+ * The contacts inserted, changed and deleted since a sync token, see
+ * AmmoContacts.getContactChanges().
+ * <p>
+ * A token records the VERSION, DIRTY flag and SOURCE_ID of each raw contact
+ * as of a scan of the raw contacts table. The changes since a token are
+ * found by comparing it with a new scan; only the contacts whose raw
+ * contacts differ are read. The token of the result is the starting point
+ * for the next call, e.g. <code>
+ ContactChanges.Token token = loadToken(); // or ContactChanges.Token.EMPTY
+ final ContactChanges changes = contacts.getContactChanges(token);
+ if (changes != null) {
+     share(changes.getInserted(), changes.getChanged(), changes.getDeleted());
+     saveToken(changes.getToken().toByteArray());
+ }
+ </code>
+ */
+public class ContactChanges {
+    private static final String TAG = "AmmoContacts";
+
+    static final String[] RAW_PROJECTION = {
+            RawContacts._ID,
+            RawContacts.CONTACT_ID,
+            RawContacts.VERSION,
+            RawContacts.DELETED,
+            RawContacts.DIRTY,
+            RawContacts.SOURCE_ID
+    };
+
+    /**
+     * The state of a raw contact as of a scan.
+     */
+    static class RawState {
+        final long contactId;
+        final long version;
+        final boolean dirty;
+        final String sourceId;
+
+        RawState(long contactId, long version, boolean dirty, String sourceId) {
+            this.contactId = contactId;
+            this.version = version;
+            this.dirty = dirty;
+            this.sourceId = sourceId;
+        }
+    }
+
+    /**
+     * An immutable record of the raw contacts, it may be kept across process
+     * restarts with toByteArray() and fromByteArray().
+     */
+    public static final class Token {
+        private static final int MAGIC = 0x414d4354; // "AMCT"
+        private static final int VERSION = 1;
+
+        /** the token before any scan, every contact is new */
+        public static final Token EMPTY = new Token(new HashMap<Long, RawState>());
+
+        /** raw contact id : state */
+        final Map<Long, RawState> raws;
+
+        Token(Map<Long, RawState> raws) {
+            this.raws = raws;
+        }
+
+        public int size() {
+            return this.raws.size();
+        }
+
+        /**
+         * @return the contact ids of the raw contacts
+         */
+        Set<Long> contactIds() {
+            final Set<Long> ids = new HashSet<Long>();
+            for (final RawState raw : this.raws.values()) {
+                ids.add(Long.valueOf(raw.contactId));
+            }
+            return ids;
+        }
+
+        public byte[] toByteArray() {
+            final ByteArrayOutputStream baos = new ByteArrayOutputStream(16 + 32 * this.raws.size());
+            final DataOutputStream out = new DataOutputStream(baos);
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(this.raws.size());
+                for (final Map.Entry<Long, RawState> entry : this.raws.entrySet()) {
+                    final RawState raw = entry.getValue();
+                    out.writeLong(entry.getKey().longValue());
+                    out.writeLong(raw.contactId);
+                    out.writeLong(raw.version);
+                    out.writeBoolean(raw.dirty);
+                    out.writeBoolean(raw.sourceId != null);
+                    if (raw.sourceId != null) {
+                        out.writeUTF(raw.sourceId);
+                    }
+                }
+                out.flush();
+            } catch (IOException ex) {
+                throw new IllegalStateException("could not encode token", ex);
+            }
+            return baos.toByteArray();
+        }
+
+        /**
+         * @throws IllegalArgumentException if the bytes are not a token
+         */
+        public static Token fromByteArray(byte[] bytes) {
+            final DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    throw new IllegalArgumentException("not a contact sync token");
+                }
+                final int size = in.readInt();
+                final Map<Long, RawState> raws = new HashMap<Long, RawState>(size);
+                for (int ix = 0; ix < size; ++ix) {
+                    final long rawId = in.readLong();
+                    final long contactId = in.readLong();
+                    final long version = in.readLong();
+                    final boolean dirty = in.readBoolean();
+                    final String sourceId = in.readBoolean() ? in.readUTF() : null;
+                    raws.put(Long.valueOf(rawId), new RawState(contactId, version, dirty, sourceId));
+                }
+                return new Token(raws);
+            } catch (IOException ex) {
+                throw new IllegalArgumentException("truncated contact sync token", ex);
+            }
+        }
+
+        /**
+         * Scan the raw contacts, those marked deleted are left out.
+         *
+         * @return the token, null if the query failed
+         */
+        static Token scan(ContentResolver resolver) {
+            final Cursor cursor;
+            try {
+                cursor = resolver.query(RawContacts.CONTENT_URI, RAW_PROJECTION, null, null, null);
+            } catch (Throwable e) {
+                Log.e(TAG, "Exception: " + e.getMessage());
+                return null;
+            }
+            if (cursor == null) {
+                Log.e(TAG, "Token.scan() -- cursor is null");
+                return null;
+            }
+            try {
+                final Map<Long, RawState> raws = new HashMap<Long, RawState>(cursor.getCount());
+                while (cursor.moveToNext()) {
+                    if (cursor.getInt(3) != 0)
+                        continue;
+                    raws.put(Long.valueOf(cursor.getLong(0)),
+                            new RawState(cursor.getLong(1), cursor.getLong(2),
+                                    cursor.getInt(4) != 0, cursor.getString(5)));
+                }
+                return new Token(raws);
+            } finally {
+                cursor.close();
+            }
+        }
+
+        /**
+         * @return the contacts with a raw contact added, changed, moved to
+         *         another contact or removed between this token and the later
+         */
+        Set<Long> changedContacts(Token later) {
+            final Set<Long> changed = new HashSet<Long>();
+            for (final Map.Entry<Long, RawState> entry : later.raws.entrySet()) {
+                final RawState now = entry.getValue();
+                final RawState was = this.raws.get(entry.getKey());
+                if (was == null) {
+                    changed.add(Long.valueOf(now.contactId));
+                    continue;
+                }
+                if (was.version != now.version || was.contactId != now.contactId) {
+                    changed.add(Long.valueOf(now.contactId));
+                    changed.add(Long.valueOf(was.contactId));
+                }
+            }
+            for (final Map.Entry<Long, RawState> entry : this.raws.entrySet()) {
+                if (!later.raws.containsKey(entry.getKey())) {
+                    changed.add(Long.valueOf(entry.getValue().contactId));
+                }
+            }
+            return changed;
+        }
+    }
+
+    private final List<Contact> inserted;
+    private final List<Contact> changed;
+    private final List<Long> deleted;
+    private final List<String> deletedSourceIds;
+    private final Set<Long> dirty;
+    private final Token token;
+
+    ContactChanges(List<Contact> inserted, List<Contact> changed, List<Long> deleted,
+            List<String> deletedSourceIds, Set<Long> dirty, Token token) {
+        this.inserted = Collections.unmodifiableList(inserted);
+        this.changed = Collections.unmodifiableList(changed);
+        this.deleted = Collections.unmodifiableList(deleted);
+        this.deletedSourceIds = Collections.unmodifiableList(deletedSourceIds);
+        this.dirty = Collections.unmodifiableSet(dirty);
+        this.token = token;
+    }
+
+    /**
+     * Compare the token with a new scan and read the contacts which differ.
+     *
+     * @return the changes, null if a query failed
+     */
+    static ContactChanges since(AmmoContacts contacts, ContentResolver resolver, Token since) {
+        final Token now = Token.scan(resolver);
+        if (now == null)
+            return null;
+        final Set<Long> touched = since.changedContacts(now);
+        final Set<Long> before = since.contactIds();
+        final Set<Long> after = now.contactIds();
+
+        final List<String> ids = new ArrayList<String>(touched.size());
+        for (final Long contactId : touched) {
+            if (after.contains(contactId)) {
+                ids.add(contactId.toString());
+            }
+        }
+        final Map<Integer, Contact> found = ids.isEmpty()
+                ? new HashMap<Integer, Contact>()
+                : contacts.getContactsByContactIds(ids);
+        if (found == null)
+            return null;
+
+        final List<Contact> inserted = new ArrayList<Contact>();
+        final List<Contact> changed = new ArrayList<Contact>();
+        final List<Long> deleted = new ArrayList<Long>();
+        for (final Long contactId : touched) {
+            if (!after.contains(contactId)) {
+                deleted.add(contactId);
+                continue;
+            }
+            final Contact contact = found.get(Integer.valueOf(contactId.intValue()));
+            if (contact == null) {
+                // the contact has no data rows, it is as good as deleted
+                if (before.contains(contactId)) {
+                    deleted.add(contactId);
+                }
+                continue;
+            }
+            if (before.contains(contactId)) {
+                changed.add(contact);
+            } else {
+                inserted.add(contact);
+            }
+        }
+
+        final List<String> deletedSourceIds = new ArrayList<String>();
+        for (final Map.Entry<Long, RawState> entry : since.raws.entrySet()) {
+            final RawState raw = entry.getValue();
+            if (raw.sourceId != null && !now.raws.containsKey(entry.getKey())) {
+                deletedSourceIds.add(raw.sourceId);
+            }
+        }
+        final Set<Long> dirty = new HashSet<Long>();
+        for (final RawState raw : now.raws.values()) {
+            if (raw.dirty && touched.contains(Long.valueOf(raw.contactId))) {
+                dirty.add(Long.valueOf(raw.contactId));
+            }
+        }
+        return new ContactChanges(inserted, changed, deleted, deletedSourceIds, dirty, now);
+    }
+
+    /**
+     * @return the contacts which did not exist at the token
+     */
+    public List<Contact> getInserted() {
+        return this.inserted;
+    }
+
+    /**
+     * @return the contacts of which a raw contact has changed
+     */
+    public List<Contact> getChanged() {
+        return this.changed;
+    }
+
+    /**
+     * @return the ids of the contacts which no longer exist
+     */
+    public List<Long> getDeleted() {
+        return this.deleted;
+    }
+
+    /**
+     * @return the SOURCE_ID of the deleted raw contacts which had one
+     */
+    public List<String> getDeletedSourceIds() {
+        return this.deletedSourceIds;
+    }
+
+    /**
+     * @return true if a raw contact of the inserted or changed contact is
+     *         DIRTY, i.e. was changed on this device rather than by a sync
+     */
+    public boolean isDirty(Contact contact) {
+        return this.dirty.contains(Long.valueOf(contact.getRawContactId()));
+    }
+
+    public boolean isEmpty() {
+        return this.inserted.isEmpty() && this.changed.isEmpty() && this.deleted.isEmpty();
+    }
+
+    /**
+     * @return the token from which to ask for the next changes
+     */
+    public Token getToken() {
+        return this.token;
+    }
+}
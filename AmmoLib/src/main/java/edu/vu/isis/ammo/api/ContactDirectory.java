@@ -0,0 +1,396 @@
+/* Copyright (c) 2010-2015 Vanderbilt University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package edu.vu.isis.ammo.api;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.os.Handler;
+import android.os.HandlerThread;
+import edu.vu.isis.ammo.api.AmmoContacts.Contact;
+import edu.vu.isis.ammo.contacts.provider.ContactsContract;
+
+/**
+ * An in-memory directory of the contacts, indexed by user id (the TIGR uid),
+ * call sign, user id number and lookup key.
+ * <p>
+ * The directory is filled by a single query of the data table when it is
+ * started. Thereafter a content observer on the contacts provider triggers
+ * a scan of the raw contacts' VERSION and DELETED columns, see
+ * ContactChanges.Token; only the contacts
+ * whose raw contacts were added, changed or removed since the previous scan
+ * are read again. The queries run on a worker thread, lookups are a hash
+ * read.
+ * <p>
+ * The directory holds its own Contact objects, each lookup returns a copy
+ * which the caller may modify. The index keys are taken when a contact is
+ * indexed. Call signs need not be unique, so that index yields a list.
+ * <p>
+ * There is one directory per process, see getInstance(). It is shared by
+ * reference count, each start() should be matched by a stop(). e.g. <code>
+ final ContactDirectory directory = ContactDirectory.getInstance(context);
+ directory.start();
+ ...
+ final AmmoContacts.Contact sender = directory.getByUserId(userId);
+ ...
+ directory.stop();
+ </code>
+ */
+public class ContactDirectory {
+    private static final Logger logger = LoggerFactory.getLogger("api.contact.directory");
+
+    private static ContactDirectory instance = null;
+
+    /**
+     * @return the directory for this process
+     */
+    public static synchronized ContactDirectory getInstance(Context context) {
+        if (instance == null) {
+            instance = new ContactDirectory(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private final Context context;
+    private final AmmoContacts contacts;
+
+    /**
+     * A contact and the keys under which it was indexed.
+     */
+    private static final class Indexed {
+        final Contact contact;
+        final String userId;
+        final String idNumber;
+        final String lookup;
+        final String callsign;
+
+        Indexed(Contact contact) {
+            this.contact = contact;
+            this.userId = contact.getUserId();
+            this.idNumber = contact.getUserIdNumber();
+            this.lookup = contact.getLookup();
+            this.callsign = contact.getCallSign();
+        }
+    }
+
+    /** guarded by this */
+    private final Map<Integer, Indexed> byContactId;
+    private final Map<String, Contact> byUserId;
+    private final Map<String, Contact> byIdNumber;
+    private final Map<String, Contact> byLookup;
+    private final Map<String, List<Contact>> byCallsign;
+    /** the raw contacts as of the last scan */
+    private ContactChanges.Token rawStates;
+    private boolean loaded;
+    private int users;
+    /** advanced by each last stop, a scan begun before it is dropped */
+    private int session;
+
+    private HandlerThread thread;
+    private Handler handler;
+    private ContentObserver observer;
+    private boolean updatePending;
+
+    private ContactDirectory(Context context) {
+        this.context = context;
+        this.contacts = AmmoContacts.newInstance(context);
+        this.byContactId = new HashMap<Integer, Indexed>();
+        this.byUserId = new HashMap<String, Contact>();
+        this.byIdNumber = new HashMap<String, Contact>();
+        this.byLookup = new HashMap<String, Contact>();
+        this.byCallsign = new HashMap<String, List<Contact>>();
+        this.rawStates = ContactChanges.Token.EMPTY;
+        this.loaded = false;
+        this.users = 0;
+        this.session = 0;
+        this.updatePending = false;
+    }
+
+    /**
+     * Begin tracking the contacts. The first start loads the directory and
+     * registers the content observer.
+     */
+    public synchronized void start() {
+        if (this.users++ > 0)
+            return;
+        logger.debug("start contact directory");
+        this.thread = new HandlerThread("contact-directory");
+        this.thread.start();
+        this.handler = new Handler(this.thread.getLooper());
+        this.observer = new ContentObserver(this.handler) {
+            @Override
+            public void onChange(boolean selfChange) {
+                ContactDirectory.this.update();
+            }
+        };
+        this.context.getContentResolver()
+                .registerContentObserver(ContactsContract.AUTHORITY_URI, true, this.observer);
+        this.update();
+    }
+
+    /**
+     * Stop tracking, the last stop drops the directory.
+     */
+    public synchronized void stop() {
+        if (this.users < 1)
+            return;
+        if (--this.users > 0)
+            return;
+        logger.debug("stop contact directory");
+        this.session++;
+        this.context.getContentResolver().unregisterContentObserver(this.observer);
+        this.thread.quit();
+        this.observer = null;
+        this.handler = null;
+        this.thread = null;
+        this.clear();
+        this.rawStates = ContactChanges.Token.EMPTY;
+        this.loaded = false;
+        this.updatePending = false;
+    }
+
+    public synchronized boolean isLoaded() {
+        return this.loaded;
+    }
+
+    public synchronized int size() {
+        return this.byContactId.size();
+    }
+
+    /**
+     * @return the contact with the user id, null if there is none
+     */
+    public synchronized Contact getByUserId(String userId) {
+        return copy(this.byUserId.get(userId));
+    }
+
+    /**
+     * The TIGR uid is the user id, see Contact.getUserId().
+     */
+    public Contact getByTigrUid(String tigrUid) {
+        return this.getByUserId(tigrUid);
+    }
+
+    public synchronized Contact getByIdNumber(String idNumber) {
+        return copy(this.byIdNumber.get(idNumber));
+    }
+
+    public synchronized Contact getByLookupKey(String lookupKey) {
+        return copy(this.byLookup.get(lookupKey));
+    }
+
+    /**
+     * @return the contacts with the call sign, possibly none
+     */
+    public synchronized List<Contact> getByCallsign(String callsign) {
+        final List<Contact> found = this.byCallsign.get(callsign);
+        if (found == null)
+            return Collections.emptyList();
+        final List<Contact> copies = new ArrayList<Contact>(found.size());
+        for (final Contact contact : found) {
+            copies.add(copy(contact));
+        }
+        return copies;
+    }
+
+    public synchronized List<Contact> getAll() {
+        final List<Contact> copies = new ArrayList<Contact>(this.byContactId.size());
+        for (final Indexed indexed : this.byContactId.values()) {
+            copies.add(copy(indexed.contact));
+        }
+        return copies;
+    }
+
+    private static Contact copy(Contact contact) {
+        return (contact == null) ? null : new Contact(contact);
+    }
+
+    /**
+     * Post a scan, unless one is already waiting.
+     */
+    private synchronized void update() {
+        if (this.handler == null || this.updatePending)
+            return;
+        this.updatePending = true;
+        this.handler.post(new Runnable() {
+            @Override
+            public void run() {
+                ContactDirectory.this.scan();
+            }
+        });
+    }
+
+    /**
+     * Compare the raw contacts with those of the previous scan and read the
+     * contacts which have changed. The first scan reads all of the contacts.
+     */
+    private void scan() {
+        final boolean initial;
+        final int session;
+        final ContactChanges.Token prior;
+        synchronized (this) {
+            this.updatePending = false;
+            initial = !this.loaded;
+            session = this.session;
+            prior = this.rawStates;
+        }
+        final ContactChanges.Token current =
+                ContactChanges.Token.scan(this.context.getContentResolver());
+        if (current == null)
+            return;
+
+        if (initial) {
+            final ArrayList<Contact> all = this.contacts.getContactsFromData(null, null);
+            if (all == null)
+                return;
+            synchronized (this) {
+                if (this.session != session)
+                    return;
+                this.clear();
+                for (final Contact contact : all) {
+                    this.index(contact);
+                }
+                this.rawStates = current;
+                this.loaded = true;
+            }
+            logger.debug("loaded [{}] contacts", all.size());
+            return;
+        }
+
+        final Set<Long> changed = prior.changedContacts(current);
+        if (changed.isEmpty()) {
+            synchronized (this) {
+                if (this.session == session) {
+                    this.rawStates = current;
+                }
+            }
+            return;
+        }
+
+        final List<String> ids = new ArrayList<String>(changed.size());
+        for (final Long contactId : changed) {
+            ids.add(contactId.toString());
+        }
+        final Map<Integer, Contact> found = this.contacts.getContactsByContactIds(ids);
+        if (found == null) {
+            logger.warn("could not read changed contacts, reload on next change");
+            synchronized (this) {
+                if (this.session == session) {
+                    this.loaded = false;
+                }
+            }
+            return;
+        }
+        synchronized (this) {
+            if (this.session != session)
+                return;
+            this.rawStates = current;
+            for (final Long contactId : changed) {
+                final Integer key = Integer.valueOf(contactId.intValue());
+                this.unindex(this.byContactId.get(key));
+                final Contact contact = found.get(key);
+                if (contact != null) {
+                    this.index(contact);
+                }
+            }
+        }
+        logger.trace("scan: [{}] contacts changed", changed.size());
+    }
+
+    /**
+     * Add the contact to the indexes, the caller holds the lock.
+     */
+    private void index(Contact contact) {
+        final Indexed indexed = new Indexed(contact);
+        this.unindex(this.byContactId.put(Integer.valueOf(contact.getRawContactId()), indexed));
+        putIfKey(this.byUserId, indexed.userId, contact);
+        putIfKey(this.byIdNumber, indexed.idNumber, contact);
+        putIfKey(this.byLookup, indexed.lookup, contact);
+        final String callsign = indexed.callsign;
+        if (callsign != null) {
+            List<Contact> list = this.byCallsign.get(callsign);
+            if (list == null) {
+                list = new ArrayList<Contact>(1);
+                this.byCallsign.put(callsign, list);
+            }
+            list.add(contact);
+        }
+    }
+
+    /**
+     * Remove the contact from the indexes under the keys with which it was
+     * indexed, the caller holds the lock.
+     */
+    private void unindex(Indexed indexed) {
+        if (indexed == null)
+            return;
+        final Contact contact = indexed.contact;
+        final Integer key = Integer.valueOf(contact.getRawContactId());
+        if (this.byContactId.get(key) == indexed) {
+            this.byContactId.remove(key);
+        }
+        removeIfSame(this.byUserId, indexed.userId, contact);
+        removeIfSame(this.byIdNumber, indexed.idNumber, contact);
+        removeIfSame(this.byLookup, indexed.lookup, contact);
+        final String callsign = indexed.callsign;
+        if (callsign != null) {
+            final List<Contact> list = this.byCallsign.get(callsign);
+            if (list != null) {
+                list.remove(contact);
+                if (list.isEmpty()) {
+                    this.byCallsign.remove(callsign);
+                }
+            }
+        }
+    }
+
+    private void clear() {
+        this.byContactId.clear();
+        this.byUserId.clear();
+        this.byIdNumber.clear();
+        this.byLookup.clear();
+        this.byCallsign.clear();
+    }
+
+    private static void putIfKey(Map<String, Contact> index, String key, Contact contact) {
+        if (key == null || key.length() < 1)
+            return;
+        index.put(key, contact);
+    }
+
+    private static void removeIfSame(Map<String, Contact> index, String key, Contact contact) {
+        if (key == null)
+            return;
+        if (index.get(key) == contact) {
+            index.remove(key);
+        }
+    }
+}
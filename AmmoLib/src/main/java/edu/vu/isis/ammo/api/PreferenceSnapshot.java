@@ -0,0 +1,157 @@
+/* Copyright (c) 2010-2015 Vanderbilt University
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package edu.vu.isis.ammo.api;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An immutable set of preference values, as returned by
+ * AmmoPreference.getAll().
+ * <p>
+ * The values are held as the provider returned them, String, Boolean,
+ * Integer, Long or Float, and converted by the typed getters; a boolean
+ * stored as a string is parsed, a number is narrowed or widened as needed.
+ * A key which is not present yields the supplied default.
+ * <p>
+ * The snapshots published by a PreferenceView carry a version, which is
+ * incremented each time a change produces a new snapshot.
+ */
+public class PreferenceSnapshot {
+
+    private final Map<String, Object> values;
+    private final long version;
+
+    PreferenceSnapshot(Map<String, Object> values) {
+        this(values, 0L);
+    }
+
+    PreferenceSnapshot(Map<String, Object> values, long version) {
+        this.values = Collections.unmodifiableMap(new HashMap<String, Object>(values));
+        this.version = version;
+    }
+
+    private PreferenceSnapshot(PreferenceSnapshot that, long version) {
+        this.values = that.values;
+        this.version = version;
+    }
+
+    /**
+     * @return the same values with another version
+     */
+    PreferenceSnapshot withVersion(long version) {
+        return new PreferenceSnapshot(this, version);
+    }
+
+    boolean sameValues(PreferenceSnapshot that) {
+        return that != null && this.values.equals(that.values);
+    }
+
+    public long getVersion() {
+        return this.version;
+    }
+
+    public boolean contains(String key) {
+        return this.values.containsKey(key);
+    }
+
+    public int size() {
+        return this.values.size();
+    }
+
+    public Set<String> keySet() {
+        return this.values.keySet();
+    }
+
+    /**
+     * @return the value as the provider returned it, or null
+     */
+    public Object get(String key) {
+        return this.values.get(key);
+    }
+
+    public String getString(String key, String defaultValue) {
+        if (!this.values.containsKey(key))
+            return defaultValue;
+        final Object value = this.values.get(key);
+        return (value == null) ? null : value.toString();
+    }
+
+    public boolean getBoolean(String key, boolean defaultValue) {
+        final Object value = this.values.get(key);
+        if (value instanceof Boolean)
+            return ((Boolean) value).booleanValue();
+        if (value instanceof String)
+            return Boolean.valueOf((String) value);
+        return defaultValue;
+    }
+
+    public int getInt(String key, int defaultValue) {
+        final Object value = this.values.get(key);
+        if (value instanceof Number)
+            return ((Number) value).intValue();
+        if (value instanceof String) {
+            try {
+                return Integer.parseInt((String) value);
+            } catch (NumberFormatException ex) {
+                return defaultValue;
+            }
+        }
+        return defaultValue;
+    }
+
+    public long getLong(String key, long defaultValue) {
+        final Object value = this.values.get(key);
+        if (value instanceof Number)
+            return ((Number) value).longValue();
+        if (value instanceof String) {
+            try {
+                return Long.parseLong((String) value);
+            } catch (NumberFormatException ex) {
+                return defaultValue;
+            }
+        }
+        return defaultValue;
+    }
+
+    public float getFloat(String key, float defaultValue) {
+        final Object value = this.values.get(key);
+        if (value instanceof Number)
+            return ((Number) value).floatValue();
+        if (value instanceof String) {
+            try {
+                return Float.parseFloat((String) value);
+            } catch (NumberFormatException ex) {
+                return defaultValue;
+            }
+        }
+        return defaultValue;
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder().append('v').append(this.version).append(' ')
+                .append(this.values).toString();
+    }
+}
@@ -0,0 +1,123 @@
+/* Copyright (c) 2010-2015 Vanderbilt University
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package edu.vu.isis.ammo.api;
+
+import java.util.Set;
+
+/**
+ * The current snapshot of a group of related preferences, e.g. the gateway
+ * host, port and enabled flag.
+ * <p>
+ * The snapshot is immutable, when one of the preferences changes the view
+ * is marked stale and the next get() builds a new snapshot to replace it.
+ * Otherwise get() is a single volatile read. The change broadcast arrives on
+ * the main thread, so nothing is read from the provider there. The values
+ * taken from one snapshot are always consistent with each other.
+ * e.g. <code>
+ final PreferenceView gateway = AmmoPreference.getInstance(context)
+         .publish(new AmmoPreference.Keys()
+                 .addString(INetPrefKeys.GATEWAY_HOST, INetPrefKeys.DEFAULT_GATEWAY_HOST)
+                 .addInt(INetPrefKeys.GATEWAY_PORT, INetPrefKeys.DEFAULT_GATEWAY_PORT));
+ ...
+ final PreferenceSnapshot prefs = gateway.get();
+ connect(prefs.getString(INetPrefKeys.GATEWAY_HOST, INetPrefKeys.DEFAULT_GATEWAY_HOST),
+         prefs.getInt(INetPrefKeys.GATEWAY_PORT, INetPrefKeys.DEFAULT_GATEWAY_PORT));
+ ...
+ AmmoPreference.getInstance(context).unpublish(gateway);
+ </code>
+ */
+public class PreferenceView {
+
+    private final AmmoPreference prefs;
+    private final AmmoPreference.Keys keys;
+    private final Set<String> keySet;
+    private volatile PreferenceSnapshot current;
+    /** a preference has changed since the snapshot was built */
+    private volatile boolean stale;
+
+    PreferenceView(AmmoPreference prefs, AmmoPreference.Keys keys) {
+        this.prefs = prefs;
+        this.keys = keys;
+        this.keySet = keys.keySet();
+        this.current = null;
+        this.stale = true;
+    }
+
+    /**
+     * Should a preference have changed since the last get(), the
+     * preferences are read again on the calling thread.
+     *
+     * @return the current snapshot
+     */
+    public PreferenceSnapshot get() {
+        if (this.stale) {
+            this.refresh();
+        }
+        return this.current;
+    }
+
+    public long getVersion() {
+        final PreferenceSnapshot snapshot = this.get();
+        return (snapshot == null) ? 0L : snapshot.getVersion();
+    }
+
+    /**
+     * @param key a preference, null for any
+     * @return true if the snapshot depends on the preference
+     */
+    boolean covers(String key) {
+        return key == null || this.keySet.contains(key);
+    }
+
+    /**
+     * The snapshot is to be rebuilt by the next get().
+     */
+    void markStale() {
+        this.stale = true;
+    }
+
+    /**
+     * Read the preferences and, if any has changed, publish a new snapshot.
+     * The writers are serialized, the readers are not blocked. A change
+     * which arrives during the read marks the view stale again.
+     *
+     * @return true if a new snapshot was published
+     */
+    synchronized boolean refresh() {
+        if (!this.stale) {
+            return false;
+        }
+        this.stale = false;
+        final PreferenceSnapshot prior = this.current;
+        final PreferenceSnapshot fresh = this.prefs.getAll(this.keys);
+        if (fresh.sameValues(prior)) {
+            return false;
+        }
+        this.current = fresh.withVersion((prior == null) ? 1L : prior.getVersion() + 1L);
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return String.valueOf(this.current);
+    }
+}
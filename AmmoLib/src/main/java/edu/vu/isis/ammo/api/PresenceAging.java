@@ -0,0 +1,126 @@
+/* Copyright (c) 2010-2015 Vanderbilt University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package edu.vu.isis.ammo.api;
+
+import edu.vu.isis.ammo.api.PresenceCache.Record;
+import edu.vu.isis.ammo.util.TimingWheel;
+
+/**
+ * Derives the temporal state of an operator from the time it was last
+ * observed.
+ * <p>
+ * An operator is PRESENT until the RARE threshold has passed since its
+ * LATEST, then RARE until the MISSED threshold, MISSED until the LOST
+ * threshold, LOST until the ABSENT threshold and ABSENT thereafter.
+ * <p>
+ * Each record is placed on a timing wheel at the time of its next
+ * transition, so advancing the wheel touches only the records whose state
+ * is due to change. LATEST is a wall clock time, the wheel runs on the
+ * SystemClock.elapsedRealtime() clock; the deadline is converted when the
+ * record is scheduled. The wheel is only advanced when its next transition
+ * is due, see nextExpiry(). Used by the PresenceCache, which holds its lock
+ * when calling schedule() and cancel().
+ */
+class PresenceAging {
+    static final long TICK_MILLIS = 1000L;
+
+    private static final int[] STATES = {
+            AmmoPresence.PRESENT,
+            AmmoPresence.RARE,
+            AmmoPresence.MISSED,
+            AmmoPresence.LOST,
+            AmmoPresence.ABSENT
+    };
+
+    /** the age (millisec) at which RARE, MISSED, LOST and ABSENT begin */
+    private final long[] thresholds;
+    private final TimingWheel<Record> wheel;
+
+    PresenceAging(long rareAfter, long missedAfter, long lostAfter, long absentAfter,
+            long elapsedNow) {
+        if (rareAfter < 0 || missedAfter < rareAfter || lostAfter < missedAfter
+                || absentAfter < lostAfter) {
+            throw new IllegalArgumentException("thresholds must be non-negative and ascending");
+        }
+        this.thresholds = new long[] {
+                rareAfter, missedAfter, lostAfter, absentAfter
+        };
+        this.wheel = new TimingWheel<Record>(TICK_MILLIS, elapsedNow);
+    }
+
+    /**
+     * Place the record on the wheel at its next transition, if it has one.
+     * Should the wheel have already passed the time of that transition it is
+     * applied now and the following transition is scheduled instead.
+     *
+     * @return the state of the record until its next transition
+     */
+    int schedule(Record record, long wallNow, long elapsedNow) {
+        this.cancel(record);
+        for (int ix = 0; ix < this.thresholds.length; ++ix) {
+            final long transition = record.latest + this.thresholds[ix];
+            if (transition <= wallNow)
+                continue;
+            record.timeout = this.wheel.schedule(record, elapsedNow + (transition - wallNow));
+            if (record.timeout != null)
+                return STATES[ix];
+        }
+        return STATES[this.thresholds.length];
+    }
+
+    void cancel(Record record) {
+        if (record.timeout == null)
+            return;
+        this.wheel.cancel(record.timeout);
+        record.timeout = null;
+    }
+
+    /**
+     * Pass the records whose transition has come to the expiry. It is called
+     * without the wheel locked.
+     */
+    int advance(long elapsedNow, TimingWheel.Expiry<Record> expiry) {
+        return this.wheel.advance(elapsedNow, expiry);
+    }
+
+    /**
+     * @return when advance() should next be called, on the
+     *         SystemClock.elapsedRealtime() clock, Long.MAX_VALUE if no record
+     *         is scheduled.
+     */
+    long nextExpiry() {
+        return this.wheel.nextExpiry();
+    }
+
+    int size() {
+        return this.wheel.size();
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder().append("aging rare=").append(this.thresholds[0])
+                .append(" missed=").append(this.thresholds[1])
+                .append(" lost=").append(this.thresholds[2])
+                .append(" absent=").append(this.thresholds[3])
+                .append(" scheduled=").append(this.wheel.size()).toString();
+    }
+}
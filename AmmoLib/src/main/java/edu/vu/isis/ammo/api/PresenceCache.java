@@ -0,0 +1,568 @@
+/* Copyright (c) 2010-2015 Vanderbilt University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package edu.vu.isis.ammo.api;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.os.SystemClock;
+import edu.vu.isis.ammo.api.AmmoPresence.OnPresenceChangeListener;
+import edu.vu.isis.ammo.api.AmmoPresence.UserStatus;
+import edu.vu.isis.ammo.core.provider.DistributorSchema;
+import edu.vu.isis.ammo.core.provider.PresenceSchema;
+import edu.vu.isis.ammo.core.provider.Relations;
+import edu.vu.isis.ammo.core.provider.TemporalState;
+import edu.vu.isis.ammo.util.SnapshotFile;
+import edu.vu.isis.ammo.util.TimingWheel;
+
+/**
+ * An in-memory copy of the presence relation, keyed by operator.
+ * <p>
+ * The cache is loaded, and kept current, as described for the RelationCache.
+ * The delta query reads only the operators which have been heard from, a
+ * full refresh reports the operators no longer present as ABSENT. The
+ * queries run on a worker thread, lookups are a hash read.
+ * <p>
+ * Listeners are told of changes in state. A row is only examined when its
+ * LATEST, COUNT or STATE differs from the record held. The changes are held
+ * for a short interval before they are delivered, an operator whose state
+ * changes and changes back within the interval is not reported.
+ * <p>
+ * There is one cache per process, see getInstance(). e.g. <code>
+ final PresenceCache cache = PresenceCache.getInstance(context);
+ cache.start();
+ ...
+ final int status = cache.getStatus("bubba");
+ ...
+ cache.stop();
+ </code>
+ */
+public class PresenceCache extends RelationCache<Map<String, PresenceCache.Record>> {
+    private static final Logger logger = LoggerFactory.getLogger("api.presence.cache");
+
+    static final String[] PROJECTION = {
+            PresenceSchema.OPERATOR.field,
+            PresenceSchema.STATE.field,
+            PresenceSchema.LATEST.field,
+            PresenceSchema.COUNT.field
+    };
+
+    /** how long changes are held so that flapping can be suppressed */
+    public static final long COALESCE_MILLIS_DEFAULT = 500L;
+
+    static final int SNAPSHOT_MAGIC = 0x414d5053; // "AMPS"
+    static final int SNAPSHOT_VERSION = 2;
+
+    /** the default ages (millisec) at which RARE, MISSED, LOST and ABSENT begin */
+    public static final long AGE_RARE_DEFAULT = 60 * 1000L;
+    public static final long AGE_MISSED_DEFAULT = 5 * 60 * 1000L;
+    public static final long AGE_LOST_DEFAULT = 15 * 60 * 1000L;
+    public static final long AGE_ABSENT_DEFAULT = 60 * 60 * 1000L;
+
+    /**
+     * The presence of a single operator. The fields are only changed while
+     * the cache is locked.
+     */
+    static public class Record {
+        final String operator;
+        int state;
+        /** the state last read from the provider, state may be aged */
+        int reported;
+        long latest;
+        int count;
+        /** the refresh in which the record was last seen */
+        int generation;
+        /** the next aging transition */
+        TimingWheel.Timeout<Record> timeout;
+
+        Record(String operator) {
+            this.operator = operator;
+        }
+
+        public String getOperator() {
+            return this.operator;
+        }
+
+        /** one of the AmmoPresence status constants */
+        public int getState() {
+            return this.state;
+        }
+
+        public long getLatest() {
+            return this.latest;
+        }
+
+        public int getCount() {
+            return this.count;
+        }
+
+        @Override
+        public String toString() {
+            return new StringBuilder().append(this.operator).append(" state=")
+                    .append(this.state).append(" latest=").append(this.latest)
+                    .append(" count=").append(this.count).toString();
+        }
+    }
+
+    /**
+     * A change awaiting delivery, the old state is the state before the
+     * first change in the interval.
+     */
+    static private class Change {
+        final String operator;
+        final int oldState;
+        int newState;
+        long latest;
+
+        Change(String operator, int oldState) {
+            this.operator = operator;
+            this.oldState = oldState;
+        }
+    }
+
+    private static PresenceCache instance = null;
+
+    /**
+     * @return the cache for this process
+     */
+    public static synchronized PresenceCache getInstance(Context context) {
+        if (instance == null) {
+            instance = new PresenceCache(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /** guarded by this */
+    private final Map<String, Record> records;
+
+    private final List<OnPresenceChangeListener> listeners;
+    private long coalesceMillis;
+    /** guarded by this, the changes not yet delivered */
+    private final Map<String, Change> pending;
+    private final Runnable dispatcher = new Runnable() {
+        @Override
+        public void run() {
+            PresenceCache.this.dispatch();
+        }
+    };
+
+    /** guarded by this, null unless aging is enabled */
+    private PresenceAging aging;
+    /** guarded by this, when the ager is next posted to run, Long.MAX_VALUE if it is not */
+    private long agerAt;
+    private final Runnable ager = new Runnable() {
+        @Override
+        public void run() {
+            PresenceCache.this.age();
+        }
+    };
+    private final TimingWheel.Expiry<Record> transition = new TimingWheel.Expiry<Record>() {
+        @Override
+        public void expired(Record record) {
+            PresenceCache.this.transition(record);
+        }
+    };
+
+    private PresenceCache(Context context) {
+        super(logger, context, DistributorSchema.CONTENT_URI.get(Relations.PRESENCE),
+                PROJECTION, PresenceSchema.LATEST.field, "presence-cache",
+                SNAPSHOT_MAGIC, SNAPSHOT_VERSION);
+        this.records = new HashMap<String, Record>();
+        this.agerAt = Long.MAX_VALUE;
+        this.listeners = new CopyOnWriteArrayList<OnPresenceChangeListener>();
+        this.coalesceMillis = COALESCE_MILLIS_DEFAULT;
+        this.pending = new HashMap<String, Change>();
+    }
+
+    @Override
+    protected void clear() {
+        this.agerAt = Long.MAX_VALUE;
+        if (this.aging != null) {
+            for (final Record record : this.records.values()) {
+                this.aging.cancel(record);
+            }
+        }
+        this.records.clear();
+        this.pending.clear();
+    }
+
+    /**
+     * The listener is called on the cache worker thread. No changes are
+     * reported for the initial load.
+     */
+    public void addListener(OnPresenceChangeListener listener) {
+        if (listener == null)
+            return;
+        this.listeners.add(listener);
+    }
+
+    public void removeListener(OnPresenceChangeListener listener) {
+        this.listeners.remove(listener);
+    }
+
+    /**
+     * @param millis how long changes are held before delivery, changes which
+     *            revert within this interval are not reported.
+     */
+    public synchronized void setCoalesceInterval(long millis) {
+        this.coalesceMillis = (millis < 0) ? 0 : millis;
+    }
+
+    @Override
+    protected void writeSnapshot(DataOutputStream out) throws IOException {
+        out.writeInt(this.records.size());
+        for (final Record record : this.records.values()) {
+            SnapshotFile.writeString(out, record.operator);
+            out.writeInt(record.state);
+            out.writeInt(record.reported);
+            out.writeLong(record.latest);
+            out.writeInt(record.count);
+        }
+    }
+
+    @Override
+    protected Map<String, Record> readSnapshot(ByteBuffer in) throws IOException {
+        // operator, state, reported, latest and count
+        final int size = SnapshotFile.readCount(in, 4 + 4 + 4 + 8 + 4);
+        final Map<String, Record> restored = new HashMap<String, Record>(size * 2);
+        for (int ix = 0; ix < size; ++ix) {
+            final Record record = new Record(SnapshotFile.readString(in));
+            record.state = in.getInt();
+            record.reported = in.getInt();
+            record.latest = in.getLong();
+            record.count = in.getInt();
+            restored.put(record.operator, record);
+        }
+        return restored;
+    }
+
+    @Override
+    protected int restore(Map<String, Record> restored) {
+        this.records.clear();
+        this.records.putAll(restored);
+        this.generation++;
+        for (final Record record : this.records.values()) {
+            record.generation = this.generation;
+            if (this.aging != null) {
+                this.age(record, System.currentTimeMillis(),
+                        SystemClock.elapsedRealtime());
+            }
+        }
+        this.wakeAger();
+        return restored.size();
+    }
+
+    public void enableAging() {
+        this.enableAging(AGE_RARE_DEFAULT, AGE_MISSED_DEFAULT, AGE_LOST_DEFAULT,
+                AGE_ABSENT_DEFAULT);
+    }
+
+    /**
+     * Derive the state of each operator from its LATEST and these
+     * thresholds, the ages (millisec) at which each state begins. The
+     * transitions are reported to the listeners as they occur.
+     *
+     * @throws IllegalArgumentException if the thresholds are not ascending
+     */
+    public synchronized void enableAging(long rareAfter, long missedAfter, long lostAfter,
+            long absentAfter) {
+        this.disableAging();
+        this.aging = new PresenceAging(rareAfter, missedAfter, lostAfter, absentAfter,
+                SystemClock.elapsedRealtime());
+        logger.debug("enable {}", this.aging);
+        final long wallNow = System.currentTimeMillis();
+        final long elapsedNow = SystemClock.elapsedRealtime();
+        for (final Record record : this.records.values()) {
+            this.age(record, wallNow, elapsedNow);
+        }
+        this.wakeAger();
+    }
+
+    /**
+     * Return to taking the state from the provider. The states already aged
+     * are kept until the operator is next updated.
+     */
+    public synchronized void disableAging() {
+        if (this.aging == null)
+            return;
+        for (final Record record : this.records.values()) {
+            this.aging.cancel(record);
+        }
+        if (this.handler != null) {
+            this.handler.removeCallbacks(this.ager);
+        }
+        this.agerAt = Long.MAX_VALUE;
+        this.aging = null;
+    }
+
+    /**
+     * Advance the aging wheel, on the worker thread, then post the next run
+     * for the earliest transition still scheduled.
+     */
+    private void age() {
+        final PresenceAging aging;
+        synchronized (this) {
+            aging = this.aging;
+            if (aging == null || this.handler == null)
+                return;
+            this.agerAt = Long.MAX_VALUE;
+        }
+        aging.advance(SystemClock.elapsedRealtime(), this.transition);
+        synchronized (this) {
+            if (this.aging == aging) {
+                this.wakeAger();
+            }
+        }
+    }
+
+    /**
+     * Post the ager for the earliest transition on the wheel, unless it is
+     * already posted to run by then. Nothing is posted while the wheel is
+     * empty. The caller holds the lock.
+     */
+    private void wakeAger() {
+        if (this.aging == null || this.handler == null)
+            return;
+        final long next = this.aging.nextExpiry();
+        if (next >= this.agerAt)
+            return;
+        this.handler.removeCallbacks(this.ager);
+        this.agerAt = next;
+        this.handler.postDelayed(this.ager, Math.max(0L, next - SystemClock.elapsedRealtime()));
+    }
+
+    /**
+     * The record has reached its next transition.
+     */
+    private synchronized void transition(Record record) {
+        record.timeout = null;
+        if (this.aging == null || this.records.get(record.operator) != record)
+            return;
+        this.age(record, System.currentTimeMillis(), SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * Set the state from the age and schedule the next transition. The
+     * caller holds the lock.
+     */
+    private void age(Record record, long wallNow, long elapsedNow) {
+        if (record.latest < 1)
+            return;
+        this.setState(record, this.aging.schedule(record, wallNow, elapsedNow), this.loaded);
+    }
+
+    /**
+     * @return the status of the operator, one of the AmmoPresence status
+     *         constants, ERROR_STATUS_UNDEFINED if the operator is unknown.
+     */
+    public synchronized int getStatus(String operator) {
+        final Record record = this.records.get(operator);
+        if (record == null)
+            return AmmoPresence.ERROR_STATUS_UNDEFINED;
+        return record.state;
+    }
+
+    /**
+     * @return the status of each of the operators which is in the cache.
+     */
+    public synchronized Map<String, Integer> getStatus(Collection<String> operators) {
+        final Map<String, Integer> result = new HashMap<String, Integer>(operators.size() * 2);
+        for (final String operator : operators) {
+            final Record record = this.records.get(operator);
+            if (record == null)
+                continue;
+            result.put(operator, Integer.valueOf(record.state));
+        }
+        return result;
+    }
+
+    /**
+     * @return the status of every operator in the cache.
+     */
+    public synchronized List<UserStatus> getAll() {
+        final List<UserStatus> list = new ArrayList<UserStatus>(this.records.size());
+        for (final Record record : this.records.values()) {
+            list.add(new UserStatus().setUserId(record.operator).setStatus(record.state));
+        }
+        return list;
+    }
+
+    public synchronized int size() {
+        return this.records.size();
+    }
+
+    /**
+     * Merge the rows of the cursor into the cache, the caller holds the lock.
+     * A row whose LATEST, COUNT and STATE match the record held is unchanged.
+     *
+     * @param notify should the changes be reported?
+     * @return the number of rows which changed
+     */
+    @Override
+    protected int merge(Cursor cursor, boolean notify) {
+        final int operatorIx = cursor.getColumnIndex(PresenceSchema.OPERATOR.field);
+        final int stateIx = cursor.getColumnIndex(PresenceSchema.STATE.field);
+        final int latestIx = cursor.getColumnIndex(PresenceSchema.LATEST.field);
+        final int countIx = cursor.getColumnIndex(PresenceSchema.COUNT.field);
+        final long wallNow = System.currentTimeMillis();
+        final long elapsedNow = SystemClock.elapsedRealtime();
+        int merged = 0;
+        while (cursor.moveToNext()) {
+            final String operator = cursor.getString(operatorIx);
+            if (operator == null)
+                continue;
+            final long latest = (latestIx < 0) ? 0 : cursor.getLong(latestIx);
+            final int count = (countIx < 0) ? 0 : cursor.getInt(countIx);
+            final int reported = (stateIx < 0) ? AmmoPresence.ERROR_STATUS_UNDEFINED
+                    : decodeState(cursor.getInt(stateIx));
+            Record record = this.records.get(operator);
+            if (record == null) {
+                record = new Record(operator);
+                record.state = AmmoPresence.ERROR_STATUS_UNDEFINED;
+                this.records.put(operator, record);
+            } else if (record.latest == latest && record.count == count
+                    && record.reported == reported
+                    && latestIx >= 0 && countIx >= 0 && stateIx >= 0) {
+                record.generation = this.generation;
+                continue;
+            }
+            record.generation = this.generation;
+            record.reported = reported;
+            record.latest = latest;
+            record.count = count;
+            if (latest > this.watermark) {
+                this.watermark = latest;
+            }
+            if (this.aging != null && latest > 0) {
+                this.setState(record, this.aging.schedule(record, wallNow, elapsedNow), notify);
+            } else {
+                this.setState(record, reported, notify);
+            }
+            merged++;
+        }
+        if (merged > 0) {
+            this.wakeAger();
+        }
+        return merged;
+    }
+
+    /**
+     * Drop the records which were not seen by the latest refresh, they are
+     * reported as ABSENT. The caller holds the lock.
+     */
+    @Override
+    protected void sweep() {
+        final Iterator<Record> it = this.records.values().iterator();
+        while (it.hasNext()) {
+            final Record record = it.next();
+            if (record.generation == this.generation)
+                continue;
+            it.remove();
+            if (this.aging != null) {
+                this.aging.cancel(record);
+            }
+            this.setState(record, AmmoPresence.ABSENT, true);
+        }
+    }
+
+    /**
+     * Change the state of the record and note the change for the listeners.
+     * The caller holds the lock.
+     */
+    void setState(Record record, int state, boolean notify) {
+        final int oldState = record.state;
+        record.state = state;
+        if (!notify || oldState == state || this.listeners.isEmpty())
+            return;
+        Change change = this.pending.get(record.operator);
+        if (change == null) {
+            change = new Change(record.operator, oldState);
+            this.pending.put(record.operator, change);
+            if (this.pending.size() == 1 && this.handler != null) {
+                this.handler.postDelayed(this.dispatcher, this.coalesceMillis);
+            }
+        }
+        change.newState = state;
+        change.latest = record.latest;
+    }
+
+    /**
+     * Deliver the pending changes, other than those which have reverted.
+     * The listeners are called without the lock held.
+     */
+    private void dispatch() {
+        final List<Change> changes;
+        synchronized (this) {
+            changes = new ArrayList<Change>(this.pending.values());
+            this.pending.clear();
+        }
+        int delivered = 0;
+        for (final Change change : changes) {
+            if (change.oldState == change.newState)
+                continue;
+            delivered++;
+            for (final OnPresenceChangeListener listener : this.listeners) {
+                try {
+                    listener.onPresenceChanged(change.operator, change.oldState,
+                            change.newState, change.latest);
+                } catch (RuntimeException ex) {
+                    logger.error("presence listener failed {}", listener, ex);
+                }
+            }
+        }
+        logger.trace("dispatch: [{}] of [{}] changes", delivered, changes.size());
+    }
+
+    /**
+     * The lowest state bit, as TemporalState.decodeState() but without the
+     * per row logging.
+     */
+    static int decodeState(int encoded) {
+        final int lowMask = Integer.lowestOneBit(encoded);
+        if (lowMask < 1)
+            return AmmoPresence.ABSENT;
+        final TemporalState state = TemporalState.lookup(lowMask);
+        if (state == null)
+            return AmmoPresence.ERROR_STATUS_UNDEFINED;
+        return state.code;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return new StringBuilder().append("presence cache operators=")
+                .append(this.records.size()).append(" watermark=")
+                .append(this.watermark).toString();
+    }
+}
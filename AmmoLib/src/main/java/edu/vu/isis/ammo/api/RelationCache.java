@@ -0,0 +1,487 @@
+/* Copyright (c) 2010-2015 Vanderbilt University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package edu.vu.isis.ammo.api;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+import org.slf4j.Logger;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import edu.vu.isis.ammo.util.SnapshotFile;
+
+/**
+ * The part common to the in-memory copies of a distributor relation, the
+ * PresenceCache and the CapabilityIndex.
+ * <p>
+ * The cache is loaded by one query on a worker thread when it is started.
+ * When there is a snapshot file the cache is served from it at once and a
+ * full refresh is posted behind it, to pick up what changed while the cache
+ * was stopped, deletions included. Thereafter a content observer on the relation
+ * triggers a delta query for the rows whose LATEST is at or beyond the
+ * newest LATEST already held. The delta cannot see rows which were deleted
+ * or which changed without a new LATEST, so a delta which finds no changed
+ * rows falls back to a full refresh, as does a periodic reconcile. A refresh
+ * marks the rows it reads with a new generation and then sweeps away the
+ * rows which were not read.
+ * <p>
+ * The cache is shared by reference count, each start() should be matched by
+ * a stop(). The subclass state is guarded by the cache object, the merge,
+ * sweep, restore, snapshot and stop hooks are called with it locked. The
+ * last stop hands the final snapshot to the worker, which writes it and then
+ * quits; the results of any query still in flight are dropped.
+ *
+ * @param <S> the decoded snapshot, as handed from readSnapshot() to restore()
+ */
+public abstract class RelationCache<S> {
+
+    /** how often the whole relation is reloaded to catch what the delta misses */
+    public static final long RECONCILE_MILLIS_DEFAULT = 5 * 60 * 1000L;
+
+    private final Logger logger;
+    private final Context context;
+    private final Uri uri;
+    private final String[] projection;
+    private final String whereLatestSince;
+    private final String name;
+    private final int snapshotMagic;
+    private final int snapshotVersion;
+
+    /** guarded by this, the newest LATEST held, the delta queries start here */
+    protected long watermark;
+    /** guarded by this, the refresh in which the rows were last seen */
+    protected int generation;
+    protected boolean loaded;
+    /** guarded by this, null while the cache is stopped */
+    protected Handler handler;
+
+    private int users;
+    /** guarded by this, advanced by each last stop, stale work is dropped */
+    private int session;
+    private HandlerThread thread;
+    private ContentObserver observer;
+    /** a delta query has been posted but has not yet run */
+    private boolean updatePending;
+
+    private long reconcilePeriod;
+    private final Runnable reconciler = new Runnable() {
+        @Override
+        public void run() {
+            RelationCache.this.refresh();
+            synchronized (RelationCache.this) {
+                if (RelationCache.this.handler != null && RelationCache.this.reconcilePeriod > 0) {
+                    RelationCache.this.handler.postDelayed(this, RelationCache.this.reconcilePeriod);
+                }
+            }
+        }
+    };
+
+    /** guarded by this, null if there is no snapshot */
+    private File snapshotFile;
+    private long snapshotPeriod;
+    private final Runnable saver = new Runnable() {
+        @Override
+        public void run() {
+            RelationCache.this.saveSnapshot();
+            synchronized (RelationCache.this) {
+                if (RelationCache.this.handler != null && RelationCache.this.snapshotPeriod > 0) {
+                    RelationCache.this.handler.postDelayed(this, RelationCache.this.snapshotPeriod);
+                }
+            }
+        }
+    };
+
+    /**
+     * @param name names the worker thread and appears in the log
+     * @param latestColumn the LATEST column of the relation, on which the
+     *            delta query is made
+     */
+    RelationCache(Logger logger, Context context, Uri uri, String[] projection,
+            String latestColumn, String name, int snapshotMagic, int snapshotVersion) {
+        this.logger = logger;
+        this.context = context;
+        this.uri = uri;
+        this.projection = projection;
+        this.whereLatestSince = latestColumn + " >= ?";
+        this.name = name;
+        this.snapshotMagic = snapshotMagic;
+        this.snapshotVersion = snapshotVersion;
+        this.watermark = 0;
+        this.generation = 0;
+        this.loaded = false;
+        this.users = 0;
+        this.session = 0;
+        this.updatePending = false;
+        this.reconcilePeriod = RECONCILE_MILLIS_DEFAULT;
+    }
+
+    // *********************************
+    // Subclass hooks
+    // *********************************
+
+    /**
+     * Merge the rows of the cursor into the cache, marking each with the
+     * current generation.
+     *
+     * @param notify should the changes be reported?
+     * @return the number of rows which changed
+     */
+    protected abstract int merge(Cursor cursor, boolean notify);
+
+    /**
+     * Drop the rows which were not seen by the latest refresh.
+     */
+    protected abstract void sweep();
+
+    /**
+     * The last stop, the callbacks posted to the worker have been removed
+     * and it is about to quit. Empty the cache.
+     */
+    protected abstract void clear();
+
+    /**
+     * Write the body of the snapshot, the header has been written.
+     */
+    protected abstract void writeSnapshot(DataOutputStream out) throws IOException;
+
+    /**
+     * Decode the body of the snapshot, the header has been read. Called
+     * without the lock held, the cache is not touched.
+     */
+    protected abstract S readSnapshot(ByteBuffer in) throws IOException;
+
+    /**
+     * Fill the cache from the decoded snapshot.
+     *
+     * @return the number of rows restored
+     */
+    protected abstract int restore(S snapshot);
+
+    // *********************************
+    // Life cycle
+    // *********************************
+
+    /**
+     * Begin tracking the relation. The first start loads the cache and
+     * registers the content observer.
+     */
+    public synchronized void start() {
+        if (this.users++ > 0)
+            return;
+        this.logger.debug("start {}", this.name);
+        this.thread = new HandlerThread(this.name);
+        this.thread.start();
+        this.handler = new Handler(this.thread.getLooper());
+        this.observer = new ContentObserver(this.handler) {
+            @Override
+            public void onChange(boolean selfChange) {
+                RelationCache.this.update();
+            }
+        };
+        this.context.getContentResolver()
+                .registerContentObserver(this.uri, true, this.observer);
+        this.handler.post(new Runnable() {
+            @Override
+            public void run() {
+                RelationCache.this.loadSnapshot();
+                RelationCache.this.refresh();
+            }
+        });
+        if (this.snapshotFile != null && this.snapshotPeriod > 0) {
+            this.handler.postDelayed(this.saver, this.snapshotPeriod);
+        }
+        if (this.reconcilePeriod > 0) {
+            this.handler.postDelayed(this.reconciler, this.reconcilePeriod);
+        }
+    }
+
+    /**
+     * Stop tracking the relation. The last stop unregisters the content
+     * observer and empties the cache.
+     */
+    public synchronized void stop() {
+        if (this.users < 1)
+            return;
+        if (--this.users > 0)
+            return;
+        this.logger.debug("stop {}", this.name);
+        this.session++;
+        this.context.getContentResolver().unregisterContentObserver(this.observer);
+        this.handler.removeCallbacksAndMessages(null);
+        final File file = this.snapshotFile;
+        final byte[] bytes = this.encodeSnapshot();
+        final HandlerThread worker = this.thread;
+        this.handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (bytes != null) {
+                    SnapshotFile.write(file, bytes);
+                }
+                worker.quit();
+            }
+        });
+        this.clear();
+        this.observer = null;
+        this.handler = null;
+        this.thread = null;
+        this.watermark = 0;
+        this.loaded = false;
+        this.updatePending = false;
+    }
+
+    /**
+     * @return has the initial load completed?
+     */
+    public synchronized boolean isLoaded() {
+        return this.loaded;
+    }
+
+    /**
+     * @param millis how often the whole relation is reloaded, non-positive
+     *            to only reload when a delta finds nothing. Call before
+     *            start().
+     */
+    public synchronized void setReconcileInterval(long millis) {
+        this.reconcilePeriod = millis;
+    }
+
+    // *********************************
+    // Snapshot
+    // *********************************
+
+    /**
+     * Keep a snapshot of the cache in the file. Call before start().
+     *
+     * @param file e.g. new File(context.getCacheDir(), "presence.snapshot"),
+     *            null for no snapshot
+     * @param periodMillis how often the snapshot is written, it is always
+     *            written when the cache is stopped.
+     */
+    public synchronized void setSnapshot(File file, long periodMillis) {
+        this.snapshotFile = file;
+        this.snapshotPeriod = periodMillis;
+    }
+
+    /**
+     * Write the snapshot now.
+     *
+     * @return false if there is no snapshot file or it could not be written
+     */
+    public boolean saveSnapshot() {
+        final File file;
+        final byte[] bytes;
+        synchronized (this) {
+            file = this.snapshotFile;
+            bytes = this.encodeSnapshot();
+        }
+        if (bytes == null)
+            return false;
+        return SnapshotFile.write(file, bytes);
+    }
+
+    /**
+     * Encode the snapshot, the caller holds the lock. The encoding is kept in
+     * memory so that the file may be written without the lock.
+     *
+     * @return the snapshot or null if there is none to write
+     */
+    private byte[] encodeSnapshot() {
+        if (this.snapshotFile == null || !this.loaded)
+            return null;
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream(4096);
+        final DataOutputStream out = new DataOutputStream(baos);
+        try {
+            SnapshotFile.writeHeader(out, this.snapshotMagic, this.snapshotVersion,
+                    this.watermark);
+            this.writeSnapshot(out);
+            out.flush();
+        } catch (IOException ex) {
+            this.logger.error("could not encode snapshot", ex);
+            return null;
+        }
+        return baos.toByteArray();
+    }
+
+    /**
+     * Fill the cache from the snapshot, if there is one. A snapshot which
+     * cannot be read is deleted.
+     *
+     * @return true if the cache was loaded
+     */
+    private boolean loadSnapshot() {
+        final File file;
+        final int session;
+        synchronized (this) {
+            file = this.snapshotFile;
+            session = this.session;
+        }
+        if (file == null)
+            return false;
+        final ByteBuffer in = SnapshotFile.map(file, this.snapshotMagic, this.snapshotVersion);
+        if (in == null)
+            return false;
+        try {
+            final long watermark = in.getLong();
+            final S snapshot = this.readSnapshot(in);
+            final int size;
+            synchronized (this) {
+                if (this.session != session)
+                    return false;
+                size = this.restore(snapshot);
+                this.watermark = watermark;
+                this.loaded = true;
+            }
+            this.logger.debug("loaded [{}] rows from snapshot {}", size, file);
+            return true;
+        } catch (IOException ex) {
+            this.logger.warn("could not read snapshot {}", file, ex);
+        } catch (BufferUnderflowException ex) {
+            this.logger.warn("truncated snapshot {}", file, ex);
+        } catch (RuntimeException ex) {
+            this.logger.warn("corrupt snapshot {}", file, ex);
+        }
+        // the refresh which follows the load rebuilds the cache
+        if (!file.delete()) {
+            this.logger.warn("could not delete snapshot {}", file);
+        }
+        return false;
+    }
+
+    // *********************************
+    // Maintenance
+    // *********************************
+
+    /**
+     * Reload the entire relation. This runs the query on the calling thread,
+     * it does nothing while the cache is stopped.
+     */
+    public void refresh() {
+        final int session;
+        synchronized (this) {
+            if (this.handler == null)
+                return;
+            session = this.session;
+        }
+        final Cursor cursor = this.query(null, null);
+        if (cursor == null) {
+            this.logger.error("refresh: null cursor");
+            return;
+        }
+        try {
+            synchronized (this) {
+                if (this.session != session)
+                    return;
+                final boolean initial = !this.loaded;
+                this.generation++;
+                final int count = this.merge(cursor, !initial);
+                this.sweep();
+                this.loaded = true;
+                this.logger.debug("refresh: loaded [{}] rows", count);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Post a delta query, unless one is already waiting.
+     */
+    private synchronized void update() {
+        if (this.handler == null || this.updatePending)
+            return;
+        this.updatePending = true;
+        this.handler.post(new Runnable() {
+            @Override
+            public void run() {
+                RelationCache.this.delta();
+            }
+        });
+    }
+
+    /**
+     * Read the rows which have changed since the watermark. Should the
+     * provider not accept the selection, or should none of the rows have
+     * changed, the whole relation is reloaded; the change was a deletion or
+     * a change which the delta cannot see.
+     */
+    private void delta() {
+        final long since;
+        final int session;
+        synchronized (this) {
+            this.updatePending = false;
+            since = this.loaded ? this.watermark : -1;
+            session = this.session;
+        }
+        if (since < 0) {
+            this.refresh();
+            return;
+        }
+        final Cursor cursor = this.query(this.whereLatestSince, new String[] {
+                Long.toString(since)
+        });
+        if (cursor == null) {
+            this.logger.warn("delta: selection not accepted, reloading");
+            this.refresh();
+            return;
+        }
+        final int count;
+        try {
+            synchronized (this) {
+                if (this.session != session)
+                    return;
+                count = this.merge(cursor, true);
+                this.logger.trace("delta: [{}] rows since [{}]", count, since);
+            }
+        } finally {
+            cursor.close();
+        }
+        if (count < 1) {
+            this.logger.trace("delta: no changed rows, reloading");
+            this.refresh();
+        }
+    }
+
+    /**
+     * @return the cursor or null if the provider rejected the query
+     */
+    private Cursor query(String selection, String[] selectionArgs) {
+        try {
+            return this.context.getContentResolver().query(this.uri, this.projection,
+                    selection, selectionArgs, null);
+        } catch (IllegalArgumentException ex) {
+            this.logger.warn("{} query rejected [{}]", new Object[] { this.name, selection, ex });
+        } catch (SQLException ex) {
+            this.logger.warn("{} query failed [{}]", new Object[] { this.name, selection, ex });
+        }
+        return null;
+    }
+}
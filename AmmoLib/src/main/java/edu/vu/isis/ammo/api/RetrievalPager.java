@@ -0,0 +1,430 @@
+/* Copyright (c) 2010-2015 Vanderbilt University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package edu.vu.isis.ammo.api;
+
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.net.Uri;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.provider.BaseColumns;
+import edu.vu.isis.ammo.api.type.Limit;
+import edu.vu.isis.ammo.api.type.Query;
+import edu.vu.isis.ammo.api.type.Selection;
+
+/**
+ * A paged retrieval. Rather than a single retrieval for everything matching
+ * the selection, the retrieval is made in windows of a fixed number of items.
+ * Each window is a retrieval whose Limit is the page size and whose selection
+ * is bounded by the key and _id of the last item delivered. The _id breaks
+ * ties so that items sharing a key, e.g. a timestamp, are not skipped.
+ * <p>
+ * The direction comes from the Limit of the builder. NEWEST pages from the
+ * largest key down, OLDEST from the smallest key up. The count of the Limit,
+ * if positive, bounds the total number of items over all pages.
+ * <p>
+ * The retrieved items are placed in the provider, as with any retrieval.
+ * nextPage() reads the next window from the provider and, once the items
+ * delivered since the last request fill that request's window, requests the
+ * following window so it is in place when it is wanted. A short page holds
+ * the items which have arrived so far, calling nextPage() again picks up the
+ * remainder. The distributor does not say when a window is complete, so
+ * paging ends when the total limit has been delivered or when a page is
+ * empty and no item has arrived for the quiet period, see setQuietPeriod(),
+ * since the last window was requested. An empty page within the quiet
+ * period only means the items are still on their way. e.g. <code>
+ final RetrievalPager pager = AmmoRequest.newBuilder(context)
+       .provider(uri).topic(topic).select(query).limit(new Limit(Limit.Type.NEWEST, 1000))
+       .retrievePaged(Tables.RECEIVED, 50);
+ ...
+ final Cursor page = pager.nextPage();
+ ...
+ pager.cancel();
+ </code>
+ */
+public class RetrievalPager {
+    private static final Logger logger = LoggerFactory.getLogger("api.request.pager");
+
+    /** how long a window may go without delivering an item before paging ends */
+    public static final long QUIET_MILLIS_DEFAULT = 30 * 1000L;
+
+    private final AmmoRequest.Builder builder;
+    private final ContentResolver resolver;
+    private final Uri provider;
+    private final String[] project;
+    private final Selection baseSelect;
+    private final String baseWhere;
+    private final String[] baseArgs;
+    private final Limit baseLimit;
+
+    private final String keyColumn;
+    private final int pageSize;
+    private final Limit.Type direction;
+    /** the most items to deliver over all pages, non-positive for no limit */
+    private final int total;
+
+    /** the key and _id of the last item delivered, null before the first page */
+    private String lastKey;
+    private String lastId;
+    private int delivered;
+    /** a window has been requested and not yet filled */
+    private boolean requested;
+    /** the items still owed by the requested window */
+    private int owed;
+    /** elapsed time of the last window request or delivered item */
+    private long progressAt;
+    private long quietMillis;
+    private boolean exhausted;
+    private boolean cancelled;
+
+    /**
+     * Use AmmoRequest.Builder.retrievePaged() to obtain a pager.
+     */
+    RetrievalPager(AmmoRequest.Builder builder, ContentResolver resolver, Uri provider,
+            String[] project, Selection select, Limit limit, String keyColumn, int pageSize) {
+        if (keyColumn == null) {
+            throw new IllegalArgumentException("paged retrieval requires a key column");
+        }
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("page size must be positive");
+        }
+        if (provider == null) {
+            throw new IllegalArgumentException("paged retrieval requires a provider");
+        }
+        this.builder = builder;
+        this.resolver = resolver;
+        this.provider = provider;
+        this.project = withKey(withKey(project, keyColumn), BaseColumns._ID);
+        this.baseSelect = select;
+        this.baseLimit = limit;
+
+        if (select == null) {
+            this.baseWhere = null;
+            this.baseArgs = null;
+        } else if (select.form != null) {
+            throw new IllegalArgumentException("a form selection cannot be paged");
+        } else if (select.query != null) {
+            this.baseWhere = select.query.select();
+            this.baseArgs = select.query.args();
+        } else {
+            this.baseWhere = select.string;
+            this.baseArgs = null;
+        }
+
+        this.keyColumn = keyColumn;
+        this.pageSize = pageSize;
+        this.direction = (limit == null) ? Limit.Type.NEWEST : limit.type();
+        this.total = (limit == null) ? -1 : limit.count;
+
+        this.lastKey = null;
+        this.lastId = null;
+        this.delivered = 0;
+        this.requested = false;
+        this.owed = 0;
+        this.progressAt = SystemClock.elapsedRealtime();
+        this.quietMillis = QUIET_MILLIS_DEFAULT;
+        this.exhausted = false;
+        this.cancelled = false;
+    }
+
+    /**
+     * Request the first window.
+     */
+    RetrievalPager open() throws RemoteException {
+        this.requestPage();
+        return this;
+    }
+
+    /**
+     * @param millis how long after the last window request, or the last
+     *            delivered item, an empty page ends the paging
+     */
+    public synchronized void setQuietPeriod(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("negative quiet period");
+        }
+        this.quietMillis = millis;
+    }
+
+    /**
+     * @return are there more items to be had? This is false once the total
+     *         limit has been delivered, an empty page has been read after the
+     *         quiet period or the pager has been cancelled.
+     */
+    public synchronized boolean hasNextPage() {
+        if (this.cancelled || this.exhausted)
+            return false;
+        return this.remaining() > 0;
+    }
+
+    /**
+     * The items of the next window which have been delivered to the provider.
+     * The cursor is positioned before its first row and belongs to the caller,
+     * who must close it.
+     *
+     * @return the next page, possibly empty, or null if there are no more.
+     */
+    public synchronized Cursor nextPage() throws RemoteException {
+        if (!this.hasNextPage())
+            return null;
+
+        final int want = this.window();
+        final Query page = this.pageQuery();
+        final Cursor rows = this.resolver.query(this.provider, this.project,
+                page.select(), page.args(), this.sortOrder());
+        if (rows == null) {
+            logger.error("no cursor for page {} of {}", this.delivered, this.provider);
+            return null;
+        }
+        final Cursor cursor = new PageCursor(rows, want);
+        final int count = cursor.getCount();
+        if (count > 0 && cursor.moveToLast()) {
+            this.lastKey = cursor.getString(cursor.getColumnIndexOrThrow(this.keyColumn));
+            this.lastId = cursor.getString(cursor.getColumnIndexOrThrow(BaseColumns._ID));
+            cursor.moveToPosition(-1);
+        }
+        this.delivered += count;
+        logger.debug("page of [{}] items, [{}] delivered, last key [{}:{}]",
+                new Object[] { count, this.delivered, this.lastKey, this.lastId });
+
+        final long now = SystemClock.elapsedRealtime();
+        if (count < 1) {
+            if (now - this.progressAt >= this.quietMillis) {
+                logger.debug("no items for [{}] ms, paging ends", now - this.progressAt);
+                this.exhausted = true;
+            }
+            return cursor;
+        }
+        this.progressAt = now;
+        this.owed -= count;
+        if (this.requested && this.owed < 1) {
+            this.requested = false;
+            this.requestPage();
+        }
+        return cursor;
+    }
+
+    /**
+     * Stop the retrieval, no further windows are requested.
+     */
+    public synchronized void cancel() throws RemoteException {
+        if (this.cancelled)
+            return;
+        this.cancelled = true;
+        this.builder.select(this.baseSelect).limit(this.baseLimit);
+        this.builder.unretrieve();
+        logger.debug("cancelled after [{}] items", this.delivered);
+    }
+
+    public int pageSize() {
+        return this.pageSize;
+    }
+
+    public synchronized int delivered() {
+        return this.delivered;
+    }
+
+    /**
+     * Ask the distributor for the window following the last key. The builder
+     * is returned to its original selection and limit afterwards.
+     */
+    private void requestPage() throws RemoteException {
+        if (this.requested || !this.hasNextPage())
+            return;
+        this.requested = true;
+        this.owed = this.window();
+        this.progressAt = SystemClock.elapsedRealtime();
+        try {
+            this.builder.limit(new Limit(this.direction, this.owed))
+                    .select(this.pageQuery())
+                    .retrieve();
+        } finally {
+            this.builder.select(this.baseSelect).limit(this.baseLimit);
+        }
+    }
+
+    private int remaining() {
+        if (this.total < 1)
+            return Integer.MAX_VALUE;
+        return this.total - this.delivered;
+    }
+
+    private int window() {
+        return Math.min(this.pageSize, this.remaining());
+    }
+
+    private boolean keyIsId() {
+        return BaseColumns._ID.equals(this.keyColumn);
+    }
+
+    private String sortOrder() {
+        final String order = (this.direction == Limit.Type.OLDEST) ? " ASC" : " DESC";
+        if (this.keyIsId())
+            return this.keyColumn + order;
+        return this.keyColumn + order + ", " + BaseColumns._ID + order;
+    }
+
+    /**
+     * The base selection further restricted to the items beyond the last
+     * (key, _id) pair.
+     */
+    private Query pageQuery() {
+        if (this.lastKey == null) {
+            return new Query(this.baseWhere, this.baseArgs);
+        }
+        final String beyond = (this.direction == Limit.Type.OLDEST) ? " > ?" : " < ?";
+        final StringBuilder where = new StringBuilder();
+        if (this.baseWhere != null && this.baseWhere.length() > 0) {
+            where.append('(').append(this.baseWhere).append(") AND ");
+        }
+        final String[] bound;
+        if (this.keyIsId()) {
+            where.append(this.keyColumn).append(beyond);
+            bound = new String[] { this.lastKey };
+        } else {
+            where.append('(').append(this.keyColumn).append(beyond)
+                    .append(" OR (").append(this.keyColumn).append(" = ? AND ")
+                    .append(BaseColumns._ID).append(beyond).append("))");
+            bound = new String[] { this.lastKey, this.lastKey, this.lastId };
+        }
+
+        final int argCount = (this.baseArgs == null) ? 0 : this.baseArgs.length;
+        final String[] args = new String[argCount + bound.length];
+        if (argCount > 0) {
+            System.arraycopy(this.baseArgs, 0, args, 0, argCount);
+        }
+        System.arraycopy(bound, 0, args, argCount, bound.length);
+        return new Query(where.toString(), args);
+    }
+
+    private static String[] withKey(String[] project, String keyColumn) {
+        if (project == null)
+            return null;
+        if (Arrays.asList(project).contains(keyColumn))
+            return project;
+        final String[] result = new String[project.length + 1];
+        System.arraycopy(project, 0, result, 0, project.length);
+        result[project.length] = keyColumn;
+        return result;
+    }
+
+    /**
+     * Presents no more than a window of the rows of the provider's cursor.
+     * The window is not part of the query as a LIMIT clause is not something
+     * every provider accepts.
+     */
+    private static class PageCursor extends CursorWrapper {
+        private final int count;
+        private int position;
+
+        PageCursor(Cursor cursor, int window) {
+            super(cursor);
+            this.count = Math.min(cursor.getCount(), window);
+            this.position = -1;
+        }
+
+        @Override
+        public int getCount() {
+            return this.count;
+        }
+
+        @Override
+        public int getPosition() {
+            return this.position;
+        }
+
+        @Override
+        public boolean moveToPosition(int position) {
+            if (position < 0) {
+                this.position = -1;
+                super.moveToPosition(-1);
+                return false;
+            }
+            if (position >= this.count) {
+                this.position = this.count;
+                super.moveToPosition(super.getCount());
+                return false;
+            }
+            this.position = position;
+            return super.moveToPosition(position);
+        }
+
+        @Override
+        public boolean move(int offset) {
+            return this.moveToPosition(this.position + offset);
+        }
+
+        @Override
+        public boolean moveToFirst() {
+            return this.moveToPosition(0);
+        }
+
+        @Override
+        public boolean moveToLast() {
+            return this.moveToPosition(this.count - 1);
+        }
+
+        @Override
+        public boolean moveToNext() {
+            return this.moveToPosition(this.position + 1);
+        }
+
+        @Override
+        public boolean moveToPrevious() {
+            return this.moveToPosition(this.position - 1);
+        }
+
+        @Override
+        public boolean isFirst() {
+            return this.count > 0 && this.position == 0;
+        }
+
+        @Override
+        public boolean isLast() {
+            return this.count > 0 && this.position == this.count - 1;
+        }
+
+        @Override
+        public boolean isBeforeFirst() {
+            return this.count < 1 || this.position < 0;
+        }
+
+        @Override
+        public boolean isAfterLast() {
+            return this.count < 1 || this.position >= this.count;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder().append("pager ").append(this.provider)
+                .append(" by ").append(this.sortOrder())
+                .append(" page ").append(this.pageSize)
+                .append(" delivered ").append(this.delivered).toString();
+    }
+}
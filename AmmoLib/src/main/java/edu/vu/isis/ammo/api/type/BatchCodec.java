@@ -0,0 +1,421 @@
+/* Copyright (c) 2010-2015 Vanderbilt University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package edu.vu.isis.ammo.api.type;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.database.Cursor;
+import edu.vu.isis.ammo.api.AmmoColumnarCursor;
+import edu.vu.isis.ammo.api.AmmoColumnarCursor.ColumnType;
+import edu.vu.isis.ammo.api.AmmoSerialCursor;
+
+/**
+ * Encodes a range of cursor rows as a single batch.
+ * <p>
+ * The batch is laid out by column rather than by row.
+ * <ul>
+ * <li>a magic number (int)</li>
+ * <li>the column count (int) and, for each column, its name (UTF) and
+ * its type (byte)</li>
+ * <li>the row count (int)</li>
+ * <li>for each column, a null bitmap followed by the present values
+ * <ul>
+ * <li>LONG : the zigzag varint of the difference from the previous value</li>
+ * <li>DOUBLE : eight bytes</li>
+ * <li>STRING : a dictionary of the distinct values, each a varint length
+ * and the UTF-8 bytes, then the varint dictionary index of each value</li>
+ * <li>BLOB : a varint length and the bytes</li>
+ * </ul>
+ * </li>
+ * </ul>
+ * Each column name is written once, repeated strings are written once per
+ * column, and keys and timestamps, which change little from row to row,
+ * take a byte or two apiece.
+ * <p>
+ * The platform cursor does not report the type of a column, the caller
+ * declares it. When the source is an AmmoColumnarCursor its declared types
+ * are used.
+ */
+public class BatchCodec {
+    static final Logger logger = LoggerFactory.getLogger("type.batch.codec");
+
+    private static final String CHARSET = "UTF-8";
+    private static final int MAGIC = 0x414d4231; // "AMB1"
+
+    private static final ColumnType[] TYPES = ColumnType.values();
+
+    private BatchCodec() {
+    }
+
+    // *********************************
+    // Encoding
+    // *********************************
+
+    /**
+     * Encode every row of the cursor.
+     */
+    static public byte[] encode(final Cursor cursor, final ColumnType[] types) {
+        return encode(cursor, types, 0, cursor.getCount());
+    }
+
+    /**
+     * Encode a slice of the cursor. The cursor position is restored.
+     *
+     * @param cursor the source rows
+     * @param types the type of each column, if null every column is a STRING
+     *            unless the cursor is an AmmoColumnarCursor
+     * @param start the first row of the slice
+     * @param count the most rows in the slice
+     * @return the encoded batch, null if it could not be encoded
+     */
+    static public byte[] encode(final Cursor cursor, final ColumnType[] types,
+            final int start, final int count) {
+        final String[] names = cursor.getColumnNames();
+        final ColumnType[] columnTypes = columnTypes(cursor, types, names.length);
+
+        final int first = Math.max(start, 0);
+        final int rows = Math.max(0, Math.min(count, cursor.getCount() - first));
+        final Object[] columns = new Object[names.length];
+        final byte[][] nulls = new byte[names.length][];
+        for (int ix = 0; ix < names.length; ++ix) {
+            nulls[ix] = new byte[(rows + 7) >> 3];
+            switch (columnTypes[ix]) {
+                case LONG:
+                    columns[ix] = new long[rows];
+                    break;
+                case DOUBLE:
+                    columns[ix] = new double[rows];
+                    break;
+                case STRING:
+                    columns[ix] = new String[rows];
+                    break;
+                case BLOB:
+                    columns[ix] = new byte[rows][];
+                    break;
+            }
+        }
+
+        // one pass over the rows, filling the columns
+        final int savedPosition = cursor.getPosition();
+        try {
+            for (int row = 0; row < rows; ++row) {
+                if (!cursor.moveToPosition(first + row)) {
+                    throw new IllegalStateException("cursor lost row " + (first + row));
+                }
+                for (int ix = 0; ix < names.length; ++ix) {
+                    if (cursor.isNull(ix)) {
+                        nulls[ix][row >> 3] |= (1 << (row & 7));
+                        continue;
+                    }
+                    switch (columnTypes[ix]) {
+                        case LONG:
+                            ((long[]) columns[ix])[row] = cursor.getLong(ix);
+                            break;
+                        case DOUBLE:
+                            ((double[]) columns[ix])[row] = cursor.getDouble(ix);
+                            break;
+                        case STRING:
+                            ((String[]) columns[ix])[row] = cursor.getString(ix);
+                            break;
+                        case BLOB:
+                            ((byte[][]) columns[ix])[row] = cursor.getBlob(ix);
+                            break;
+                    }
+                }
+            }
+        } finally {
+            cursor.moveToPosition(savedPosition);
+        }
+
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream(64 + 8 * rows * names.length);
+        final DataOutputStream out = new DataOutputStream(baos);
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(names.length);
+            for (int ix = 0; ix < names.length; ++ix) {
+                out.writeUTF(names[ix]);
+                out.writeByte(columnTypes[ix].ordinal());
+            }
+            out.writeInt(rows);
+            for (int ix = 0; ix < names.length; ++ix) {
+                out.write(nulls[ix]);
+                switch (columnTypes[ix]) {
+                    case LONG:
+                        writeLongs(out, (long[]) columns[ix], nulls[ix]);
+                        break;
+                    case DOUBLE:
+                        writeDoubles(out, (double[]) columns[ix], nulls[ix]);
+                        break;
+                    case STRING:
+                        writeStrings(out, (String[]) columns[ix], nulls[ix]);
+                        break;
+                    case BLOB:
+                        writeBlobs(out, (byte[][]) columns[ix], nulls[ix]);
+                        break;
+                }
+            }
+            out.flush();
+        } catch (IOException ex) {
+            logger.error("could not encode batch", ex);
+            return null;
+        }
+        logger.debug("encoded batch of [{}] rows in [{}] bytes", rows, baos.size());
+        return baos.toByteArray();
+    }
+
+    private static ColumnType[] columnTypes(final Cursor cursor, final ColumnType[] types,
+            final int columnCount) {
+        if (types != null) {
+            if (types.length != columnCount) {
+                throw new IllegalArgumentException("columnNames.length = "
+                        + columnCount + ", types.length = " + types.length);
+            }
+            return types;
+        }
+        final ColumnType[] result = new ColumnType[columnCount];
+        for (int ix = 0; ix < columnCount; ++ix) {
+            result[ix] = (cursor instanceof AmmoColumnarCursor)
+                    ? ((AmmoColumnarCursor) cursor).getColumnType(ix)
+                    : ColumnType.STRING;
+        }
+        return result;
+    }
+
+    private static boolean isNull(final byte[] nulls, final int row) {
+        return (nulls[row >> 3] & (1 << (row & 7))) != 0;
+    }
+
+    private static void writeLongs(final DataOutputStream out, final long[] values,
+            final byte[] nulls) throws IOException {
+        long previous = 0;
+        for (int row = 0; row < values.length; ++row) {
+            if (isNull(nulls, row))
+                continue;
+            final long delta = values[row] - previous;
+            writeVarLong(out, (delta << 1) ^ (delta >> 63));
+            previous = values[row];
+        }
+    }
+
+    private static void writeDoubles(final DataOutputStream out, final double[] values,
+            final byte[] nulls) throws IOException {
+        for (int row = 0; row < values.length; ++row) {
+            if (isNull(nulls, row))
+                continue;
+            out.writeDouble(values[row]);
+        }
+    }
+
+    private static void writeStrings(final DataOutputStream out, final String[] values,
+            final byte[] nulls) throws IOException {
+        final Map<String, Integer> dictionary = new HashMap<String, Integer>();
+        final List<String> entries = new ArrayList<String>();
+        final int[] codes = new int[values.length];
+        for (int row = 0; row < values.length; ++row) {
+            if (isNull(nulls, row))
+                continue;
+            Integer code = dictionary.get(values[row]);
+            if (code == null) {
+                code = Integer.valueOf(entries.size());
+                dictionary.put(values[row], code);
+                entries.add(values[row]);
+            }
+            codes[row] = code.intValue();
+        }
+        writeVarLong(out, entries.size());
+        for (final String entry : entries) {
+            writeBytes(out, entry.getBytes(CHARSET));
+        }
+        for (int row = 0; row < values.length; ++row) {
+            if (isNull(nulls, row))
+                continue;
+            writeVarLong(out, codes[row]);
+        }
+    }
+
+    private static void writeBlobs(final DataOutputStream out, final byte[][] values,
+            final byte[] nulls) throws IOException {
+        for (int row = 0; row < values.length; ++row) {
+            if (isNull(nulls, row))
+                continue;
+            writeBytes(out, values[row]);
+        }
+    }
+
+    private static void writeBytes(final DataOutputStream out, final byte[] value)
+            throws IOException {
+        writeVarLong(out, value.length);
+        out.write(value);
+    }
+
+    private static void writeVarLong(final DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    // *********************************
+    // Decoding
+    // *********************************
+
+    /**
+     * Decode the batch into a cursor. The values are Long, Double, String
+     * and byte[] according to the column type. Each count and length in the
+     * batch is checked against the bytes which remain, so a malformed batch
+     * is rejected before anything is allocated for it.
+     *
+     * @return the cursor positioned before its first row, null if the batch
+     *         could not be decoded
+     * @throws IllegalArgumentException if the bytes are not a well formed batch
+     */
+    static public AmmoSerialCursor decode(final byte[] bytes) {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IllegalArgumentException("not an encoded batch");
+            }
+            // each column has at least its name length and its type
+            final int columnCount = checkCount(in, in.readInt(), 3, "column count");
+            final String[] names = new String[columnCount];
+            final ColumnType[] types = new ColumnType[columnCount];
+            for (int ix = 0; ix < columnCount; ++ix) {
+                names[ix] = in.readUTF();
+                final int type = in.readUnsignedByte();
+                if (type >= TYPES.length) {
+                    throw new IllegalArgumentException("malformed batch, column type " + type);
+                }
+                types[ix] = TYPES[type];
+            }
+            final int rows = in.readInt();
+            final int bitmap = (int) ((rows + 7L) >> 3);
+            if (rows < 0 || (long) bitmap * columnCount > in.available()
+                    || (long) rows * columnCount > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("malformed batch, row count " + rows
+                        + " for " + in.available() + " bytes");
+            }
+
+            // the cells, row by row, as the cursor holds them
+            final Object[] data = new Object[rows * columnCount];
+            final byte[] nulls = new byte[bitmap];
+            for (int ix = 0; ix < columnCount; ++ix) {
+                in.readFully(nulls);
+                switch (types[ix]) {
+                    case LONG: {
+                        long previous = 0;
+                        for (int row = 0; row < rows; ++row) {
+                            if (isNull(nulls, row))
+                                continue;
+                            final long zigzag = readVarLong(in);
+                            previous += (zigzag >>> 1) ^ -(zigzag & 1);
+                            data[row * columnCount + ix] = Long.valueOf(previous);
+                        }
+                        break;
+                    }
+                    case DOUBLE:
+                        for (int row = 0; row < rows; ++row) {
+                            if (isNull(nulls, row))
+                                continue;
+                            data[row * columnCount + ix] = Double.valueOf(in.readDouble());
+                        }
+                        break;
+                    case STRING: {
+                        final String[] dictionary =
+                                new String[checkCount(in, readVarLong(in), 1, "dictionary size")];
+                        for (int entry = 0; entry < dictionary.length; ++entry) {
+                            dictionary[entry] = new String(readBytes(in), CHARSET);
+                        }
+                        for (int row = 0; row < rows; ++row) {
+                            if (isNull(nulls, row))
+                                continue;
+                            final long code = readVarLong(in);
+                            if (code < 0 || code >= dictionary.length) {
+                                throw new IllegalArgumentException("malformed batch, dictionary index "
+                                        + code + " of " + dictionary.length);
+                            }
+                            data[row * columnCount + ix] = dictionary[(int) code];
+                        }
+                        break;
+                    }
+                    case BLOB:
+                        for (int row = 0; row < rows; ++row) {
+                            if (isNull(nulls, row))
+                                continue;
+                            data[row * columnCount + ix] = readBytes(in);
+                        }
+                        break;
+                }
+            }
+            return new AmmoSerialCursor(names, data, rows);
+        } catch (IOException ex) {
+            logger.error("could not decode batch", ex);
+            return null;
+        }
+    }
+
+    /**
+     * @param size the bytes each counted item takes at the least
+     * @return the count, if the bytes which remain could hold that many items
+     * @throws IllegalArgumentException otherwise
+     */
+    private static int checkCount(final DataInputStream in, final long count, final int size,
+            final String what) throws IOException {
+        if (count < 0 || count > in.available() / size) {
+            throw new IllegalArgumentException("malformed batch, " + what + " " + count
+                    + " for " + in.available() + " bytes");
+        }
+        return (int) count;
+    }
+
+    private static byte[] readBytes(final DataInputStream in) throws IOException {
+        final byte[] value = new byte[checkCount(in, readVarLong(in), 1, "length")];
+        in.readFully(value);
+        return value;
+    }
+
+    private static long readVarLong(final DataInputStream in) throws IOException {
+        long value = 0;
+        int shift = 0;
+        while (true) {
+            final int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+            shift += 7;
+            if (shift > 63) {
+                throw new IllegalArgumentException("malformed batch, varint too long");
+            }
+        }
+    }
+}
@@ -27,9 +27,12 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import android.content.ContentValues;
+import android.database.Cursor;
 import android.os.BadParcelableException;
 import android.os.Parcel;
 import android.os.Parcelable;
+import edu.vu.isis.ammo.api.AmmoColumnarCursor.ColumnType;
+import edu.vu.isis.ammo.api.AmmoSerialCursor;
 
 public class Payload extends AmmoType {
 
@@ -295,6 +298,56 @@ public class Payload extends AmmoType {
         return null;
     }
 
+    /**
+     * Encode the content values using a compiled template rather than json.
+     * Payloads other than content values are encoded as asBytes().
+     * 
+     * @param codec the compiled template, see TemplateCodec.forTopic()
+     * @return the fixed layout encoding of the content values
+     */
+    public byte[] asBytes(TemplateCodec codec) {
+        if (codec == null || this.type != Type.CV)
+            return this.asBytes();
+        return codec.encode(this.cv);
+    }
+
+    /**
+     * The inverse of asBytes(TemplateCodec).
+     */
+    static public Payload decode(byte[] bytes, TemplateCodec codec) {
+        return new Payload(codec.decode(bytes));
+    }
+
+    /**
+     * A byte payload holding the rows of the cursor as a single batch, see
+     * BatchCodec.
+     * 
+     * @param types the type of each column, null to treat them as strings
+     */
+    static public Payload batch(Cursor cursor, ColumnType[] types) {
+        return new Payload(BatchCodec.encode(cursor, types));
+    }
+
+    /**
+     * A byte payload holding a slice of the rows of the cursor.
+     */
+    static public Payload batch(Cursor cursor, ColumnType[] types, int start, int count) {
+        return new Payload(BatchCodec.encode(cursor, types, start, count));
+    }
+
+    /**
+     * The inverse of batch().
+     * 
+     * @return the rows of the batch, null if this is not a byte payload
+     */
+    public AmmoSerialCursor asCursor() {
+        if (this.type != Type.BYTE || this.bytes == null) {
+            plogger.error("invalid batch payload type {}", this);
+            return null;
+        }
+        return BatchCodec.decode(this.bytes);
+    }
+
     private String encodeContentValueAsJsonString() {
         final JSONObject json = new JSONObject();
 
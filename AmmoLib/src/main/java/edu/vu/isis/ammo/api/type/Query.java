@@ -107,7 +107,7 @@ public class Query extends AmmoType {
     }
 
     public String[] args() {
-        return this.args();
+        return this.args;
     }
 
     public Query args(String[] args) {
@@ -302,6 +302,25 @@ public class Template extends AmmoType {
         return cv;
     }
 
+    private volatile TemplateCodec codec = null;
+
+    /**
+     * The template as a fixed layout schema. The codec is compiled on first
+     * use and kept with the template.
+     * 
+     * @return the compiled codec
+     * @throws IllegalArgumentException if this is not a content values
+     *             template.
+     */
+    public TemplateCodec compile() {
+        TemplateCodec result = this.codec;
+        if (result != null)
+            return result;
+        result = TemplateCodec.compile(this);
+        this.codec = result;
+        return result;
+    }
+
     /**
      * check that the two objects are logically equal.
      */
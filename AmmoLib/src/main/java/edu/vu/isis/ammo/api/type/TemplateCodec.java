@@ -0,0 +1,388 @@
+/* Copyright (c) 2010-2015 Vanderbilt University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package edu.vu.isis.ammo.api.type;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.content.ContentValues;
+
+/**
+ * A content values template compiled into a fixed layout encoder and decoder.
+ * <p>
+ * The template content values name the fields, the class of each template
+ * value gives the type of the field. The fields are placed in name order,
+ * so the layout does not depend on the hash order of the template.
+ * <p>
+ * The encoded row is
+ * <ul>
+ * <li>the fingerprint of the layout (int)</li>
+ * <li>a bitmap with a bit set for each field present in the row</li>
+ * <li>a bitmap with a bit set for each field whose value is null</li>
+ * <li>each present, non-null field in layout order, numbers in their natural
+ * width, strings and blobs as a length (int) followed by the bytes</li>
+ * </ul>
+ * An absent field is left out of the decoded row, so that a column default
+ * applies on insert, while a null field is decoded as an explicit null. No
+ * field names are written, the row is read once per field of the layout.
+ * <p>
+ * Compiled codecs are cached per topic, see forTopic().
+ */
+public class TemplateCodec {
+    static final Logger logger = LoggerFactory.getLogger("type.template.codec");
+
+    private static final String CHARSET = "UTF-8";
+    /** distinguishes this layout from the one with a single null bitmap */
+    private static final int LAYOUT_VERSION = 2;
+
+    public enum FieldType {
+        BOOLEAN, INT, LONG, DOUBLE, STRING, BLOB;
+
+        /**
+         * The type of a field is given by the class of its template value.
+         */
+        static public FieldType getInstance(final Object example) {
+            if (example == null)
+                return STRING;
+            if (example instanceof Boolean)
+                return BOOLEAN;
+            if (example instanceof Long)
+                return LONG;
+            if (example instanceof Integer
+                    || example instanceof Short
+                    || example instanceof Byte)
+                return INT;
+            if (example instanceof Double || example instanceof Float)
+                return DOUBLE;
+            if (example instanceof byte[])
+                return BLOB;
+            return STRING;
+        }
+    }
+
+    private static final Map<String, TemplateCodec> topicCache =
+            new ConcurrentHashMap<String, TemplateCodec>();
+
+    final private String[] names;
+    final private FieldType[] types;
+    final private int bitmapSize;
+    final private int fingerprint;
+
+    // *********************************
+    // Construction
+    // *********************************
+
+    public TemplateCodec(final ContentValues template) {
+        if (template == null) {
+            throw new IllegalArgumentException("a template is required");
+        }
+        final String[] keys = new String[template.size()];
+        int count = 0;
+        for (final Map.Entry<String, Object> entry : template.valueSet()) {
+            keys[count++] = entry.getKey();
+        }
+        Arrays.sort(keys);
+        this.names = keys;
+        this.types = new FieldType[keys.length];
+        int hash = 17 * 31 + LAYOUT_VERSION;
+        for (int ix = 0; ix < keys.length; ++ix) {
+            this.types[ix] = FieldType.getInstance(template.get(keys[ix]));
+            hash = 31 * hash + keys[ix].hashCode();
+            hash = 31 * hash + this.types[ix].ordinal();
+        }
+        this.bitmapSize = (keys.length + 7) >> 3;
+        this.fingerprint = hash;
+    }
+
+    /**
+     * Compile the template.
+     *
+     * @throws IllegalArgumentException if the template is not a content
+     *             values template.
+     */
+    static public TemplateCodec compile(final Template template) {
+        if (template == null || template.whatContent() != Template.Type.CV) {
+            throw new IllegalArgumentException("only a content values template can be compiled");
+        }
+        return new TemplateCodec(template.getCV());
+    }
+
+    /**
+     * Compile the template and cache it for the topic, replacing any
+     * earlier codec for the topic.
+     */
+    static public TemplateCodec register(final String topic, final Template template) {
+        final TemplateCodec codec = compile(template);
+        topicCache.put(topic, codec);
+        logger.debug("registered codec {} for topic {}", codec, topic);
+        return codec;
+    }
+
+    /**
+     * @return the codec registered for the topic, null if there is none.
+     */
+    static public TemplateCodec forTopic(final String topic) {
+        if (topic == null)
+            return null;
+        return topicCache.get(topic);
+    }
+
+    static public TemplateCodec forTopic(final Topic topic) {
+        if (topic == null)
+            return null;
+        return forTopic(topic.asString());
+    }
+
+    static public void unregister(final String topic) {
+        topicCache.remove(topic);
+    }
+
+    // *********************************
+    // Encoding
+    // *********************************
+
+    /**
+     * Each field of the layout is looked up once, a row holding a field
+     * which is not in the template is detected by its size.
+     *
+     * @throws IllegalArgumentException if the row has a field which is not in
+     *             the template or a value which cannot be converted to the
+     *             type of its field.
+     */
+    public byte[] encode(final ContentValues row) {
+        final Object[] values = new Object[this.names.length];
+        final byte[] present = new byte[this.bitmapSize];
+        final byte[] nulls = new byte[this.bitmapSize];
+        int found = 0;
+        for (int ix = 0; ix < this.names.length; ++ix) {
+            final Object value = row.get(this.names[ix]);
+            if (value == null && !row.containsKey(this.names[ix]))
+                continue;
+            ++found;
+            present[ix >> 3] |= (1 << (ix & 7));
+            if (value == null) {
+                nulls[ix >> 3] |= (1 << (ix & 7));
+            }
+            values[ix] = value;
+        }
+        if (found != row.size()) {
+            throw new IllegalArgumentException("the row " + row
+                    + " has fields which are not in the template " + this);
+        }
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream(16 + 8 * this.names.length);
+        final DataOutputStream out = new DataOutputStream(baos);
+        try {
+            out.writeInt(this.fingerprint);
+            out.write(present);
+            out.write(nulls);
+
+            for (int ix = 0; ix < this.names.length; ++ix) {
+                final Object value = values[ix];
+                if (value == null)
+                    continue;
+                switch (this.types[ix]) {
+                    case BOOLEAN:
+                        out.writeBoolean(asBoolean(ix, value));
+                        break;
+                    case INT:
+                        out.writeInt((int) asLong(ix, value));
+                        break;
+                    case LONG:
+                        out.writeLong(asLong(ix, value));
+                        break;
+                    case DOUBLE:
+                        out.writeDouble(asDouble(ix, value));
+                        break;
+                    case STRING:
+                        writeBytes(out, value.toString().getBytes(CHARSET));
+                        break;
+                    case BLOB:
+                        if (!(value instanceof byte[])) {
+                            throw this.notConvertible(ix, value);
+                        }
+                        writeBytes(out, (byte[]) value);
+                        break;
+                }
+            }
+            out.flush();
+        } catch (UnsupportedEncodingException ex) {
+            logger.error("no {} charset", CHARSET, ex);
+            return null;
+        } catch (IOException ex) {
+            logger.error("could not encode row", ex);
+            return null;
+        }
+        return baos.toByteArray();
+    }
+
+    /*
+     * The conversions are those of the typed accessors of content values,
+     * made on the value already in hand.
+     */
+
+    private boolean asBoolean(final int ix, final Object value) {
+        if (value instanceof Boolean)
+            return ((Boolean) value).booleanValue();
+        if (value instanceof Number)
+            return ((Number) value).intValue() != 0;
+        if (value instanceof CharSequence)
+            return Boolean.valueOf(value.toString());
+        throw this.notConvertible(ix, value);
+    }
+
+    private long asLong(final int ix, final Object value) {
+        if (value instanceof Number)
+            return ((Number) value).longValue();
+        try {
+            return Long.valueOf(value.toString());
+        } catch (NumberFormatException ex) {
+            throw this.notConvertible(ix, value);
+        }
+    }
+
+    private double asDouble(final int ix, final Object value) {
+        if (value instanceof Number)
+            return ((Number) value).doubleValue();
+        try {
+            return Double.valueOf(value.toString());
+        } catch (NumberFormatException ex) {
+            throw this.notConvertible(ix, value);
+        }
+    }
+
+    private IllegalArgumentException notConvertible(final int ix, final Object value) {
+        return new IllegalArgumentException("field " + this.names[ix] + " value " + value
+                + " cannot be converted to " + this.types[ix]);
+    }
+
+    /**
+     * @throws IllegalArgumentException if the row was not encoded by this
+     *             template or is malformed.
+     */
+    public ContentValues decode(final byte[] bytes) {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        try {
+            final int fingerprint = in.readInt();
+            if (fingerprint != this.fingerprint) {
+                throw new IllegalArgumentException("the row was not encoded by this template");
+            }
+            final byte[] present = new byte[this.bitmapSize];
+            in.readFully(present);
+            final byte[] nulls = new byte[this.bitmapSize];
+            in.readFully(nulls);
+
+            final ContentValues row = new ContentValues(this.names.length);
+            for (int ix = 0; ix < this.names.length; ++ix) {
+                final String name = this.names[ix];
+                if ((present[ix >> 3] & (1 << (ix & 7))) == 0)
+                    continue;
+                if ((nulls[ix >> 3] & (1 << (ix & 7))) != 0) {
+                    row.putNull(name);
+                    continue;
+                }
+                switch (this.types[ix]) {
+                    case BOOLEAN:
+                        row.put(name, in.readBoolean());
+                        break;
+                    case INT:
+                        row.put(name, in.readInt());
+                        break;
+                    case LONG:
+                        row.put(name, in.readLong());
+                        break;
+                    case DOUBLE:
+                        row.put(name, in.readDouble());
+                        break;
+                    case STRING:
+                        row.put(name, new String(readBytes(in), CHARSET));
+                        break;
+                    case BLOB:
+                        row.put(name, readBytes(in));
+                        break;
+                }
+            }
+            return row;
+        } catch (IOException ex) {
+            logger.error("could not decode row", ex);
+            return null;
+        }
+    }
+
+    private static void writeBytes(final DataOutputStream out, final byte[] value)
+            throws IOException {
+        out.writeInt(value.length);
+        out.write(value);
+    }
+
+    private static byte[] readBytes(final DataInputStream in) throws IOException {
+        final int length = in.readInt();
+        if (length < 0 || length > in.available()) {
+            throw new IllegalArgumentException("malformed row, field length " + length
+                    + " with " + in.available() + " bytes remaining");
+        }
+        final byte[] value = new byte[length];
+        in.readFully(value);
+        return value;
+    }
+
+    // *********************************
+    // Standard Methods
+    // *********************************
+
+    public int size() {
+        return this.names.length;
+    }
+
+    public String name(int ix) {
+        return this.names[ix];
+    }
+
+    public FieldType type(int ix) {
+        return this.types[ix];
+    }
+
+    public int fingerprint() {
+        return this.fingerprint;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append('[');
+        for (int ix = 0; ix < this.names.length; ++ix) {
+            if (ix > 0)
+                sb.append(", ");
+            sb.append(this.names[ix]).append(':').append(this.types[ix]);
+        }
+        return sb.append(']').toString();
+    }
+}
@@ -100,6 +100,14 @@ public class TimeStamp extends AmmoType {
         this.interval = new TimeInterval(val);
     }
 
+    /**
+     * @param millis wall clock time in milliseconds
+     */
+    public TimeStamp(long millis) {
+        this.millis = millis;
+        this.interval = new TimeInterval(0);
+    }
+
     public TimeStamp(Calendar cal) {
         this.millis = (cal == null) ? System.currentTimeMillis() : cal.getTimeInMillis();
         this.interval = new TimeInterval(0);
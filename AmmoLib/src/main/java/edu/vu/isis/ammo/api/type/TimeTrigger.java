@@ -111,6 +111,18 @@ public class TimeTrigger extends AmmoType {
      * @return the absolute expiration time in milliseconds.
      */
     public long cv() {
+        return this.cv(System.currentTimeMillis());
+    }
+
+    /**
+     * As cv() but a relative trigger is taken relative to the supplied time
+     * rather than the current time. This allows the trigger to be resolved
+     * once, when the request is built, rather than each time it is examined.
+     * 
+     * @param now the reference time in milliseconds.
+     * @return the absolute expiration time in milliseconds.
+     */
+    public long cv(long now) {
         if (this.type == null) {
             return Long.MAX_VALUE;
         } else
@@ -118,8 +130,9 @@ public class TimeTrigger extends AmmoType {
                 case ABS:
                     return this.abs.cv();
                 case REL:
-                    if (this.rel.cv() < Long.MAX_VALUE) {
-                        return System.currentTimeMillis() + this.rel.cv();
+                    final long rel = this.rel.cv();
+                    if (rel < Long.MAX_VALUE - now) {
+                        return now + rel;
                     } else {
                         return Long.MAX_VALUE;
                     }
@@ -33,6 +33,8 @@ public class PreferenceSchema {
 	public static final IntentFilter AMMO_PREF_CHANGED_INTENT_FILTER = new IntentFilter(AMMO_PREF_CHANGED_ACTION);
 	public static final String AMMO_INTENT_KEY_PREF_CHANGED_KEY = "ammo_intent_key_pref_changed_key";
 	public static final String AMMO_INTENT_KEY_PREF_CHANGED_VALUE = "ammo_intent_key_pref_changed_value";
+	/** the keys changed together by one AmmoPreference.Editor commit (String[]) */
+	public static final String AMMO_INTENT_KEY_PREF_CHANGED_KEYS = "ammo_intent_key_pref_changed_keys";
 	
 	// The following constants are used for reflective purposes when 
 	// querying the Preference Content Provider for values.
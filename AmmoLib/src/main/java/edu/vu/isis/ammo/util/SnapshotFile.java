@@ -0,0 +1,179 @@
+/* Copyright (c) 2010-2015 Vanderbilt University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package edu.vu.isis.ammo.util;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads and writes the binary snapshot files of the in-memory caches.
+ * <p>
+ * A snapshot is written to a temporary file beside the target which is then
+ * renamed over it, so a reader never sees a partial snapshot. A snapshot is
+ * read by mapping the file, the magic number and version are checked and the
+ * buffer returned positioned at the watermark.
+ * <p>
+ * The header is a magic number (int), a version (int) and a watermark
+ * (long), the value the cache uses to resume its delta queries. Strings are
+ * written as a length (int, -1 for null) followed by the UTF-8 bytes.
+ */
+public class SnapshotFile {
+
+	private static final Logger logger = LoggerFactory.getLogger("util.snapshot");
+
+	private static final String CHARSET = "UTF-8";
+
+	/** the size of the header */
+	public static final int HEADER_SIZE = 16;
+
+	private SnapshotFile() {
+	}
+
+	public static void writeHeader(final DataOutputStream out, final int magic,
+			final int version, final long watermark) throws IOException {
+		out.writeInt(magic);
+		out.writeInt(version);
+		out.writeLong(watermark);
+	}
+
+	public static void writeString(final DataOutputStream out, final String value)
+			throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+			return;
+		}
+		final byte[] bytes = value.getBytes(CHARSET);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	public static String readString(final ByteBuffer in) throws UnsupportedEncodingException {
+		final int length = in.getInt();
+		if (length < 0)
+			return null;
+		if (length > in.remaining())
+			throw new BufferUnderflowException();
+		final byte[] bytes = new byte[length];
+		in.get(bytes);
+		return new String(bytes, CHARSET);
+	}
+
+	/**
+	 * Read a count of records, checked against what remains of the snapshot.
+	 *
+	 * @param recordSize the fewest bytes a record takes
+	 * @throws IOException if the snapshot cannot hold that many records
+	 */
+	public static int readCount(final ByteBuffer in, final int recordSize) throws IOException {
+		final int count = in.getInt();
+		if (count < 0 || count > in.remaining() / recordSize) {
+			throw new IOException("corrupt snapshot, " + count + " records in "
+					+ in.remaining() + " bytes");
+		}
+		return count;
+	}
+
+	/**
+	 * Replace the snapshot file with the bytes.
+	 *
+	 * @return false if the snapshot could not be written.
+	 */
+	public static boolean write(final File file, final byte[] bytes) {
+		final File temp = new File(file.getPath() + ".tmp");
+		FileOutputStream out = null;
+		try {
+			out = new FileOutputStream(temp);
+			out.write(bytes);
+			out.getFD().sync();
+			out.close();
+			out = null;
+			if (!temp.renameTo(file)) {
+				logger.warn("could not rename {} to {}", temp, file);
+				temp.delete();
+				return false;
+			}
+			logger.debug("wrote snapshot {} [{}] bytes", file, bytes.length);
+			return true;
+		} catch (IOException ex) {
+			logger.warn("could not write snapshot {}", file, ex);
+			temp.delete();
+			return false;
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException ex) {
+					logger.warn("could not close {}", temp, ex);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Map the snapshot file and check its header.
+	 *
+	 * @return the buffer positioned at the watermark, or null if there is no
+	 *         snapshot or it is not of the expected kind and version.
+	 */
+	public static ByteBuffer map(final File file, final int magic, final int version) {
+		if (file == null || !file.exists() || file.length() < HEADER_SIZE)
+			return null;
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(file, "r");
+			final ByteBuffer buffer = raf.getChannel()
+					.map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+			if (buffer.getInt() != magic) {
+				logger.warn("not a snapshot {}", file);
+				return null;
+			}
+			if (buffer.getInt() != version) {
+				logger.info("snapshot version changed {}", file);
+				return null;
+			}
+			return buffer;
+		} catch (IOException ex) {
+			logger.warn("could not map snapshot {}", file, ex);
+			return null;
+		} catch (BufferUnderflowException ex) {
+			logger.warn("truncated snapshot {}", file, ex);
+			return null;
+		} finally {
+			if (raf != null) {
+				try {
+					raf.close();
+				} catch (IOException ex) {
+					logger.warn("could not close {}", file, ex);
+				}
+			}
+		}
+	}
+}
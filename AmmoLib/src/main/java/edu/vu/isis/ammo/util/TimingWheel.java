@@ -0,0 +1,319 @@
+/* Copyright (c) 2010-2015 Vanderbilt University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package edu.vu.isis.ammo.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A hierarchical timing wheel.
+ * <p>
+ * There are four wheels of 64 slots. The first wheel holds the timeouts due
+ * within 64 ticks, each higher wheel covers 64 times the span of the one
+ * below it. As the clock advances the slots of the higher wheels are cascaded
+ * into the lower wheels. Timeouts beyond the top wheel are held on an overflow
+ * list which is cascaded whenever the top wheel turns over.
+ * <p>
+ * Scheduling and cancelling are O(1), each timeout is touched at most once per
+ * wheel as it expires, so advancing the clock is O(1) amortized per timeout
+ * plus one step per elapsed tick.
+ * <p>
+ * The wheel has no clock of its own. The caller supplies the time (in
+ * milliseconds) to both schedule() and advance(), it should be monotonic,
+ * i.e. SystemClock.elapsedRealtime() rather than System.currentTimeMillis().
+ */
+public class TimingWheel<E> {
+
+	private static final Logger logger = LoggerFactory.getLogger("util.wheel");
+
+	private static final int BITS = 6;
+	private static final int SLOTS = 1 << BITS;
+	private static final int MASK = SLOTS - 1;
+	private static final int LEVELS = 4;
+
+	/**
+	 * Receives the items whose deadline has passed.
+	 */
+	public interface Expiry<E> {
+		public void expired(E item);
+	}
+
+	/**
+	 * The handle returned by schedule(), it is used to cancel the timeout.
+	 */
+	public static final class Timeout<E> {
+		private final E item;
+		private final long deadline;
+		private final long deadlineTick;
+		private Timeout<E> prev;
+		private Timeout<E> next;
+		private Slot<E> slot;
+
+		private Timeout(E item, long deadline, long deadlineTick) {
+			this.item = item;
+			this.deadline = deadline;
+			this.deadlineTick = deadlineTick;
+		}
+
+		public E item() {
+			return this.item;
+		}
+
+		public long deadline() {
+			return this.deadline;
+		}
+	}
+
+	/**
+	 * An intrusive doubly linked list so a timeout can be unlinked in place.
+	 */
+	private static final class Slot<E> {
+		private Timeout<E> head;
+
+		void add(Timeout<E> timeout) {
+			timeout.slot = this;
+			timeout.prev = null;
+			timeout.next = this.head;
+			if (this.head != null)
+				this.head.prev = timeout;
+			this.head = timeout;
+		}
+
+		void unlink(Timeout<E> timeout) {
+			if (timeout.prev != null)
+				timeout.prev.next = timeout.next;
+			else
+				this.head = timeout.next;
+			if (timeout.next != null)
+				timeout.next.prev = timeout.prev;
+			timeout.prev = null;
+			timeout.next = null;
+			timeout.slot = null;
+		}
+
+		Timeout<E> takeAll() {
+			final Timeout<E> all = this.head;
+			this.head = null;
+			return all;
+		}
+	}
+
+	private final long tickMillis;
+	private final Slot<E>[][] wheels;
+	private final Slot<E> overflow;
+	private long currentTick;
+	private int size;
+
+	/**
+	 * @param tickMillis
+	 *            the resolution of the wheel, timeouts fire on the first tick
+	 *            at or after their deadline.
+	 * @param now
+	 *            the current time on the caller's clock.
+	 */
+	@SuppressWarnings("unchecked")
+	public TimingWheel(final long tickMillis, final long now) {
+		if (tickMillis < 1)
+			throw new IllegalArgumentException("the tick must be at least a millisecond");
+		this.tickMillis = tickMillis;
+		this.wheels = new Slot[LEVELS][SLOTS];
+		for (int level = 0; level < LEVELS; ++level) {
+			for (int ix = 0; ix < SLOTS; ++ix) {
+				this.wheels[level][ix] = new Slot<E>();
+			}
+		}
+		this.overflow = new Slot<E>();
+		this.currentTick = now / tickMillis;
+		this.size = 0;
+	}
+
+	/**
+	 * Place the item on the wheel.
+	 *
+	 * @param item
+	 * @param deadline
+	 *            when the item expires, on the same clock as advance().
+	 * @return the timeout, or null if the deadline has already passed.
+	 */
+	public synchronized Timeout<E> schedule(final E item, final long deadline) {
+		final long deadlineTick = (deadline / this.tickMillis)
+				+ ((deadline % this.tickMillis == 0) ? 0 : 1);
+		if (deadlineTick <= this.currentTick)
+			return null;
+		final Timeout<E> timeout = new Timeout<E>(item, deadline, deadlineTick);
+		this.place(timeout);
+		this.size++;
+		return timeout;
+	}
+
+	/**
+	 * Remove the timeout from the wheel.
+	 *
+	 * @return false if the timeout had already expired or been cancelled.
+	 */
+	public synchronized boolean cancel(final Timeout<E> timeout) {
+		if (timeout == null || timeout.slot == null)
+			return false;
+		timeout.slot.unlink(timeout);
+		this.size--;
+		return true;
+	}
+
+	/**
+	 * Advance the clock to now, passing each expired item to the expiry. The
+	 * expiry is called after the wheel has been released so it may freely
+	 * schedule or cancel.
+	 *
+	 * @return the number of items expired.
+	 */
+	public int advance(final long now, final Expiry<E> expiry) {
+		final List<E> expired = new ArrayList<E>();
+		synchronized (this) {
+			final long targetTick = now / this.tickMillis;
+			while (this.currentTick < targetTick) {
+				this.currentTick++;
+				this.cascade();
+				final Slot<E> slot = this.wheels[0][(int) (this.currentTick & MASK)];
+				for (Timeout<E> timeout = slot.takeAll(); timeout != null;) {
+					final Timeout<E> next = timeout.next;
+					timeout.slot = null;
+					timeout.prev = null;
+					timeout.next = null;
+					expired.add(timeout.item);
+					this.size--;
+					timeout = next;
+				}
+			}
+		}
+		if (expired.size() > 0) {
+			logger.debug("expired {} items", expired.size());
+		}
+		if (expiry != null) {
+			for (final E item : expired) {
+				expiry.expired(item);
+			}
+		}
+		return expired.size();
+	}
+
+	public synchronized int size() {
+		return this.size;
+	}
+
+	/**
+	 * The time at which advance() will next expire an item, on the same clock
+	 * as advance(). A timeout on the lowest wheel shares its slot only with
+	 * timeouts of the same tick. On a higher wheel the slots are searched in
+	 * the order they come due, only the first occupied slot is examined.
+	 *
+	 * @return the time of the earliest tick holding a timeout, Long.MAX_VALUE
+	 *         if the wheel is empty.
+	 */
+	public synchronized long nextExpiry() {
+		if (this.size < 1)
+			return Long.MAX_VALUE;
+		long earliest = Long.MAX_VALUE;
+		for (int step = 1; step < SLOTS; ++step) {
+			final Timeout<E> head = this.wheels[0][(int) ((this.currentTick + step) & MASK)].head;
+			if (head != null) {
+				earliest = head.deadlineTick;
+				break;
+			}
+		}
+		for (int level = 1; level < LEVELS; ++level) {
+			final int current = (int) ((this.currentTick >>> (BITS * level)) & MASK);
+			for (int step = 1; step <= SLOTS; ++step) {
+				final Slot<E> slot = this.wheels[level][(current + step) & MASK];
+				if (slot.head == null)
+					continue;
+				earliest = Math.min(earliest, earliestTick(slot));
+				break;
+			}
+		}
+		earliest = Math.min(earliest, earliestTick(this.overflow));
+		return earliest * this.tickMillis;
+	}
+
+	private static <E> long earliestTick(final Slot<E> slot) {
+		long earliest = Long.MAX_VALUE;
+		for (Timeout<E> timeout = slot.head; timeout != null; timeout = timeout.next) {
+			earliest = Math.min(earliest, timeout.deadlineTick);
+		}
+		return earliest;
+	}
+
+	/**
+	 * When the lower wheels have turned over, redistribute the slot of each
+	 * higher wheel which has come due, the highest wheel first.
+	 */
+	private void cascade() {
+		int level = 0;
+		while (level < LEVELS - 1
+				&& ((this.currentTick >>> (BITS * (level + 1))) << (BITS * (level + 1))) == this.currentTick) {
+			level++;
+		}
+		if (level == LEVELS - 1
+				&& ((this.currentTick >>> (BITS * LEVELS)) << (BITS * LEVELS)) == this.currentTick) {
+			this.replace(this.overflow);
+		}
+		for (; level > 0; --level) {
+			final int ix = (int) ((this.currentTick >>> (BITS * level)) & MASK);
+			this.replace(this.wheels[level][ix]);
+		}
+	}
+
+	private void replace(final Slot<E> slot) {
+		for (Timeout<E> timeout = slot.takeAll(); timeout != null;) {
+			final Timeout<E> next = timeout.next;
+			this.place(timeout);
+			timeout = next;
+		}
+	}
+
+	/**
+	 * A timeout goes on the lowest wheel whose span reaches its deadline.
+	 */
+	private void place(final Timeout<E> timeout) {
+		final long delta = timeout.deadlineTick - this.currentTick;
+		if (delta < SLOTS) {
+			this.wheels[0][(int) (timeout.deadlineTick & MASK)].add(timeout);
+			return;
+		}
+		for (int level = 1; level < LEVELS; ++level) {
+			if (delta < (1L << (BITS * (level + 1)))) {
+				final int ix = (int) ((timeout.deadlineTick >>> (BITS * level)) & MASK);
+				this.wheels[level][ix].add(timeout);
+				return;
+			}
+		}
+		this.overflow.add(timeout);
+	}
+
+	@Override
+	public synchronized String toString() {
+		return new StringBuilder("TimingWheel tick=").append(this.tickMillis)
+				.append(" now=").append(this.currentTick)
+				.append(" size=").append(this.size).toString();
+	}
+}
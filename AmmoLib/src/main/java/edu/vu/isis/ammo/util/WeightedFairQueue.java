@@ -0,0 +1,357 @@
+/* Copyright (c) 2010-2015 Vanderbilt University
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package edu.vu.isis.ammo.util;
+
+import java.util.LinkedList;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.os.SystemClock;
+
+/**
+ * A queue which keeps one FIFO per priority band and serves them by weighted
+ * round robin (deficit round robin with a unit cost per item).
+ * <p>
+ * The URGENT band is never subject to the weights, it is always served first.
+ * The remaining bands are served from HIGH down to BACKGROUND, each band
+ * receiving as many items per round as its weight. An item which has waited
+ * longer than the aging limit is served ahead of the round so that a steady
+ * stream of high priority items cannot starve the lower bands.
+ * <p>
+ * The priority bands follow the IAmmoRequest PRIORITY_* constants.
+ * <p>
+ * An item may be given a deadline, on the SystemClock.elapsedRealtime() clock.
+ * The deadlines are kept on a timing wheel, expire() drops the items whose
+ * deadline has passed without searching the bands.
+ */
+public class WeightedFairQueue<E> {
+
+	private static final Logger logger = LoggerFactory.getLogger("util.wfq");
+
+	public enum Band {
+		BACKGROUND(-1000), LOW(-10), NORMAL(0), HIGH(10), URGENT(1000);
+
+		/**
+		 * the lowest priority which falls into the band.
+		 */
+		public final int floor;
+
+		private Band(int floor) {
+			this.floor = floor;
+		}
+
+		/**
+		 * Priorities between the nominal values fall into the lower band. A
+		 * null priority is treated as NORMAL.
+		 */
+		public static Band getInstance(Integer priority) {
+			if (priority == null)
+				return NORMAL;
+			if (priority >= URGENT.floor)
+				return URGENT;
+			if (priority >= HIGH.floor)
+				return HIGH;
+			if (priority >= NORMAL.floor)
+				return NORMAL;
+			if (priority >= LOW.floor)
+				return LOW;
+			return BACKGROUND;
+		}
+	}
+
+	/**
+	 * The weights for BACKGROUND, LOW, NORMAL and HIGH.
+	 * URGENT is strict priority and has no weight.
+	 */
+	public static final int[] WEIGHTS_DEFAULT = new int[] { 1, 2, 4, 8 };
+	public static final long AGING_LIMIT_DEFAULT = 30 * 1000L;
+	public static final long EXPIRE_TICK_DEFAULT = 1000L;
+	public static final long NO_DEADLINE = Long.MAX_VALUE;
+
+	private static final int URGENT = Band.URGENT.ordinal();
+
+	private static class Entry<E> {
+		final E item;
+		final int band;
+		final long enqueued;
+		final long deadline;
+		/** removed from the queue, either served or expired. */
+		boolean removed;
+		TimingWheel.Timeout<Entry<E>> timeout;
+
+		Entry(E item, int band, long enqueued, long deadline) {
+			this.item = item;
+			this.band = band;
+			this.enqueued = enqueued;
+			this.deadline = deadline;
+			this.removed = false;
+		}
+	}
+
+	/**
+	 * Expired entries are only marked, they are unlinked from their band
+	 * when they reach its head.
+	 */
+	private final TimingWheel.Expiry<Entry<E>> expiry = new TimingWheel.Expiry<Entry<E>>() {
+		@Override
+		public void expired(Entry<E> entry) {
+			if (entry.removed)
+				return;
+			entry.removed = true;
+			entry.timeout = null;
+			WeightedFairQueue.this.size--;
+			logger.debug("expired {}", entry.item);
+		}
+	};
+
+	private final LinkedList<Entry<E>>[] bands;
+	private final int[] weights;
+	private final long agingLimit;
+	private final TimingWheel<Entry<E>> deadlines;
+
+	/** the band currently being served by the round robin. */
+	private int cursor;
+	/** the number of items the current band may still send this round. */
+	private int credit;
+	private int size;
+	/** the entry most recently returned by poll(), it may be restored. */
+	private Entry<E> served;
+
+	public WeightedFairQueue() {
+		this(WEIGHTS_DEFAULT, AGING_LIMIT_DEFAULT, EXPIRE_TICK_DEFAULT);
+	}
+
+	/**
+	 * @param weights
+	 *            the number of items served per round for BACKGROUND, LOW,
+	 *            NORMAL and HIGH, in that order.
+	 * @param agingLimit
+	 *            milliseconds an item may wait before it is served out of
+	 *            turn.
+	 * @param expireTick
+	 *            the resolution, in milliseconds, at which deadlines are
+	 *            checked.
+	 */
+	@SuppressWarnings("unchecked")
+	public WeightedFairQueue(final int[] weights, final long agingLimit, final long expireTick) {
+		if (weights == null || weights.length != URGENT) {
+			throw new IllegalArgumentException("a weight is required for each non-urgent band");
+		}
+		this.weights = new int[URGENT];
+		for (int ix = 0; ix < URGENT; ++ix) {
+			this.weights[ix] = (weights[ix] < 1) ? 1 : weights[ix];
+		}
+		this.agingLimit = agingLimit;
+		this.deadlines = new TimingWheel<Entry<E>>(expireTick, SystemClock.elapsedRealtime());
+		this.bands = new LinkedList[Band.values().length];
+		for (int ix = 0; ix < this.bands.length; ++ix) {
+			this.bands[ix] = new LinkedList<Entry<E>>();
+		}
+		this.cursor = URGENT - 1;
+		this.credit = this.weights[this.cursor];
+		this.size = 0;
+		this.served = null;
+	}
+
+	public void offer(final E item, final Integer priority) {
+		this.offer(item, priority, NO_DEADLINE);
+	}
+
+	/**
+	 * @param deadline
+	 *            when the item expires on the SystemClock.elapsedRealtime()
+	 *            clock, NO_DEADLINE if it never expires.
+	 * @return false if the item was not queued because it has already
+	 *         expired.
+	 */
+	public synchronized boolean offer(final E item, final Integer priority, final long deadline) {
+		final Entry<E> entry = new Entry<E>(item, Band.getInstance(priority).ordinal(),
+				SystemClock.elapsedRealtime(), deadline);
+		if (!this.schedule(entry))
+			return false;
+		this.bands[entry.band].addLast(entry);
+		this.size++;
+		return true;
+	}
+
+	/**
+	 * Return the next item to be served or null if the queue is empty.
+	 */
+	public synchronized E poll() {
+		if (this.size < 1)
+			return null;
+
+		final LinkedList<Entry<E>> urgent = this.trim(this.bands[URGENT]);
+		if (!urgent.isEmpty()) {
+			return this.remove(urgent);
+		}
+
+		final LinkedList<Entry<E>> aged = this.agedBand(SystemClock.elapsedRealtime());
+		if (aged != null) {
+			logger.trace("serving aged item out of turn");
+			return this.remove(aged);
+		}
+
+		while (true) {
+			final LinkedList<Entry<E>> band = this.trim(this.bands[this.cursor]);
+			if (band.isEmpty() || this.credit < 1) {
+				this.advance();
+				continue;
+			}
+			this.credit--;
+			return this.remove(band);
+		}
+	}
+
+	/**
+	 * Put back the item most recently returned by poll() as it could not be
+	 * delivered. It goes to the head of its band with its original enqueue
+	 * time and deadline, it keeps its place in line.
+	 *
+	 * @return false if the item was not queued because it has expired.
+	 */
+	public synchronized boolean restore(final E item) {
+		final Entry<E> entry = this.served;
+		if (entry == null || entry.item != item) {
+			throw new IllegalArgumentException("only the last item polled may be restored");
+		}
+		this.served = null;
+		if (!this.schedule(entry))
+			return false;
+		entry.removed = false;
+		this.bands[entry.band].addFirst(entry);
+		this.size++;
+		return true;
+	}
+
+	/**
+	 * Drop the items whose deadline has passed.
+	 *
+	 * @return the number of items dropped.
+	 */
+	public synchronized int expire() {
+		return this.deadlines.advance(SystemClock.elapsedRealtime(), this.expiry);
+	}
+
+	public synchronized int size() {
+		return this.size;
+	}
+
+	public synchronized int size(final Band band) {
+		int count = 0;
+		for (final Entry<E> entry : this.bands[band.ordinal()]) {
+			if (!entry.removed)
+				count++;
+		}
+		return count;
+	}
+
+	public synchronized boolean isEmpty() {
+		return this.size < 1;
+	}
+
+	public synchronized void clear() {
+		for (final LinkedList<Entry<E>> band : this.bands) {
+			for (final Entry<E> entry : band) {
+				this.deadlines.cancel(entry.timeout);
+			}
+			band.clear();
+		}
+		this.size = 0;
+		this.served = null;
+	}
+
+	/**
+	 * The items are added at the tail, or restored to the head with their
+	 * original enqueue time, so the head of each band is its oldest item.
+	 * Of the bands whose head has exceeded the aging limit the one with the
+	 * oldest head is selected.
+	 */
+	private LinkedList<Entry<E>> agedBand(final long now) {
+		LinkedList<Entry<E>> oldest = null;
+		long oldestTime = Long.MAX_VALUE;
+		for (int ix = 0; ix < URGENT; ++ix) {
+			final LinkedList<Entry<E>> band = this.trim(this.bands[ix]);
+			if (band.isEmpty())
+				continue;
+			final long enqueued = band.getFirst().enqueued;
+			if (now - enqueued < this.agingLimit)
+				continue;
+			if (enqueued < oldestTime) {
+				oldestTime = enqueued;
+				oldest = band;
+			}
+		}
+		return oldest;
+	}
+
+	private void advance() {
+		this.cursor = (this.cursor < 1) ? URGENT - 1 : this.cursor - 1;
+		this.credit = this.weights[this.cursor];
+	}
+
+	private E remove(final LinkedList<Entry<E>> band) {
+		final Entry<E> entry = band.removeFirst();
+		entry.removed = true;
+		this.deadlines.cancel(entry.timeout);
+		entry.timeout = null;
+		this.size--;
+		this.served = entry;
+		return entry.item;
+	}
+
+	/**
+	 * Unlink the expired entries from the head of the band.
+	 */
+	private LinkedList<Entry<E>> trim(final LinkedList<Entry<E>> band) {
+		while (!band.isEmpty() && band.getFirst().removed) {
+			band.removeFirst();
+		}
+		return band;
+	}
+
+	/**
+	 * Place the entry's deadline on the timing wheel.
+	 *
+	 * @return false if its deadline has already passed.
+	 */
+	private boolean schedule(final Entry<E> entry) {
+		if (entry.deadline == NO_DEADLINE)
+			return true;
+		entry.timeout = this.deadlines.schedule(entry, entry.deadline);
+		if (entry.timeout == null) {
+			logger.debug("already expired {}", entry.item);
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public synchronized String toString() {
+		final StringBuilder sb = new StringBuilder("WFQ");
+		for (final Band band : Band.values()) {
+			sb.append(' ').append(band).append('=')
+					.append(this.size(band));
+		}
+		return sb.toString();
+	}
+}